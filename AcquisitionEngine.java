@@ -0,0 +1,104 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples every sensor at its own rate, independently of the GUI, and
+ * publishes the datapoints into the sample pipeline.
+ *
+ * All sensors run on one scheduler thread. Sensors faster than 1 kHz are not woken for every sample: each
+ * tick (at most once per millisecond) takes all samples that fell due since
+ * the previous tick and stamps them at their exact nominal times, so a late
+ * tick never drops a measurement.
+ */
+public class AcquisitionEngine {
+    static final long MIN_TICK_NANOS = 1_000_000;
+
+    private final SamplePipeline pipeline;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "acquisition");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AcquisitionEngine(SamplePipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Starts sampling a sensor at its rate; samples are only taken while the
+     * sensor is in the MEASURING state.
+     *
+     * @param sensor sensor to sample, with a rate between 1 Hz and 10 kHz
+     * @return handle that stops sampling the sensor when cancelled
+     */
+    public ScheduledFuture<?> add(Sensor sensor) {
+        if (sensor.getRate() < 1 || sensor.getRate() > 10_000) {
+            throw new IllegalArgumentException("rate of " + sensor.getName() + " must be between 1 Hz and 10 kHz");
+        }
+        long periodNanos = Math.round(1e9 / sensor.getRate());
+        long tickNanos = Math.max(periodNanos, MIN_TICK_NANOS);
+        SensorTask task = new SensorTask(sensor, periodNanos, tickNanos);
+        return scheduler.scheduleAtFixedRate(task, 0, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops sampling every sensor and waits for an in-flight tick to finish
+     * so the archive is quiet afterwards.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class SensorTask implements Runnable {
+        private final Sensor sensor;
+        private final long periodNanos;
+        private final long tickNanos;
+        private final long startNanos = System.nanoTime();
+        private final LatencyHistogram tickJitter = pipeline.getService().getMetrics().getTickJitter();
+        private final long startEpochNanos = pipeline.getService().now();
+
+        //number of periods since start that have been sampled or skipped
+        private long taken;
+        //number of ticks run so far; the next one is scheduled at startNanos + ticks * tickNanos
+        private long ticks;
+
+        SensorTask(Sensor sensor, long periodNanos, long tickNanos) {
+            this.sensor = sensor;
+            this.periodNanos = periodNanos;
+            this.tickNanos = tickNanos;
+        }
+
+        public void run() {
+            try {
+                sample();
+            } catch (RuntimeException e) {
+                //an exception would silently cancel the schedule for this sensor
+                e.printStackTrace();
+            }
+        }
+
+        private void sample() {
+            long elapsed = System.nanoTime() - startNanos;
+            tickJitter.record(elapsed - ticks++ * tickNanos);
+            long due = elapsed / periodNanos + 1;
+            if (sensor.getState() != State.MEASURING) {
+                //nothing is owed for the time spent outside MEASURING
+                taken = due;
+                return;
+            }
+            while (taken < due && sensor.getState() == State.MEASURING) {
+                long time = startEpochNanos + taken * periodNanos;
+                double value = sensor.generateData();
+                pipeline.publish(sensor, time, value);
+                taken++;
+            }
+        }
+    }
+}
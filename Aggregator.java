@@ -0,0 +1,516 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+
+/**
+ * Merges the streams of several collector shards (see ShardUplink) into
+ * one global, time-ordered view and runs the alarm rules of every sensor
+ * on it.
+ *
+ * Every shard connection has its own reader thread, which decodes each
+ * batch and sorts it by time, so the per-datapoint work of decoding and
+ * sorting grows with the shards. A single merger thread does a k-way merge
+ * of the sorted batches with a heap and releases a datapoint once every
+ * shard's watermark has passed it, so the global view is in time order
+ * even though the shards run independently. Released datapoints are
+ * measured by a Service holding every sensor, which archives them and
+ * raises global alarms, and handed to any added handlers and alarm
+ * listeners on the merger thread. The merger also computes the derived
+ * channels reading each released datapoint and releases their values
+ * right after it the same way.
+ *
+ * A datapoint older than its shard's previous watermark is late: it is
+ * counted and released right away, which keeps each sensor in order. A
+ * shard that disconnects stops holding back the others; when it
+ * reconnects it starts over without a watermark, and whatever it sends
+ * older than the datapoints already released counts as late.
+ *
+ * Usage: {@code java Aggregator <config> <shards> [port] [livePort]}; the
+ * shards are started as {@code java Collector <config> <livePort> <shard>/<shards> localhost:<port>}.
+ */
+public class Aggregator {
+    static final int DEFAULT_PORT = 7070;
+    static final int DEFAULT_LIVE_PORT = 8080;
+    //the merger waits at most this long for new batches
+    static final long MERGE_WAIT_NANOS = 5_000_000L;
+
+    private final List<Sensor> sensors;
+    private final Service service;
+    private final Shard[] shards;
+    private final List<SampleRingBuffer.Handler> handlers = new CopyOnWriteArrayList<SampleRingBuffer.Handler>();
+    private final List<SamplePipeline.AlarmListener> alarmListeners = new CopyOnWriteArrayList<SamplePipeline.AlarmListener>();
+    //null without derived channels
+    private DerivedChannels derived;
+    private final SampleRingBuffer.Handler releaseDerived = this::release;
+
+    //sorted batches handed from the readers to the merger
+    private final ConcurrentLinkedQueue<Run> arrivals = new ConcurrentLinkedQueue<Run>();
+    private final LongAdder late = new LongAdder();
+    private volatile long released;
+    //time of the newest datapoint released so far
+    private volatile long releasedTime = Long.MIN_VALUE;
+    private volatile long globalWatermark = Long.MIN_VALUE;
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private Thread merger;
+    private volatile boolean running;
+
+    /**
+     *
+     * @param sensors every sensor of the shared config, in config order, already registered with the service
+     * @param shards number of shards the sensors are split into
+     * @param service service that archives the merged datapoints and evaluates the alarm rules
+     */
+    public Aggregator(List<Sensor> sensors, int shards, Service service) {
+        this.sensors = sensors;
+        this.service = service;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    /**
+     *
+     * @param handler receives every released datapoint in time order, on the merger thread
+     */
+    public void addHandler(SampleRingBuffer.Handler handler) {
+        handlers.add(handler);
+    }
+
+    /**
+     * Computes derived channels from the merged datapoints; must be called before start.
+     *
+     * @param derived derived channels whose sensors are registered with the service
+     */
+    public void setDerivedChannels(DerivedChannels derived) {
+        this.derived = derived;
+    }
+
+    /**
+     *
+     * @param listener notified of every global alarm, on the merger thread
+     */
+    public void addAlarmListener(SamplePipeline.AlarmListener listener) {
+        alarmListeners.add(listener);
+    }
+
+    /**
+     * Starts accepting shards and merging.
+     *
+     * @param address address the shards connect to
+     * @throws IOException if the address cannot be bound
+     */
+    public void start(InetSocketAddress address) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        running = true;
+        acceptor = new Thread(this::accept, "aggregator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        merger = new Thread(this::merge, "merger");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /**
+     * Stops accepting and merging; datapoints not yet released are discarded.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        LockSupport.unpark(merger);
+        try {
+            merger.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until every shard has ended its stream and all is released.
+     *
+     * @param timeoutNanos longest time to wait
+     * @return whether everything was released in time
+     */
+    public boolean awaitEnd(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        //the merger only reaches the end once every shard ended and everything is released
+        while (globalWatermark != Long.MAX_VALUE) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(MERGE_WAIT_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return number of datapoints released into the global view
+     */
+    public long getReleased() {
+        return released;
+    }
+
+    /**
+     *
+     * @return number of datapoints that arrived behind their shard's watermark or a datapoint already released
+     */
+    public long getLate() {
+        return late.sum();
+    }
+
+    /**
+     *
+     * @return epoch nanoseconds up to which the global view is complete
+     */
+    public long getWatermark() {
+        return globalWatermark;
+    }
+
+    /**
+     *
+     * @return number of shards currently connected
+     */
+    public int getConnectedShards() {
+        int connected = 0;
+        for (Shard shard : shards) {
+            connected += shard.connected ? 1 : 0;
+        }
+        return connected;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Thread reader = new Thread(() -> read(channel), "shard-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the batches of one shard connection. Runs on its own thread.
+     */
+    private void read(SocketChannel channel) {
+        Shard shard = null;
+        int index = -1;
+        try {
+            ByteBuffer hello = readFully(channel, ByteBuffer.allocate(12));
+            int magic = hello.getInt();
+            index = hello.getInt();
+            int channels = hello.getInt();
+            if (magic != ShardUplink.MAGIC || index < 0 || index >= shards.length || channels != sensors.size()) {
+                System.err.println("rejecting shard " + index + ": it was not started with the same config and shard count");
+                channel.close();
+                return;
+            }
+            synchronized (shards[index]) {
+                if (shards[index].connected) {
+                    System.err.println("rejecting a second connection for shard " + index);
+                    channel.close();
+                    return;
+                }
+                shard = shards[index];
+                shard.connected = true;
+                shard.channel = channel;
+                //the watermark of the previous connection, Long.MAX_VALUE once it was lost, promises nothing for this one
+                shard.watermark = Long.MIN_VALUE;
+            }
+            ByteBuffer header = ByteBuffer.allocate(ShardUplink.HEADER_BYTES);
+            ByteBuffer body = ByteBuffer.allocate(1 << 16);
+            while (true) {
+                header.clear();
+                readFully(channel, header);
+                int count = header.getInt();
+                long watermark = header.getLong();
+                if (body.capacity() < count * ShardUplink.SAMPLE_BYTES) {
+                    body = ByteBuffer.allocate(count * ShardUplink.SAMPLE_BYTES);
+                }
+                body.clear();
+                body.limit(count * ShardUplink.SAMPLE_BYTES);
+                readFully(channel, body);
+                if (count > 0) {
+                    Run run = new Run(count);
+                    for (int i = 0; i < count; i++) {
+                        run.channel[i] = body.getInt();
+                        run.time[i] = body.getLong();
+                        run.value[i] = body.getDouble();
+                        if (run.time[i] < Math.max(shard.watermark, releasedTime)) {
+                            late.increment();
+                        }
+                    }
+                    run.sort();
+                    arrivals.add(run);
+                }
+                //published after the run, so the merger never sees the watermark without it
+                shard.watermark = Math.max(shard.watermark, watermark);
+                LockSupport.unpark(merger);
+                if (watermark == Long.MAX_VALUE) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("connection of shard " + index + " lost: " + e);
+            }
+        } finally {
+            if (shard != null) {
+                //a shard that is gone must not hold back the others
+                shard.watermark = Long.MAX_VALUE;
+                LockSupport.unpark(merger);
+                shard.close();
+            }
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("connection closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Releases everything below the global watermark in time order. Runs on the merger thread.
+     */
+    private void merge() {
+        PriorityQueue<Run> heap = new PriorityQueue<Run>((a, b) -> Long.compare(a.time[a.position], b.time[b.position]));
+        while (running) {
+            //watermarks first: a run is always queued before its shard's watermark moves past it
+            long watermark = Long.MAX_VALUE;
+            for (Shard shard : shards) {
+                watermark = Math.min(watermark, shard.watermark);
+            }
+            Run run;
+            while ((run = arrivals.poll()) != null) {
+                heap.add(run);
+            }
+            long count = released;
+            long newest = releasedTime;
+            try {
+                while (!heap.isEmpty() && heap.peek().time[heap.peek().position] < watermark) {
+                    run = heap.poll();
+                    int i = run.position++;
+                    boolean more = run.position < run.time.length;
+                    if (more) {
+                        heap.add(run);
+                    }
+                    boolean endOfBatch = heap.isEmpty() || heap.peek().time[heap.peek().position] >= watermark;
+                    release(sensors.get(run.channel[i]), run.time[i], run.value[i], endOfBatch);
+                    newest = Math.max(newest, run.time[i]);
+                    count++;
+                }
+            } catch (RuntimeException e) {
+                //one bad datapoint must not stop the global view
+                e.printStackTrace();
+            }
+            released = count;
+            releasedTime = newest;
+            globalWatermark = watermark;
+            LockSupport.parkNanos(MERGE_WAIT_NANOS);
+        }
+    }
+
+    private void release(Sensor sensor, long time, double value, boolean endOfBatch) {
+        Alarm alarm = service.measure(sensor, value, time);
+        for (SampleRingBuffer.Handler handler : handlers) {
+            handler.onSample(sensor, time, value, endOfBatch);
+        }
+        if (alarm != Alarm.GOOD) {
+            for (SamplePipeline.AlarmListener listener : alarmListeners) {
+                listener.onAlarm(sensor, time, value, alarm);
+            }
+        }
+        if (derived != null) {
+            //their own values come back here, but do not make anything dirty
+            derived.update(sensor, time, value, releaseDerived);
+        }
+    }
+
+    /**
+     * Connection state of one shard.
+     */
+    private static class Shard {
+        //no datapoint older than this will arrive; MIN_VALUE until the shard connects
+        volatile long watermark = Long.MIN_VALUE;
+        volatile boolean connected;
+        SocketChannel channel;
+
+        synchronized void close() {
+            connected = false;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * One batch of a shard, sorted by time, with the merger's position in it.
+     */
+    private static class Run {
+        final int[] channel;
+        final long[] time;
+        final double[] value;
+        int position;
+
+        Run(int count) {
+            this.channel = new int[count];
+            this.time = new long[count];
+            this.value = new double[count];
+        }
+
+        /**
+         * Sorts by time, stably. A batch is a few ascending stretches, one
+         * per sensor and tick, so a natural merge sort needs few passes.
+         */
+        void sort() {
+            int n = time.length;
+            int[] channelTemp = new int[n];
+            long[] timeTemp = new long[n];
+            double[] valueTemp = new double[n];
+            int[] c = channel;
+            long[] t = time;
+            double[] v = value;
+            while (runEnd(t, 0, n) < n) {
+                int out = 0;
+                int start = 0;
+                while (start < n) {
+                    int middle = runEnd(t, start, n);
+                    int end = middle < n ? runEnd(t, middle, n) : n;
+                    //merge [start, middle) and [middle, end) into the temporary arrays
+                    int i = start;
+                    int j = middle;
+                    while (i < middle || j < end) {
+                        int from = j >= end || i < middle && t[i] <= t[j] ? i++ : j++;
+                        channelTemp[out] = c[from];
+                        timeTemp[out] = t[from];
+                        valueTemp[out] = v[from];
+                        out++;
+                    }
+                    start = end;
+                }
+                int[] cSwap = c;
+                c = channelTemp;
+                channelTemp = cSwap;
+                long[] tSwap = t;
+                t = timeTemp;
+                timeTemp = tSwap;
+                double[] vSwap = v;
+                v = valueTemp;
+                valueTemp = vSwap;
+            }
+            if (t != time) {
+                System.arraycopy(c, 0, channel, 0, n);
+                System.arraycopy(t, 0, time, 0, n);
+                System.arraycopy(v, 0, value, 0, n);
+            }
+        }
+
+        private static int runEnd(long[] t, int start, int n) {
+            int end = start + 1;
+            while (end < n && t[end - 1] <= t[end]) {
+                end++;
+            }
+            return end;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("usage: java Aggregator <config> <shards> [port] [livePort]");
+            System.exit(1);
+        }
+        SensorRegistry registry = SensorRegistry.load(Paths.get(args[0]));
+        int shardCount = Integer.parseInt(args[1]);
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+        int livePort = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_LIVE_PORT;
+        List<Sensor> sensors = registry.getSensors();
+
+        Service service = new Service();
+        for (Sensor sensor : sensors) {
+            service.register(sensor, registry.createRule(sensor));
+        }
+        service.enableRetention(600_000_000_000L, 3600, 1440);
+        try {
+            service.getMetrics().registerMBeans();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        Aggregator aggregator = new Aggregator(sensors, shardCount, service);
+        DerivedChannels derived = registry.createDerivedChannels();
+        if (derived != null) {
+            for (Sensor sensor : derived.getChannels()) {
+                sensor.setState(State.MEASURING);
+            }
+            aggregator.setDerivedChannels(derived);
+        }
+        LiveServer live = new LiveServer(sensors, new InetSocketAddress(InetAddress.getLoopbackAddress(), livePort), Collector.FRAMES_PER_SECOND);
+        aggregator.addHandler(live);
+        aggregator.addAlarmListener(live);
+        live.start();
+        aggregator.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        System.out.println("waiting for " + shardCount + " shards on port " + port + ", merged view on ws://localhost:" + livePort + "/live");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            aggregator.shutdown();
+            live.shutdown();
+            try {
+                service.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "aggregator-shutdown"));
+
+        long reported = 0;
+        long alarms = 0;
+        while (true) {
+            Thread.sleep(1000);
+            long released = aggregator.getReleased();
+            long watermark = aggregator.getWatermark();
+            long newAlarms = service.getMetrics().getAlarms();
+            System.out.printf("%d/%d shards, %,d samples/s merged, watermark %s, %,d late, %,d alarms%n",
+                    aggregator.getConnectedShards(), shardCount, released - reported,
+                    watermark == Long.MIN_VALUE ? "pending" : watermark == Long.MAX_VALUE ? "ended"
+                            : String.format("%.3f s behind", (service.now() - watermark) / 1e9),
+                    aggregator.getLate(), newAlarms - alarms);
+            reported = released;
+            alarms = newAlarms;
+        }
+    }
+}
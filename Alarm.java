@@ -0,0 +1,16 @@
+/**
+ * Result of evaluating a datapoint against its sensor's alarm rule.
+ * 
+ * GOOD: The datapoint is acceptable.
+ * TOO_LOW: The datapoint lies below the sensor's allowed range.
+ * TOO_HIGH: The datapoint lies above the sensor's allowed range.
+ * TOO_FAST: The value changed faster than the allowed rate.
+ * ANOMALY: The value is within range but an anomaly detector flagged it.
+ */
+enum Alarm {
+    GOOD,
+    TOO_LOW,
+    TOO_HIGH,
+    TOO_FAST,
+    ANOMALY
+}
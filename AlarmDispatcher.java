@@ -0,0 +1,333 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes alarms off the alarm consumer's thread and turns a storm of them
+ * into a few notifications.
+ *
+ * On the alarm consumer's thread only repeats are filtered: a datapoint
+ * with the same alarm as its channel's previous one, less than
+ * QUIET_NANOS after it, belongs to the same episode and is only counted.
+ * Every new episode is queued without blocking. The dispatcher thread
+ * pauses the sensor right away, then collects the episodes arriving
+ * within a grouping window into one notification for the listeners and
+ * the alarm log. A token bucket limits the notifications: while it is
+ * empty, further episodes join the waiting notification, so during a
+ * storm every alarm is still delivered, just in fewer and larger groups.
+ */
+public class AlarmDispatcher implements SamplePipeline.AlarmListener {
+    //repeats of an alarm closer together than this are one episode
+    static final long QUIET_NANOS = 10_000_000_000L;
+    static final long GROUP_WINDOW_NANOS = 250_000_000L;
+    static final int QUEUE_CAPACITY = 4096;
+    //longest the dispatcher waits for an alarm before it checks whether it is shut down
+    static final long POLL_NANOS = 100_000_000L;
+
+    /**
+     * Notified on the dispatcher's thread of each group of alarms.
+     */
+    public interface Listener {
+        void onAlarms(List<Event> alarms);
+    }
+
+    /**
+     * First datapoint of an alarm episode of one sensor.
+     */
+    public static class Event {
+        final Sensor sensor;
+        final long timeNanos;
+        final double value;
+        final Alarm alarm;
+        //whether the dispatcher paused the sensor for this alarm
+        boolean paused;
+
+        Event(Sensor sensor, long timeNanos, double value, Alarm alarm) {
+            this.sensor = sensor;
+            this.timeNanos = timeNanos;
+            this.value = value;
+            this.alarm = alarm;
+        }
+
+        public Sensor getSensor() {
+            return sensor;
+        }
+
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public Alarm getAlarm() {
+            return alarm;
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+    }
+
+    private final boolean autoPause;
+    private final double tokensPerNanosecond;
+    private final double burst;
+    private final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(QUEUE_CAPACITY);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    //episode of each channel; written by the alarm consumer only
+    private final byte[] lastAlarm;
+    private final long[] lastTime;
+    //set once the dispatcher has paused the sensor for the channel's current episode
+    private final AtomicIntegerArray paused;
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    //dispatcher thread only
+    private double tokens;
+    private long refilledAt;
+    private long reportedSuppressed;
+    private BufferedWriter log;
+
+    private final AtomicLong notifications = new AtomicLong();
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    /**
+     *
+     * @param sensors sensors whose alarms are deduplicated, already registered with the service
+     * @param autoPause whether an alarm puts its sensor on IDLE
+     * @param notificationsPerSecond long-run limit on notifications
+     * @param burst notifications allowed back to back after a quiet spell
+     */
+    public AlarmDispatcher(List<Sensor> sensors, boolean autoPause, double notificationsPerSecond, int burst) {
+        int channels = 0;
+        for (Sensor sensor : sensors) {
+            channels = Math.max(channels, sensor.getChannel() + 1);
+        }
+        this.lastAlarm = new byte[channels];
+        this.lastTime = new long[channels];
+        this.paused = new AtomicIntegerArray(channels);
+        this.autoPause = autoPause;
+        this.tokensPerNanosecond = notificationsPerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     *
+     * @param listener notified of every group of alarms from now on
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Appends every notification to a text file, one line per alarm.
+     *
+     * @param file log to append to, created if missing
+     * @throws IOException
+     */
+    public void openLog(Path file) throws IOException {
+        log = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public void onAlarm(Sensor sensor, long timeNanos, double value, Alarm alarm) {
+        int ch = sensor.getChannel();
+        if (ch >= 0 && ch < lastAlarm.length) {
+            boolean repeat = lastAlarm[ch] == alarm.ordinal() && timeNanos - lastTime[ch] < QUIET_NANOS;
+            //a sensor resumed after its pause starts a new episode even while the alarm repeats
+            if (repeat && autoPause && sensor.getState() == State.MEASURING && paused.get(ch) == 1) {
+                repeat = false;
+            }
+            lastAlarm[ch] = (byte) alarm.ordinal();
+            lastTime[ch] = timeNanos;
+            if (repeat) {
+                //single writer, so an ordered store is enough
+                suppressed.lazySet(suppressed.get() + 1);
+                return;
+            }
+            paused.set(ch, 0);
+        }
+        if (!queue.offer(new Event(sensor, timeNanos, value, alarm))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts the dispatcher thread.
+     */
+    public void start() {
+        running = true;
+        refilledAt = System.nanoTime();
+        dispatcher = new Thread(this::dispatch, "alarm-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Delivers what is still waiting, regardless of the rate limit, and
+     * closes the log. The pipeline must be shut down first.
+     *
+     * The dispatcher thread notices within POLL_NANOS; it is not
+     * interrupted, as an interrupt would close the log's channel under a
+     * write and lose the last group.
+     */
+    public void shutdown() {
+        running = false;
+        if (dispatcher != null) {
+            try {
+                dispatcher.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return datapoints filtered out as repeats of an ongoing alarm
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     *
+     * @return alarm episodes lost because the dispatcher fell a full queue behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     *
+     * @return notifications delivered so far
+     */
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    private void dispatch() {
+        List<Event> group = new ArrayList<Event>();
+        long groupEnd = 0;
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                long wait = group.isEmpty() ? POLL_NANOS
+                        : Math.min(POLL_NANOS, Math.max(groupEnd, nextTokenAt(now)) - now);
+                Event event = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                now = System.nanoTime();
+                if (event != null) {
+                    if (group.isEmpty()) {
+                        groupEnd = now + GROUP_WINDOW_NANOS;
+                    }
+                    pause(event);
+                    group.add(event);
+                }
+                //checked on every turn, so a constant stream of alarms cannot hold a group back
+                if (!group.isEmpty() && now >= groupEnd && takeToken(now)) {
+                    deliver(group);
+                    group = new ArrayList<Event>();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        Event event;
+        while ((event = queue.poll()) != null) {
+            pause(event);
+            group.add(event);
+        }
+        if (!group.isEmpty()) {
+            deliver(group);
+        }
+    }
+
+    private void pause(Event event) {
+        Sensor sensor = event.sensor;
+        if (!autoPause) {
+            return;
+        }
+        if (sensor.getState() == State.MEASURING) {
+            sensor.setState(State.IDLE);
+            event.paused = true;
+        }
+        //also when the sensor was paused already, so resuming it starts a new episode
+        int ch = sensor.getChannel();
+        if (ch >= 0 && ch < paused.length()) {
+            paused.set(ch, 1);
+        }
+    }
+
+    private long nextTokenAt(long now) {
+        refill(now);
+        return tokens >= 1 ? now : now + (long) Math.ceil((1 - tokens) / tokensPerNanosecond);
+    }
+
+    private boolean takeToken(long now) {
+        refill(now);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNanosecond);
+        refilledAt = now;
+    }
+
+    private void deliver(List<Event> group) {
+        notifications.incrementAndGet();
+        for (Listener listener : listeners) {
+            try {
+                listener.onAlarms(group);
+            } catch (RuntimeException e) {
+                //a failing listener must not stop the alarms
+                e.printStackTrace();
+            }
+        }
+        if (log != null) {
+            try {
+                writeLog(group);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeLog(List<Event> group) throws IOException {
+        long repeats = suppressed.get();
+        log.write(Instant.now() + " " + group.size() + (group.size() == 1 ? " alarm" : " alarms")
+                + ", " + (repeats - reportedSuppressed) + " repeats suppressed");
+        log.newLine();
+        reportedSuppressed = repeats;
+        for (Event event : group) {
+            String unit = event.sensor.getUnit().isEmpty() ? "" : " " + event.sensor.getUnit();
+            log.write("  " + Instant.ofEpochSecond(0, event.timeNanos) + " " + event.sensor.getName() + " " + event.alarm
+                    + " " + event.value + unit + (event.paused ? " paused" : ""));
+            log.newLine();
+        }
+        log.flush();
+    }
+}
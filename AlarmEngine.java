@@ -0,0 +1,323 @@
+import java.util.Arrays;
+
+/**
+ * Evaluates every channel's alarm rule from flat primitive tables, so a
+ * datapoint is checked without allocating and without chasing pointers.
+ *
+ * Each channel compiles to one slot in the parallel arrays below. Besides
+ * the allowed range a rule can have a deadband (an alarm only clears once
+ * the value is back inside the range by that margin), a rate-of-change
+ * limit measured against the oldest datapoint in a small lookback window,
+ * and N-of-M debouncing over a bit history of the last M datapoints.
+ * Anomaly detectors are the one part kept as objects, since each has state
+ * of its own; they are updated with every datapoint and a channel without
+ * any skips them. Evaluation is meant for a single thread, such as the alarm consumer.
+ *
+ * For many channels sampled together there is a batch path: screen
+ * compares a whole tick against the min and max tables in one
+ * branch-free pass and returns a bitmask of the channels out of range,
+ * and evaluateBatch uses it to run the full rule only where it can
+ * matter, i.e. on channels that are out of range, already in
+ * alarm, or have state that every datapoint must update (rate of change,
+ * anomaly detectors, debouncing over several datapoints). The screen runs
+ * on the Vector API (VectorScreen) when the JVM has the
+ * jdk.incubator.vector module, and as a scalar loop otherwise.
+ */
+public class AlarmEngine {
+    static final Alarm[] ALARMS = Alarm.values();
+
+    /**
+     * Compares the values of up to 64 channels against their ranges.
+     */
+    interface RangeScreen {
+        /**
+         *
+         * @param values datapoint of channel ch at index ch
+         * @param min lower bound of every channel
+         * @param max upper bound of every channel
+         * @param base first channel, a multiple of 64
+         * @param end channel after the last, at most base + 64
+         * @return bit ch - base set for every channel below min or above max
+         */
+        long screen(double[] values, double[] min, double[] max, int base, int end);
+    }
+
+    private static final RangeScreen SCALAR_SCREEN = AlarmEngine::screenScalar;
+    //null when the Vector API is not available
+    private static final RangeScreen VECTOR_SCREEN = loadVectorScreen();
+
+    private final int lookback;
+    private int channels;
+
+    //compiled rules
+    private double[] min = new double[16];
+    private double[] max = new double[16];
+    private double[] deadband = new double[16];
+    private double[] maxRate = new double[16];
+    private int[] debounceN = new int[16];
+    private long[] debounceMask = new long[16];
+    private AnomalyDetector[][] detectors = new AnomalyDetector[16][];
+    //channels whose rule has to see every datapoint, one bit per channel
+    private long[] stateful = new long[1];
+
+    //evaluation state
+    private byte[] state = new byte[16];
+    private long[] badHistory = new long[16];
+    private long[] windowTimes;
+    private double[] windowValues;
+    private int[] windowPos = new int[16];
+    private int[] windowCount = new int[16];
+    //channels currently in alarm, one bit per channel
+    private long[] alarmed = new long[1];
+    private RangeScreen rangeScreen = VECTOR_SCREEN != null ? VECTOR_SCREEN : SCALAR_SCREEN;
+
+    /**
+     *
+     * @param lookback number of datapoints kept per channel for the rate-of-change check
+     */
+    public AlarmEngine(int lookback) {
+        this.lookback = lookback;
+        this.windowTimes = new long[16 * lookback];
+        this.windowValues = new double[16 * lookback];
+    }
+
+    public AlarmEngine() {
+        this(16);
+    }
+
+    /**
+     * Compiles a rule into the tables.
+     *
+     * @param rule alarm settings of the channel
+     * @return index of the channel to pass to evaluate
+     */
+    public int addChannel(AlarmRule rule) {
+        if (channels == min.length) {
+            grow();
+        }
+        int ch = channels++;
+        min[ch] = rule.getMin();
+        max[ch] = rule.getMax();
+        deadband[ch] = rule.getDeadband();
+        maxRate[ch] = rule.getMaxRate();
+        debounceN[ch] = rule.getDebounceN();
+        debounceMask[ch] = rule.getDebounceM() == 64 ? -1L : (1L << rule.getDebounceM()) - 1;
+        detectors[ch] = rule.getDetectors().toArray(new AnomalyDetector[0]);
+        if (maxRate[ch] != Double.POSITIVE_INFINITY || detectors[ch].length > 0 || rule.getDebounceM() > 1) {
+            stateful[ch >>> 6] |= 1L << ch;
+        }
+        return ch;
+    }
+
+    /**
+     *
+     * @return number of compiled channels
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Feeds a channel's next datapoint through its rule.
+     *
+     * @param ch index returned by addChannel
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @return the channel's alarm state after this datapoint
+     */
+    public Alarm evaluate(int ch, long timeNanos, double value) {
+        int current = state[ch];
+
+        //hysteresis: an active alarm holds until the value is back past the deadband
+        double low = current == Alarm.TOO_LOW.ordinal() ? min[ch] + deadband[ch] : min[ch];
+        double high = current == Alarm.TOO_HIGH.ordinal() ? max[ch] - deadband[ch] : max[ch];
+
+        //every detector sees every datapoint, so its state stays continuous
+        boolean anomalous = false;
+        for (AnomalyDetector detector : detectors[ch]) {
+            anomalous |= detector.update(timeNanos, value);
+        }
+
+        int raw;
+        if (value < low) {
+            raw = Alarm.TOO_LOW.ordinal();
+        } else if (value > high) {
+            raw = Alarm.TOO_HIGH.ordinal();
+        } else if (Math.abs(rateOfChange(ch, timeNanos, value)) > maxRate[ch]) {
+            raw = Alarm.TOO_FAST.ordinal();
+        } else if (anomalous) {
+            raw = Alarm.ANOMALY.ordinal();
+        } else {
+            raw = Alarm.GOOD.ordinal();
+        }
+        remember(ch, timeNanos, value);
+
+        long history = (badHistory[ch] << 1) | (raw != 0 ? 1 : 0);
+        badHistory[ch] = history;
+        if (raw == 0) {
+            current = 0;
+        } else if (current != 0 || Long.bitCount(history & debounceMask[ch]) >= debounceN[ch]) {
+            current = raw;
+        }
+        state[ch] = (byte) current;
+        if (current != 0) {
+            alarmed[ch >>> 6] |= 1L << ch;
+        } else {
+            alarmed[ch >>> 6] &= ~(1L << ch);
+        }
+        return ALARMS[current];
+    }
+
+    /**
+     * Compares one datapoint of every channel against the allowed ranges,
+     * without deadbands and without changing any state.
+     *
+     * @param values datapoint of channel ch at index ch, for all channels
+     * @param outOfRange receives one bit per channel, set where the value is
+     *                   below min or above max; needs (channels + 63) / 64 longs
+     * @return number of channels out of range
+     */
+    public int screen(double[] values, long[] outOfRange) {
+        int count = 0;
+        for (int base = 0; base < channels; base += 64) {
+            long bits = rangeScreen.screen(values, min, max, base, Math.min(base + 64, channels));
+            outOfRange[base >>> 6] = bits;
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    private static long screenScalar(double[] values, double[] min, double[] max, int base, int end) {
+        long bits = 0;
+        //no branches on the values: each comparison becomes a flag that is shifted into place
+        for (int ch = base; ch < end; ch++) {
+            double value = values[ch];
+            bits |= (value < min[ch] | value > max[ch] ? 1L : 0L) << ch;
+        }
+        return bits;
+    }
+
+    /**
+     *
+     * @param vector whether screen uses the Vector API, if it is available
+     * @return whether screen now uses the Vector API
+     */
+    boolean useVectorApi(boolean vector) {
+        rangeScreen = vector && VECTOR_SCREEN != null ? VECTOR_SCREEN : SCALAR_SCREEN;
+        return rangeScreen == VECTOR_SCREEN;
+    }
+
+    private static RangeScreen loadVectorScreen() {
+        try {
+            RangeScreen vector = (RangeScreen) Class.forName("VectorScreen").getDeclaredConstructor().newInstance();
+            //checked once against the scalar loop, across a whole vector and a remainder
+            double[] values = new double[67];
+            double[] min = new double[67];
+            double[] max = new double[67];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = i % 3 - 1;
+                max[i] = 0.5;
+            }
+            values[66] = Double.NaN;
+            if (vector.screen(values, min, max, 0, 64) == screenScalar(values, min, max, 0, 64)
+                    && vector.screen(values, min, max, 64, 67) == screenScalar(values, min, max, 64, 67)) {
+                return vector;
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            //the module is not there: --add-modules jdk.incubator.vector was not given
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates the datapoints of a batch, at most one per channel and each
+     * with its own time, such as one pass of the alarm consumer. The result
+     * is the same as calling evaluate for each of them, but only the words
+     * of 64 channels holding a datapoint are screened, and channels whose
+     * datapoint is in range, that are not in alarm and whose rule keeps no
+     * per-datapoint state are skipped after the screen.
+     *
+     * @param times time of the datapoint of channel ch at index ch
+     * @param values datapoint of channel ch at index ch
+     * @param present one bit per channel, set where the batch has a datapoint
+     * @param raised receives one bit per channel, set where the batch has a
+     *               datapoint and the channel is in alarm afterwards; as
+     *               long as present
+     * @return number of channels in raised
+     */
+    public int evaluateBatch(long[] times, double[] values, long[] present, long[] raised) {
+        int count = 0;
+        for (int word = 0; word < present.length; word++) {
+            long has = present[word];
+            if (has == 0) {
+                raised[word] = 0;
+                continue;
+            }
+            int base = word << 6;
+            //channels without a datapoint hold stale values, which the mask discards
+            long outOfRange = rangeScreen.screen(values, min, max, base, Math.min(base + 64, channels));
+            long pending = has & (outOfRange | alarmed[word] | stateful[word]);
+            while (pending != 0) {
+                int ch = base + Long.numberOfTrailingZeros(pending);
+                pending &= pending - 1;
+                evaluate(ch, times[ch], values[ch]);
+            }
+            raised[word] = has & alarmed[word];
+            count += Long.bitCount(raised[word]);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param ch index returned by addChannel
+     * @return the channel's current alarm state
+     */
+    public Alarm getState(int ch) {
+        return ALARMS[state[ch]];
+    }
+
+    private double rateOfChange(int ch, long timeNanos, double value) {
+        int count = windowCount[ch];
+        if (count == 0) {
+            return 0;
+        }
+        //oldest entry of the circular window
+        int oldest = count < lookback ? 0 : windowPos[ch];
+        int slot = ch * lookback + oldest;
+        long elapsed = timeNanos - windowTimes[slot];
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (value - windowValues[slot]) * 1e9 / elapsed;
+    }
+
+    private void remember(int ch, long timeNanos, double value) {
+        int slot = ch * lookback + windowPos[ch];
+        windowTimes[slot] = timeNanos;
+        windowValues[slot] = value;
+        windowPos[ch] = (windowPos[ch] + 1) % lookback;
+        if (windowCount[ch] < lookback) {
+            windowCount[ch]++;
+        }
+    }
+
+    private void grow() {
+        int size = min.length * 2;
+        min = Arrays.copyOf(min, size);
+        max = Arrays.copyOf(max, size);
+        deadband = Arrays.copyOf(deadband, size);
+        maxRate = Arrays.copyOf(maxRate, size);
+        debounceN = Arrays.copyOf(debounceN, size);
+        debounceMask = Arrays.copyOf(debounceMask, size);
+        detectors = Arrays.copyOf(detectors, size);
+        stateful = Arrays.copyOf(stateful, (size + 63) >>> 6);
+        alarmed = Arrays.copyOf(alarmed, (size + 63) >>> 6);
+        state = Arrays.copyOf(state, size);
+        badHistory = Arrays.copyOf(badHistory, size);
+        windowTimes = Arrays.copyOf(windowTimes, size * lookback);
+        windowValues = Arrays.copyOf(windowValues, size * lookback);
+        windowPos = Arrays.copyOf(windowPos, size);
+        windowCount = Arrays.copyOf(windowCount, size);
+    }
+}
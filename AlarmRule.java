@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Alarm settings of one sensor before they are compiled into an AlarmEngine.
+ * 
+ * Only the allowed range is required; the defaults switch off the deadband
+ * and rate-of-change checks, run no anomaly detectors and raise an alarm
+ * on the first bad datapoint.
+ */
+public class AlarmRule {
+    private double min;
+    private double max;
+    private double deadband = 0;
+    private double maxRate = Double.POSITIVE_INFINITY;
+    private int debounceN = 1;
+    private int debounceM = 1;
+    private final List<AnomalyDetector> detectors = new ArrayList<AnomalyDetector>();
+
+    public AlarmRule(double min, double max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * 
+     * @return lower bound of the allowed range
+     */
+    public double getMin() {
+        return this.min;
+    }
+
+    /**
+     * 
+     * @return upper bound of the allowed range
+     */
+    public double getMax() {
+        return this.max;
+    }
+
+    /**
+     * 
+     * @return how far back inside the range a value must return to clear an alarm
+     */
+    public double getDeadband() {
+        return this.deadband;
+    }
+
+    /**
+     * 
+     * @return largest allowed change per second over the lookback window
+     */
+    public double getMaxRate() {
+        return this.maxRate;
+    }
+
+    /**
+     * 
+     * @return number of bad datapoints needed to raise an alarm
+     */
+    public int getDebounceN() {
+        return this.debounceN;
+    }
+
+    /**
+     * 
+     * @return number of most recent datapoints considered for debouncing
+     */
+    public int getDebounceM() {
+        return this.debounceM;
+    }
+
+    /**
+     * 
+     * @param deadband how far back inside the range a value must return to clear an alarm
+     */
+    public void setDeadband(double deadband) {
+        this.deadband = deadband;
+    }
+
+    /**
+     * 
+     * @param maxRate largest allowed change per second over the lookback window
+     */
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * 
+     * @return anomaly detectors run on every datapoint
+     */
+    public List<AnomalyDetector> getDetectors() {
+        return this.detectors;
+    }
+
+    /**
+     * Runs a detector on every datapoint; an anomaly within the allowed
+     * range raises Alarm.ANOMALY. The detector must not be shared with
+     * another rule.
+     * 
+     * @param detector detector of this sensor alone
+     */
+    public void addDetector(AnomalyDetector detector) {
+        this.detectors.add(detector);
+    }
+
+    /**
+     * Raise an alarm only once n of the last m datapoints were bad.
+     * 
+     * @param n number of bad datapoints needed to raise an alarm
+     * @param m number of most recent datapoints considered, at most 64
+     */
+    public void setDebounce(int n, int m) {
+        if (n < 1 || n > m || m > 64) {
+            throw new IllegalArgumentException("debounce needs 1 <= n <= m <= 64");
+        }
+        this.debounceN = n;
+        this.debounceM = m;
+    }
+}
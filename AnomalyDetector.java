@@ -0,0 +1,59 @@
+/**
+ * Streaming check of one sensor for behaviour that is unusual although it
+ * stays inside the allowed range, such as a slow drift or a sudden jump.
+ *
+ * A detector sees every datapoint of its sensor once, in order, and keeps
+ * fixed-size state, so each update is O(1) in time and memory. Detectors
+ * are stateful: every sensor needs instances of its own. They are updated
+ * by the thread evaluating the sensor's alarm rule.
+ */
+public interface AnomalyDetector {
+
+    /**
+     * Feeds the next datapoint of the sensor.
+     *
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @return whether the datapoint is anomalous
+     */
+    boolean update(long timeNanos, double value);
+
+    /**
+     * Creates a detector from its config notation: {@code zscore:<window>:<threshold>},
+     * {@code cusum:<k>:<h>[:<baseline>]} or {@code ewma:<lambda>:<width>[:<baseline>]}.
+     *
+     * @param spec detector kind and parameters separated by colons
+     * @return a new detector
+     * @throws IllegalArgumentException if the notation is not understood
+     */
+    static AnomalyDetector parse(String spec) {
+        String[] fields = spec.trim().split(":");
+        try {
+            switch (fields[0]) {
+                case "zscore":
+                    if (fields.length == 3) {
+                        return new ZScoreDetector(Integer.parseInt(fields[1]), Double.parseDouble(fields[2]));
+                    }
+                    break;
+                case "cusum":
+                    if (fields.length == 3 || fields.length == 4) {
+                        return new CusumDetector(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                                fields.length == 4 ? Integer.parseInt(fields[3]) : CusumDetector.DEFAULT_BASELINE);
+                    }
+                    break;
+                case "ewma":
+                    if (fields.length == 3 || fields.length == 4) {
+                        return new EwmaDetector(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                                fields.length == 4 ? Integer.parseInt(fields[3]) : EwmaDetector.DEFAULT_BASELINE);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number in detector " + spec, e);
+        }
+        throw new IllegalArgumentException("unknown detector " + spec
+                + "; expected zscore:<window>:<threshold>, cusum:<k>:<h>[:<baseline>] or ewma:<lambda>:<width>[:<baseline>]");
+    }
+}
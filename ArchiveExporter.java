@@ -0,0 +1,356 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes archives to disk, one sensor per task on a small thread pool.
+ *
+ * Every sensor gets a readable file, in the original text layout or as
+ * CSV, and a compressed .ts copy. Datapoints are streamed from the
+ * archive straight into a reusable direct ByteBuffer that is handed to a
+ * FileChannel whenever it fills up, so nothing is materialized and no
+ * String is built per line. Values are formatted by hand where that is
+ * exact (see appendValue), and the localized time text is formatted once
+ * per second and then copied as bytes.
+ *
+ * With retention, the datapoints already spilled from an archive are
+ * written ahead of those it still holds, and the rollups of every sensor
+ * go to a <sensor>.rollups.csv next to its files.
+ */
+public class ArchiveExporter {
+    static final int BUFFER_SIZE = 1 << 16;
+    //longest line either format produces, including the time text
+    static final int MAX_LINE = 128;
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000,
+            10_000_000, 100_000_000, 1_000_000_000};
+    private static final byte[] AT = " at ".getBytes();
+    private static final byte[] CSV_HEADER = "time_ns,value".getBytes();
+    private static final String ROLLUP_HEADER = "interval_s,start_ns,count,min,max,mean,first_alarm_ns";
+    //datapoints read from a spill file at a time
+    private static final int SPILL_BATCH = 1024;
+
+    /**
+     * Layout of the readable file.
+     */
+    public enum Format {
+        //"value at time", as saveToFile has always written it
+        TEXT(".txt"),
+        //a header, then "epoch nanoseconds,value" per line
+        CSV(".csv");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final Format format;
+    private final int threads;
+    private final Charset charset = Charset.defaultCharset();
+    private final byte[] lineSeparator = System.lineSeparator().getBytes(charset);
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final DateTimeFormatter timeFormat = DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM);
+
+    /**
+     *
+     * @param format layout of the readable file
+     * @param threads number of sensors written at the same time
+     */
+    public ArchiveExporter(Format format, int threads) {
+        this.format = format;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Writes every archive to the directory and waits until all are on disk.
+     *
+     * @param archives archives to write; each should not be appended to meanwhile
+     * @param directory directory the files are written to
+     * @throws IOException if any sensor could not be written
+     */
+    public void export(Collection<SensorArchive> archives, Path directory) throws IOException {
+        export(archives, null, directory);
+    }
+
+    /**
+     * Same as export(archives, directory) for archives under retention,
+     * adding what the compactor spilled and the rollups. Compaction waits
+     * until every file is written.
+     *
+     * @param archives archives to write; each should not be appended to meanwhile
+     * @param retention compactor of the archives, or null
+     * @param directory directory the files are written to
+     * @throws IOException if any sensor could not be written
+     */
+    public void export(Collection<SensorArchive> archives, RetentionCompactor retention, Path directory)
+            throws IOException {
+        if (retention == null) {
+            exportAll(archives, null, directory);
+            return;
+        }
+        synchronized (retention) {
+            exportAll(archives, retention, directory);
+        }
+    }
+
+    private void exportAll(Collection<SensorArchive> archives, RetentionCompactor retention, Path directory)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, archives.size())), r -> {
+            Thread thread = new Thread(r, "export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //one buffer per worker, reused for every sensor it writes
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (SensorArchive sensorArchive : archives) {
+                String name = sensorArchive.getName();
+                SpillFile spill = retention == null ? null : retention.getSpill(name);
+                tasks.add(pool.submit(() -> {
+                    write(sensorArchive, spill, directory.resolve(name + format.extension), buffers.get());
+                    writeSeries(sensorArchive, spill, directory.resolve(name + ".ts"));
+                    if (retention != null && retention.getSecondRollups(name) != null) {
+                        writeRollups(retention.getSecondRollups(name), retention.getMinuteRollups(name),
+                                directory.resolve(name + ".rollups.csv"), buffers.get());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while exporting", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the readable file of one archive.
+     *
+     * @param sensorArchive archive to write
+     * @param spill datapoints spilled from the archive, or null
+     * @param file file to create or replace
+     * @param buffer scratch buffer of at least MAX_LINE bytes
+     * @throws IOException
+     */
+    void write(SensorArchive sensorArchive, SpillFile spill, Path file, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.clear();
+            if (format == Format.CSV) {
+                buffer.put(CSV_HEADER).put(lineSeparator);
+            }
+            TimeText timeText = new TimeText();
+            long from = sensorArchive.firstIndex();
+            if (spill != null) {
+                long[] times = new long[SPILL_BATCH];
+                double[] values = new double[SPILL_BATCH];
+                long size = spill.size();
+                for (long position = 0; position < size; ) {
+                    int count = spill.read(position, times, values);
+                    for (int i = 0; i < count; i++) {
+                        if (buffer.remaining() < MAX_LINE) {
+                            drain(channel, buffer);
+                        }
+                        appendLine(buffer, times[i], values[i], timeText);
+                    }
+                    position += count;
+                }
+                from = spill.getArchiveIndex();
+            }
+            long end = sensorArchive.size();
+            for (long i = from; i < end; i++) {
+                if (buffer.remaining() < MAX_LINE) {
+                    drain(channel, buffer);
+                }
+                appendLine(buffer, sensorArchive.getTime(i), sensorArchive.getValue(i), timeText);
+            }
+            drain(channel, buffer);
+        }
+    }
+
+    private void appendLine(ByteBuffer buffer, long time, double value, TimeText timeText) {
+        if (format == Format.CSV) {
+            appendLong(buffer, time);
+            buffer.put((byte) ',');
+            appendValue(buffer, value);
+        } else {
+            long second = Math.floorDiv(time, 1_000_000_000L);
+            if (second != timeText.second) {
+                //the medium time style shows whole seconds, so one formatting serves the whole second
+                timeText.text = LocalTime.ofInstant(Instant.ofEpochSecond(second), zone).format(timeFormat).getBytes(charset);
+                timeText.second = second;
+            }
+            appendValue(buffer, value);
+            buffer.put(AT).put(timeText.text);
+        }
+        buffer.put(lineSeparator);
+    }
+
+    private static void writeSeries(SensorArchive sensorArchive, SpillFile spill, Path file) throws IOException {
+        try (CompressedSeriesWriter series = new CompressedSeriesWriter(new FileOutputStream(file.toFile()))) {
+            long from = sensorArchive.firstIndex();
+            if (spill != null) {
+                long[] times = new long[SPILL_BATCH];
+                double[] values = new double[SPILL_BATCH];
+                long size = spill.size();
+                for (long position = 0; position < size; ) {
+                    int count = spill.read(position, times, values);
+                    for (int i = 0; i < count; i++) {
+                        series.append(times[i], values[i]);
+                    }
+                    position += count;
+                }
+                from = spill.getArchiveIndex();
+            }
+            long end = sensorArchive.size();
+            for (long i = from; i < end; i++) {
+                series.append(sensorArchive.getTime(i), sensorArchive.getValue(i));
+            }
+        }
+    }
+
+    /**
+     * Writes the 1 second, then the 1 minute rollups of one sensor as CSV;
+     * first_alarm_ns is empty for an interval without alarms.
+     */
+    private void writeRollups(RollupRing seconds, RollupRing minutes, Path file, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.clear();
+            buffer.put(ROLLUP_HEADER.getBytes()).put(lineSeparator);
+            for (RollupRing rollups : new RollupRing[] {seconds, minutes}) {
+                long end = rollups.end();
+                for (long p = rollups.first(); p < end; p++) {
+                    //three values and four numbers may exceed one line of the other files
+                    if (buffer.remaining() < 2 * MAX_LINE) {
+                        drain(channel, buffer);
+                    }
+                    appendLong(buffer, rollups.getIntervalNanos() / 1_000_000_000L);
+                    buffer.put((byte) ',');
+                    appendLong(buffer, rollups.getStart(p));
+                    buffer.put((byte) ',');
+                    appendLong(buffer, rollups.getCount(p));
+                    buffer.put((byte) ',');
+                    appendValue(buffer, rollups.getMin(p));
+                    buffer.put((byte) ',');
+                    appendValue(buffer, rollups.getMax(p));
+                    buffer.put((byte) ',');
+                    appendValue(buffer, rollups.getMean(p));
+                    buffer.put((byte) ',');
+                    if (rollups.getFirstAlarm(p) != RollupRing.NO_ALARM) {
+                        appendLong(buffer, rollups.getFirstAlarm(p));
+                    }
+                    buffer.put(lineSeparator);
+                }
+            }
+            drain(channel, buffer);
+        }
+    }
+
+    /**
+     * Localized time text of the second last formatted by one writer.
+     */
+    private static class TimeText {
+        long second = Long.MIN_VALUE;
+        byte[] text;
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Appends a value exactly as Double.toString would print it. Values in
+     * Double.toString's plain range that have an exact short decimal form,
+     * which covers readings quantized by an ADC, are formatted from integer
+     * arithmetic: the first number of decimals whose scaled integer divides
+     * back to the same double is the shortest form. Anything else falls back
+     * to Double.toString.
+     */
+    static void appendValue(ByteBuffer buffer, double value) {
+        double abs = Math.abs(value);
+        if (abs >= 1e-3 && abs < 1e7) {
+            for (int decimals = 1; decimals < POWERS_OF_TEN.length; decimals++) {
+                long scale = POWERS_OF_TEN[decimals];
+                long scaled = Math.round(abs * scale);
+                //below 2^53 both the integer and the division are exact
+                if (scaled < (1L << 53) && scaled / (double) scale == abs) {
+                    if (value < 0) {
+                        buffer.put((byte) '-');
+                    }
+                    appendLong(buffer, scaled / scale);
+                    buffer.put((byte) '.');
+                    appendDigits(buffer, scaled % scale, decimals);
+                    return;
+                }
+            }
+        }
+        String text = Double.toString(value);
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    static void appendLong(ByteBuffer buffer, long number) {
+        if (number < 0) {
+            buffer.put((byte) '-');
+            if (number == Long.MIN_VALUE) {
+                //has no positive counterpart
+                buffer.put((byte) '9');
+                number = -223_372_036_854_775_808L;
+            }
+            number = -number;
+        }
+        int digits = 1;
+        for (long rest = number / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        appendDigits(buffer, number, digits);
+    }
+
+    /**
+     * Appends number zero-padded to exactly the given number of digits.
+     */
+    private static void appendDigits(ByteBuffer buffer, long number, int digits) {
+        int start = buffer.position();
+        for (int i = start + digits - 1; i >= start; i--) {
+            buffer.put(i, (byte) ('0' + number % 10));
+            number /= 10;
+        }
+        buffer.position(start + digits);
+    }
+}
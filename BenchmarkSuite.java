@@ -0,0 +1,656 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Regression suite for the ingest, alarm, query and export paths, run with
+ * {@code java BenchmarkSuite [filter] [output.json]}.
+ *
+ * Works like a small JMH: every benchmark gets warmup iterations that are
+ * thrown away and measurement iterations that are reported as the average
+ * time per operation with a 99.9% confidence interval. Results are printed
+ * and written as JSON in the layout JMH uses for -rf json, so existing
+ * tooling can compare runs across releases. Keep the JVM flags the same
+ * between runs that are compared, e.g. {@code -Xmx3g}.
+ */
+public class BenchmarkSuite {
+    static final int WARMUP_ITERATIONS = 3;
+    static final int MEASUREMENT_ITERATIONS = 5;
+    static final int INGEST_THREADS = 4;
+    static final int EXPORT_POINTS = 10_000_000;
+    static final int QUERY_POINTS = 100_000_000;
+
+    //two-sided 99.9% Student t quantiles for 1 to 10 degrees of freedom
+    private static final double[] T_999 = {636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+
+    /**
+     * One benchmark; setUp and tearDown run around every iteration, outside the timing.
+     */
+    interface Benchmark {
+        default void setUp() throws Exception {
+        }
+
+        /**
+         *
+         * @return number of operations performed
+         * @throws Exception
+         */
+        long run() throws Exception;
+
+        default void tearDown() throws Exception {
+        }
+    }
+
+    private final List<String> json = new ArrayList<String>();
+    private final Pattern filter;
+    private double sink;
+
+    BenchmarkSuite(Pattern filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        Path output = Paths.get(args.length > 1 ? args[1] : "benchmark-results.json");
+        BenchmarkSuite suite = new BenchmarkSuite(filter);
+        suite.runAll();
+        suite.write(output);
+        System.out.println("results written to " + output.toAbsolutePath());
+    }
+
+    void runAll() throws Exception {
+        Sensor generator = new Sensor(State.MEASURING, 0.0, 10.0, "humidity", false, 1.0, 42);
+        run("sensor.generateData", 1, () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                sink += generator.generateData();
+            }
+            return 1_000_000;
+        });
+        double[] batch = new double[1024];
+        run("sensor.generateBatch", 1, () -> {
+            for (int i = 0; i < 1_000; i++) {
+                generator.generateBatch(batch, batch.length);
+                sink += batch[0];
+            }
+            return 1_000 * batch.length;
+        });
+
+        for (int producers : new int[] {1, 4, 16}) {
+            run("ringBuffer.publish.producers" + producers, producers, new RingBenchmark(producers, 4));
+        }
+        run("service.measure", 1, new IngestBenchmark(1));
+        run("service.measure.concurrent", INGEST_THREADS, new IngestBenchmark(INGEST_THREADS));
+        run("pipeline.publish", INGEST_THREADS, new PipelineBenchmark(INGEST_THREADS));
+        run("alarmEngine.evaluate", 1, new AlarmBenchmark(5_000, 200));
+        run("alarmEngine.evaluate.rangeOnly", 1, new TickAlarmBenchmark(5_000, 200, TickAlarmBenchmark.PER_CALL));
+        run("alarmEngine.evaluateBatch", 1, new TickAlarmBenchmark(5_000, 200, TickAlarmBenchmark.BATCH));
+        run("alarmEngine.screen", 1, new TickAlarmBenchmark(5_000, 200, TickAlarmBenchmark.SCREEN));
+        run("alarmEngine.screen.scalar", 1, new TickAlarmBenchmark(5_000, 200, TickAlarmBenchmark.SCREEN_SCALAR));
+        run("derivedChannels.evaluate", 1, new DerivedBenchmark(2_000, 200));
+        run("service.saveToFile", 1, new ExportBenchmark(EXPORT_POINTS));
+        run("archive.query", 1, new ArchiveQueryBenchmark(QUERY_POINTS, ArchiveQueryBenchmark.FULL));
+        run("archive.query.window", 1, new ArchiveQueryBenchmark(QUERY_POINTS, ArchiveQueryBenchmark.WINDOW));
+        run("archive.downsample", 1, new ArchiveQueryBenchmark(QUERY_POINTS, ArchiveQueryBenchmark.DOWNSAMPLE));
+        run("archive.scan", 1, new ArchiveQueryBenchmark(QUERY_POINTS, ArchiveQueryBenchmark.SCAN));
+        ArchiveQueryBenchmark.archive = null;
+        if (filter.matcher("archive.footprint").find()) {
+            footprint("archive.footprint.heap", false, EXPORT_POINTS);
+            footprint("archive.footprint.offHeap", true, EXPORT_POINTS);
+        }
+    }
+
+    /**
+     * Runs a benchmark through warmup and measurement and records average nanoseconds per operation.
+     */
+    void run(String name, int threads, Benchmark benchmark) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            benchmark.setUp();
+            long start = System.nanoTime();
+            long ops = benchmark.run();
+            long elapsed = System.nanoTime() - start;
+            benchmark.tearDown();
+            if (i >= WARMUP_ITERATIONS) {
+                scores[i - WARMUP_ITERATIONS] = elapsed / (double) ops;
+            }
+        }
+        record(name, "avgt", threads, "ns/op", scores);
+    }
+
+    /**
+     * Measures the memory an archive holds per datapoint once it is full.
+     */
+    void footprint(String name, boolean offHeap, int points) {
+        SensorArchive warm = new SensorArchive("warmup", offHeap);
+        warm.append(0, 0);
+        long before = usedMemory(offHeap);
+        SensorArchive archive = new SensorArchive("footprint", offHeap);
+        for (int i = 0; i < points; i++) {
+            archive.append(i * 1_000_000L, i);
+        }
+        long after = usedMemory(offHeap);
+        sink += archive.getValue(points - 1) + warm.size();
+        record(name, "ss", 1, "B/sample", new double[] {(after - before) / (double) points});
+    }
+
+    private static long usedMemory(boolean offHeap) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (offHeap) {
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (pool.getName().equals("direct")) {
+                    used += pool.getMemoryUsed();
+                }
+            }
+        }
+        return used;
+    }
+
+    private void record(String name, String mode, int threads, String unit, double[] scores) {
+        int n = scores.length;
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= n;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = n < 2 ? Double.NaN
+                : T_999[Math.min(n - 2, T_999.length - 1)] * Math.sqrt(variance / (n - 1)) / Math.sqrt(n);
+        System.out.printf(Locale.ROOT, "%-32s %4s %12.3f +- %8.3f %s%n", name, mode, mean, error, unit);
+
+        StringBuilder raw = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            raw.append(i == 0 ? "" : ", ").append(number(scores[i]));
+        }
+        json.add(String.format(Locale.ROOT,
+                "    {%n"
+                + "        \"benchmark\" : \"%s\",%n"
+                + "        \"mode\" : \"%s\",%n"
+                + "        \"threads\" : %d,%n"
+                + "        \"forks\" : 1,%n"
+                + "        \"jvm\" : \"%s\",%n"
+                + "        \"jdkVersion\" : \"%s\",%n"
+                + "        \"warmupIterations\" : %d,%n"
+                + "        \"measurementIterations\" : %d,%n"
+                + "        \"primaryMetric\" : {%n"
+                + "            \"score\" : %s,%n"
+                + "            \"scoreError\" : %s,%n"
+                + "            \"scoreUnit\" : \"%s\",%n"
+                + "            \"rawData\" : [ [ %s ] ]%n"
+                + "        }%n"
+                + "    }",
+                name, mode, threads, jsonEscape(System.getProperty("java.home")), System.getProperty("java.version"),
+                mode.equals("ss") ? 0 : WARMUP_ITERATIONS, n, number(mean), number(error), unit, raw));
+    }
+
+    void write(Path output) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(output)) {
+            writer.write("[\n");
+            writer.write(String.join(",\n", json));
+            writer.write("\n]\n");
+        }
+        if (sink == 42) {
+            //keeps the JIT from discarding the benchmarked work
+            System.out.println();
+        }
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String jsonEscape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Publishes 4M datapoints in total from several producer threads into a
+     * blocking ring with consumers that only sum the values, and waits until
+     * every consumer has handled every datapoint.
+     */
+    static class RingBenchmark implements Benchmark {
+        static final int POINTS = 1 << 22;
+        private final int producers;
+        private final int consumers;
+        private final double[] sums;
+        private SampleRingBuffer ring;
+        private Sensor sensor;
+
+        RingBenchmark(int producers, int consumers) {
+            this.producers = producers;
+            this.consumers = consumers;
+            this.sums = new double[consumers];
+        }
+
+        @Override
+        public void setUp() {
+            ring = new SampleRingBuffer(1 << 16, SampleRingBuffer.Policy.BLOCK);
+            for (int c = 0; c < consumers; c++) {
+                int index = c;
+                ring.addConsumer("bench-consumer-" + c, (sensor, time, value, endOfBatch) -> sums[index] += value);
+            }
+            sensor = new Sensor(State.MEASURING, 0.0, 1.0, "bench", true);
+        }
+
+        @Override
+        public long run() throws InterruptedException {
+            int perProducer = POINTS / producers;
+            Thread[] threads = new Thread[producers];
+            for (int p = 0; p < producers; p++) {
+                threads[p] = new Thread(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        ring.publish(sensor, i, i);
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            //drains the consumers
+            ring.shutdown();
+            return (long) perProducer * producers;
+        }
+    }
+
+    /**
+     * Archives, monitors and accumulates statistics for 2^20 datapoints per
+     * thread, each thread measuring its own sensor of a shared Service.
+     */
+    static class IngestBenchmark implements Benchmark {
+        static final int POINTS = 1 << 20;
+        private final int threads;
+        private Service service;
+        private Sensor[] sensors;
+
+        IngestBenchmark(int threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        public void setUp() {
+            service = new Service();
+            sensors = new Sensor[threads];
+            for (int t = 0; t < threads; t++) {
+                sensors[t] = new Sensor(State.MEASURING, 0.0, 10.0, "sensor-" + t, true, 1000.0, t);
+                service.register(sensors[t]);
+            }
+        }
+
+        @Override
+        public long run() throws InterruptedException {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                Sensor sensor = sensors[t];
+                workers[t] = new Thread(() -> {
+                    double[] values = new double[1024];
+                    for (int i = 0; i < POINTS; i += values.length) {
+                        sensor.generateBatch(values, values.length);
+                        for (int j = 0; j < values.length; j++) {
+                            service.measure(sensor, values[j], (i + j) * 1_000_000L);
+                        }
+                    }
+                });
+            }
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            return (long) threads * POINTS;
+        }
+    }
+
+    /**
+     * Publishes 1M datapoints per producer thread into a SamplePipeline and
+     * waits until the archive, export and alarm consumers have handled them all.
+     */
+    static class PipelineBenchmark implements Benchmark {
+        static final int POINTS = 1_000_000;
+        private final int producers;
+        private SamplePipeline pipeline;
+        private Sensor[] sensors;
+
+        PipelineBenchmark(int producers) {
+            this.producers = producers;
+        }
+
+        @Override
+        public void setUp() {
+            Service service = new Service();
+            sensors = new Sensor[producers];
+            for (int p = 0; p < producers; p++) {
+                sensors[p] = new Sensor(State.MEASURING, 0.0, 10.0, "sensor-" + p, true, 1000.0, p);
+                service.register(sensors[p]);
+            }
+            pipeline = new SamplePipeline(service);
+        }
+
+        @Override
+        public long run() throws InterruptedException {
+            Thread[] threads = new Thread[producers];
+            for (int p = 0; p < producers; p++) {
+                Sensor sensor = sensors[p];
+                threads[p] = new Thread(() -> {
+                    for (int i = 0; i < POINTS; i++) {
+                        pipeline.publish(sensor, i * 1_000_000L, 5.0);
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            //drains the consumers
+            pipeline.shutdown();
+            return (long) producers * POINTS;
+        }
+    }
+
+    /**
+     * Evaluates one datapoint per channel per tick with deadband,
+     * rate-of-change and debounce enabled on every rule.
+     */
+    static class AlarmBenchmark implements Benchmark {
+        private final int channels;
+        private final int ticks;
+        private final AlarmEngine engine = new AlarmEngine();
+        private final double[][] values;
+        private long tick;
+        private long alarms;
+
+        AlarmBenchmark(int channels, int ticks) {
+            this.channels = channels;
+            this.ticks = ticks;
+            for (int ch = 0; ch < channels; ch++) {
+                AlarmRule rule = new AlarmRule(0.0, 1.0);
+                rule.setDeadband(0.05);
+                rule.setMaxRate(5.0);
+                rule.setDebounce(3, 5);
+                engine.addChannel(rule);
+            }
+            Sensor sensor = new Sensor(State.MEASURING, 0.0, 1.0, "bench", true, 1.0, 42);
+            values = new double[16][channels];
+            for (double[] row : values) {
+                sensor.generateBatch(row, channels);
+            }
+        }
+
+        @Override
+        public long run() {
+            for (int t = 0; t < ticks; t++) {
+                double[] row = values[(int) (tick % values.length)];
+                long time = tick++ * 1_000_000_000L;
+                for (int ch = 0; ch < channels; ch++) {
+                    if (engine.evaluate(ch, time, row[ch]) != Alarm.GOOD) {
+                        alarms++;
+                    }
+                }
+            }
+            return (long) channels * ticks;
+        }
+    }
+
+    /**
+     * Evaluates one datapoint per channel per tick against range-only rules
+     * with a deadband, either per call, through the batch path or as the
+     * range screen alone, on the Vector API if the JVM has it or forced onto
+     * the scalar loop. About 1% of the datapoints are out of range, as in a
+     * mostly healthy fleet.
+     */
+    static class TickAlarmBenchmark implements Benchmark {
+        static final int PER_CALL = 0;
+        static final int BATCH = 1;
+        static final int SCREEN = 2;
+        static final int SCREEN_SCALAR = 3;
+
+        private final int channels;
+        private final int ticks;
+        private final int mode;
+        private final AlarmEngine engine = new AlarmEngine();
+        private final double[][] values;
+        private final long[] bits;
+        private final long[] present;
+        private final long[] times;
+        private long tick;
+        private long alarms;
+
+        TickAlarmBenchmark(int channels, int ticks, int mode) {
+            this.channels = channels;
+            this.ticks = ticks;
+            this.mode = mode;
+            for (int ch = 0; ch < channels; ch++) {
+                AlarmRule rule = new AlarmRule(-0.25, 1.25);
+                rule.setDeadband(0.05);
+                engine.addChannel(rule);
+            }
+            Sensor sensor = new Sensor(State.MEASURING, 0.0, 1.0, "bench", true, 1.0, 42);
+            values = new double[16][channels];
+            for (double[] row : values) {
+                sensor.generateBatch(row, channels);
+            }
+            bits = new long[(channels + 63) / 64];
+            present = new long[bits.length];
+            for (int ch = 0; ch < channels; ch++) {
+                present[ch >>> 6] |= 1L << ch;
+            }
+            times = new long[channels];
+            engine.useVectorApi(mode != SCREEN_SCALAR);
+        }
+
+        @Override
+        public long run() {
+            for (int t = 0; t < ticks; t++) {
+                double[] row = values[(int) (tick % values.length)];
+                long time = tick++ * 1_000_000_000L;
+                if (mode == BATCH) {
+                    Arrays.fill(times, time);
+                    alarms += engine.evaluateBatch(times, row, present, bits);
+                } else if (mode == SCREEN || mode == SCREEN_SCALAR) {
+                    alarms += engine.screen(row, bits);
+                } else {
+                    for (int ch = 0; ch < channels; ch++) {
+                        if (engine.evaluate(ch, time, row[ch]) != Alarm.GOOD) {
+                            alarms++;
+                        }
+                    }
+                }
+            }
+            return (long) channels * ticks;
+        }
+    }
+
+    /**
+     * Feeds one datapoint per input sensor per tick into derived channels,
+     * which are evaluated on every datapoint: for every pair of inputs a half
+     * difference, a moving average of it over 10 ticks and its integral,
+     * so a third of the channels read another derived channel.
+     */
+    static class DerivedBenchmark implements Benchmark {
+        private final int inputs;
+        private final int ticks;
+        private final DerivedChannels derived = new DerivedChannels();
+        private final Sensor[] sensors;
+        private final double[][] values;
+        private final SampleRingBuffer.Handler out;
+        private long tick;
+        private double sum;
+
+        DerivedBenchmark(int inputs, int ticks) {
+            this.inputs = inputs;
+            this.ticks = ticks;
+            sensors = new Sensor[inputs];
+            for (int i = 0; i < inputs; i++) {
+                sensors[i] = new Sensor(State.MEASURING, 0.0, 1.0, "in" + i, true, 1.0, 42 + i);
+                sensors[i].setChannel(i);
+            }
+            int channel = inputs;
+            for (int i = 0; i + 1 < inputs; i += 2) {
+                Sensor difference = derivedSensor("diff" + i, channel++);
+                derived.add(difference, Expression.compile("(a - b) / 2"), Arrays.asList(sensors[i], sensors[i + 1]));
+                derived.add(derivedSensor("avg" + i, channel++), Expression.compile("avg(d, 10)"), Arrays.asList(difference));
+                derived.add(derivedSensor("dose" + i, channel++), Expression.compile("integrate(abs(a))"), Arrays.asList(sensors[i]));
+            }
+            values = new double[16][inputs];
+            for (double[] row : values) {
+                sensors[0].generateBatch(row, inputs);
+            }
+            out = (sensor, time, value, endOfBatch) -> sum += value;
+        }
+
+        private static Sensor derivedSensor(String name, int channel) {
+            Sensor sensor = new Sensor(State.MEASURING, -1.0, 1.0, name, true, 0, 0);
+            sensor.setChannel(channel);
+            return sensor;
+        }
+
+        @Override
+        public long run() {
+            for (int t = 0; t < ticks; t++) {
+                double[] row = values[(int) (tick % values.length)];
+                long time = tick++ * 1_000_000_000L;
+                for (int i = 0; i < inputs; i++) {
+                    derived.update(sensors[i], time, row[i], out);
+                }
+            }
+            return (long) inputs * ticks;
+        }
+    }
+
+    /**
+     * Queries an archive holding one datapoint per millisecond: 1000
+     * buckets over the full range or over one minute in its middle, 1000
+     * downsampled points over the full range, or a scan of every value.
+     * The archive is built once and shared by the four modes; at 100M
+     * datapoints it needs about 2 GB of heap.
+     */
+    static class ArchiveQueryBenchmark implements Benchmark {
+        static final int FULL = 0;
+        static final int WINDOW = 1;
+        static final int DOWNSAMPLE = 2;
+        static final int SCAN = 3;
+        static final int QUERIES = 100;
+
+        static SensorArchive archive;
+        private final int points;
+        private final int mode;
+        private double sum;
+
+        ArchiveQueryBenchmark(int points, int mode) {
+            this.points = points;
+            this.mode = mode;
+        }
+
+        @Override
+        public void setUp() {
+            if (archive != null && archive.size() == points) {
+                return;
+            }
+            archive = null;
+            SensorArchive filled = new SensorArchive("bench", false);
+            Sensor sensor = new Sensor(State.MEASURING, 0.0, 1.0, "bench", true, 1.0, 42);
+            double[] values = new double[SensorArchive.CHUNK_SIZE];
+            for (long i = 0; i < points; i += values.length) {
+                sensor.generateBatch(values, values.length);
+                for (int j = 0; j < values.length && i + j < points; j++) {
+                    filled.append((i + j) * 1_000_000L, values[j]);
+                }
+            }
+            archive = filled;
+        }
+
+        @Override
+        public long run() {
+            long to = points * 1_000_000L;
+            if (mode == SCAN) {
+                double max = 0;
+                for (long i = 0; i < points; i++) {
+                    max = Math.max(max, archive.getValue(i));
+                }
+                sum += max;
+                return points;
+            }
+            for (int q = 0; q < QUERIES; q++) {
+                if (mode == FULL) {
+                    sum += archive.query(0, to, 1000).max[0];
+                } else if (mode == WINDOW) {
+                    sum += archive.query(to / 3, to / 3 + 60_000_000_000L, 1000).max[0];
+                } else {
+                    sum += archive.downsample(0, to, 1000).size();
+                }
+            }
+            return QUERIES;
+        }
+    }
+
+    /**
+     * Writes the .txt and .ts files of 4 sensors holding 10M datapoints in
+     * total to a temporary directory.
+     */
+    static class ExportBenchmark implements Benchmark {
+        private final int points;
+        private Service service;
+        private Path directory;
+
+        ExportBenchmark(int points) {
+            this.points = points;
+        }
+
+        @Override
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("benchmark-export");
+            if (service != null) {
+                return;
+            }
+            service = new Service();
+            Sensor[] sensors = new Sensor[4];
+            for (int s = 0; s < sensors.length; s++) {
+                sensors[s] = new Sensor(State.MEASURING, 0.0, 10.0, "export-" + s, true, 1000.0, s);
+                service.register(sensors[s]);
+            }
+            long start = System.currentTimeMillis() * 1_000_000L;
+            for (int i = 0; i < points; i++) {
+                Sensor sensor = sensors[i % sensors.length];
+                service.archive(sensor, sensor.generateData(), start + (i / sensors.length) * 1_000_000L);
+            }
+        }
+
+        @Override
+        public long run() throws IOException {
+            service.saveToFile(directory);
+            return points;
+        }
+
+        @Override
+        public void tearDown() throws IOException {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+
+/**
+ * Runs acquisition, archiving and alarms without Swing and streams the
+ * live samples and alarms to dashboards through a LiveServer, so any
+ * number of them can watch one session from other processes.
+ *
+ * Every sensor starts measuring right away, simulated, read from its
+ * external feed or derived from other sensors. Unlike the GUI, an alarm does
+ * not pause its sensor; it is streamed and the sensor keeps measuring.
+ * On exit (Ctrl+C) the archive is written as by the GUI.
+ *
+ * To handle more channels than one process can, the sensors of a config
+ * can be split across several collectors: shard i of n takes every n-th
+ * sensor starting with the i-th and also streams its datapoints to an
+ * Aggregator, which merges all shards into one global view and computes
+ * the derived channels.
+ *
+ * Usage: {@code java Collector [config] [port] [<shard>/<shards> <aggregator host>:<port>]},
+ * by default sensors.csv and port 8080 on the loopback interface.
+ */
+public class Collector {
+    static final int DEFAULT_PORT = 8080;
+    static final int FRAMES_PER_SECOND = 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path config = Paths.get(args.length > 0 ? args[0] : "sensors.csv");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        SensorRegistry registry = SensorRegistry.load(config);
+        List<Sensor> sensors = registry.getSensors();
+        int shard = 0;
+        int shards = 1;
+        InetSocketAddress aggregator = null;
+        if (args.length > 3) {
+            String[] split = args[2].split("/");
+            shard = Integer.parseInt(split[0]);
+            shards = Integer.parseInt(split[1]);
+            int colon = args[3].lastIndexOf(':');
+            aggregator = new InetSocketAddress(args[3].substring(0, colon), Integer.parseInt(args[3].substring(colon + 1)));
+            //derived channels are computed by the aggregator, which has all their inputs
+            List<Sensor> measured = new ArrayList<Sensor>();
+            for (Sensor sensor : sensors) {
+                if (!registry.isDerived(sensor)) {
+                    measured.add(sensor);
+                }
+            }
+            List<Sensor> own = new ArrayList<Sensor>();
+            for (int i = shard; i < measured.size(); i += shards) {
+                own.add(measured.get(i));
+            }
+            sensors = own;
+        }
+        //shards running side by side must not share their log and snapshot files
+        String suffix = shards > 1 ? "-" + shard : "";
+
+        Service service = new Service();
+        for (Sensor sensor : sensors) {
+            service.register(sensor, registry.createRule(sensor));
+        }
+        service.attachLog(new WriteAheadLog(Paths.get("wal" + suffix)));
+        service.enableRetention(600_000_000_000L, 3600, 1440, Paths.get("spill" + suffix));
+        try {
+            service.getMetrics().registerMBeans();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        service.getMetrics().startSnapshots(Paths.get("metrics" + suffix + ".properties"), 5000);
+
+        LiveServer server = new LiveServer(sensors, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), FRAMES_PER_SECOND);
+        SamplePipeline pipeline = new SamplePipeline(service);
+        pipeline.addConsumer("stream", server);
+        pipeline.addAlarmListener(server);
+        DerivedChannels derived = aggregator == null ? registry.createDerivedChannels() : null;
+        if (derived != null) {
+            pipeline.addDerivedChannels(derived);
+        }
+        ShardUplink uplink = null;
+        if (aggregator != null) {
+            uplink = new ShardUplink(registry.getSensors(), shard, aggregator, service::now);
+            uplink.attach(pipeline);
+            uplink.start();
+        }
+        server.start();
+
+        AcquisitionEngine engine = new AcquisitionEngine(pipeline);
+        FeedReader feeds = new FeedReader(pipeline);
+        for (Sensor sensor : sensors) {
+            sensor.setState(State.MEASURING);
+            if (registry.isDerived(sensor)) {
+                continue;
+            }
+            DataSource source = registry.createSource(sensor);
+            if (source != null) {
+                feeds.add(sensor, source);
+            } else {
+                engine.add(sensor);
+            }
+        }
+        feeds.start();
+
+        ShardUplink finalUplink = uplink;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            engine.shutdown();
+            feeds.shutdown();
+            pipeline.shutdown();
+            if (finalUplink != null) {
+                finalUplink.shutdown();
+            }
+            server.shutdown();
+            try {
+                service.saveToFile();
+                service.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "collector-shutdown"));
+        System.out.println((shards > 1 ? "shard " + shard + "/" + shards + ": " : "") + "streaming " + sensors.size() + " sensors on ws://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/live");
+        //every worker is a daemon thread, so keep the JVM up until it is interrupted
+        Thread.currentThread().join();
+    }
+}
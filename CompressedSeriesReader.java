@@ -0,0 +1,232 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams datapoints back out of a file written by CompressedSeriesWriter,
+ * one block in memory at a time.
+ *
+ * Typical use is {@code while (reader.next()) { reader.getTime(); reader.getValue(); }}.
+ * Callers that only need some blocks can inspect the header with
+ * nextBlock() and skip the payload without decoding it.
+ */
+public class CompressedSeriesReader implements Closeable {
+    private final DataInputStream in;
+    private final long resolutionNanos;
+
+    //current block
+    private byte[] bits = new byte[4096];
+    private long bitPos;
+    private int blockCount;
+    private long blockFirstTime;
+    private long blockLastTime;
+    private double blockMin;
+    private double blockMax;
+    private boolean payloadLoaded;
+    private int payloadBytes;
+    private int decoded;
+
+    //decompression state
+    private long time;
+    private long prevDelta;
+    private long valueBits;
+    private int prevLeading;
+    private int prevTrailing;
+
+    /**
+     *
+     * @param in stream holding a compressed series; closed together with the reader
+     * @throws IOException if the stream is not a compressed series
+     */
+    public CompressedSeriesReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != CompressedSeriesWriter.MAGIC) {
+            throw new IOException("not a compressed series");
+        }
+        byte version = this.in.readByte();
+        if (version != CompressedSeriesWriter.VERSION) {
+            throw new IOException("unsupported series version " + version);
+        }
+        this.resolutionNanos = this.in.readLong();
+    }
+
+    /**
+     * Advances to the next datapoint, moving on to the next block when needed.
+     *
+     * @return false once the series is exhausted
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (decoded == blockCount) {
+            if (!nextBlock()) {
+                return false;
+            }
+        }
+        if (!payloadLoaded) {
+            loadPayload();
+        }
+        if (decoded == 0) {
+            time = blockFirstTime;
+            prevDelta = 0;
+            valueBits = readBits(64);
+            prevLeading = 0;
+            prevTrailing = 0;
+        } else {
+            prevDelta += readDeltaOfDelta();
+            time += prevDelta;
+            readXor();
+        }
+        decoded++;
+        return true;
+    }
+
+    /**
+     * Moves to the header of the next block; any datapoints left in the
+     * current block are skipped without being decoded.
+     *
+     * @return false once the series is exhausted
+     * @throws IOException
+     */
+    public boolean nextBlock() throws IOException {
+        if (!payloadLoaded && blockCount > 0) {
+            in.skipNBytes(payloadBytes);
+        }
+        try {
+            blockCount = in.readInt();
+        } catch (EOFException e) {
+            blockCount = 0;
+            decoded = 0;
+            return false;
+        }
+        blockFirstTime = in.readLong();
+        blockLastTime = in.readLong();
+        blockMin = in.readDouble();
+        blockMax = in.readDouble();
+        payloadBytes = in.readInt();
+        payloadLoaded = false;
+        decoded = 0;
+        return true;
+    }
+
+    /**
+     *
+     * @return epoch nanoseconds of the current datapoint
+     */
+    public long getTime() {
+        return time * resolutionNanos;
+    }
+
+    /**
+     *
+     * @return value of the current datapoint
+     */
+    public double getValue() {
+        return Double.longBitsToDouble(valueBits);
+    }
+
+    /**
+     *
+     * @return number of datapoints in the current block
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     *
+     * @return epoch nanoseconds of the first datapoint in the current block
+     */
+    public long getBlockFirstTime() {
+        return blockFirstTime * resolutionNanos;
+    }
+
+    /**
+     *
+     * @return epoch nanoseconds of the last datapoint in the current block
+     */
+    public long getBlockLastTime() {
+        return blockLastTime * resolutionNanos;
+    }
+
+    /**
+     *
+     * @return smallest value in the current block
+     */
+    public double getBlockMin() {
+        return blockMin;
+    }
+
+    /**
+     *
+     * @return largest value in the current block
+     */
+    public double getBlockMax() {
+        return blockMax;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void loadPayload() throws IOException {
+        if (bits.length < payloadBytes) {
+            bits = new byte[payloadBytes];
+        }
+        in.readFully(bits, 0, payloadBytes);
+        bitPos = 0;
+        payloadLoaded = true;
+    }
+
+    private long readDeltaOfDelta() {
+        if (readBits(1) == 0) {
+            return 0;
+        } else if (readBits(1) == 0) {
+            return signed(readBits(7), 7);
+        } else if (readBits(1) == 0) {
+            return signed(readBits(9), 9);
+        } else if (readBits(1) == 0) {
+            return signed(readBits(12), 12);
+        } else if (readBits(1) == 0) {
+            return signed(readBits(32), 32);
+        }
+        return readBits(64);
+    }
+
+    private void readXor() {
+        if (readBits(1) == 0) {
+            return;
+        }
+        if (readBits(1) != 0) {
+            prevLeading = (int) readBits(5);
+            int meaningful = (int) readBits(6);
+            if (meaningful == 0) {
+                meaningful = 64;
+            }
+            prevTrailing = 64 - prevLeading - meaningful;
+        }
+        long xor = readBits(64 - prevLeading - prevTrailing) << prevTrailing;
+        valueBits ^= xor;
+    }
+
+    private long readBits(int n) {
+        long value = 0;
+        while (n > 0) {
+            int available = 8 - (int) (bitPos & 7);
+            int take = Math.min(available, n);
+            int current = bits[(int) (bitPos >>> 3)] & 0xff;
+            int chunk = (current >>> (available - take)) & ((1 << take) - 1);
+            value = (value << take) | chunk;
+            bitPos += take;
+            n -= take;
+        }
+        return value;
+    }
+
+    private static long signed(long value, int n) {
+        return (value << (64 - n)) >> (64 - n);
+    }
+}
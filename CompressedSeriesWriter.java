@@ -0,0 +1,196 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streams the datapoints of one sensor into the compressed binary series
+ * format read back by CompressedSeriesReader.
+ *
+ * The file starts with a magic number, a version and the timestamp
+ * resolution in nanoseconds. Datapoints follow in blocks; every block
+ * header holds its count, first and last timestamp and min/max value so
+ * readers can skip blocks without decoding them. Inside a block timestamps
+ * are stored as delta-of-deltas and values as the XOR with the previous
+ * value, as in Facebook's Gorilla paper.
+ */
+public class CompressedSeriesWriter implements Closeable {
+    static final int MAGIC = 0x50414d53;
+    static final byte VERSION = 1;
+    static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final DataOutputStream out;
+    private final long resolutionNanos;
+    private final int blockSize;
+
+    //bits of the block being built
+    private byte[] bits = new byte[4096];
+    private long bitCount;
+
+    //block header fields
+    private int count;
+    private long firstTime;
+    private long lastTime;
+    private double min;
+    private double max;
+
+    //compression state
+    private long prevDelta;
+    private long prevValueBits;
+    private int prevLeading = Integer.MAX_VALUE;
+    private int prevTrailing;
+
+    /**
+     *
+     * @param out stream the series is written to; closed together with the writer
+     * @param resolutionNanos timestamps are truncated to multiples of this many nanoseconds
+     * @param blockSize number of datapoints per block
+     * @throws IOException
+     */
+    public CompressedSeriesWriter(OutputStream out, long resolutionNanos, int blockSize) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.resolutionNanos = resolutionNanos;
+        this.blockSize = blockSize;
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(resolutionNanos);
+    }
+
+    /**
+     * Writes with microsecond timestamps and default-sized blocks.
+     *
+     * @param out stream the series is written to
+     * @throws IOException
+     */
+    public CompressedSeriesWriter(OutputStream out) throws IOException {
+        this(out, 1_000, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Adds a datapoint; timestamps are expected to be non-decreasing.
+     *
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @throws IOException
+     */
+    public void append(long timeNanos, double value) throws IOException {
+        long time = Math.floorDiv(timeNanos, resolutionNanos);
+        long valueBits = Double.doubleToRawLongBits(value);
+
+        if (count == 0) {
+            firstTime = time;
+            min = value;
+            max = value;
+            prevDelta = 0;
+            writeBits(valueBits, 64);
+        } else {
+            long delta = time - lastTime;
+            writeDeltaOfDelta(delta - prevDelta);
+            prevDelta = delta;
+            writeXor(valueBits ^ prevValueBits);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        lastTime = time;
+        prevValueBits = valueBits;
+        count++;
+
+        if (count == blockSize) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Writes the last partial block and closes the underlying stream.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flushBlock();
+        out.close();
+    }
+
+    private void flushBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int payloadBytes = (int) ((bitCount + 7) >>> 3);
+        out.writeInt(count);
+        out.writeLong(firstTime);
+        out.writeLong(lastTime);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(payloadBytes);
+        out.write(bits, 0, payloadBytes);
+
+        Arrays.fill(bits, 0, payloadBytes, (byte) 0);
+        bitCount = 0;
+        count = 0;
+        //the first XOR of a block always uses the long form
+        prevLeading = Integer.MAX_VALUE;
+        prevTrailing = 0;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0b0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            writeBits(0b10, 2);
+            writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            writeBits(0b110, 3);
+            writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 12);
+        } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+            writeBits(0b11110, 5);
+            writeBits(dod, 32);
+        } else {
+            writeBits(0b11111, 5);
+            writeBits(dod, 64);
+        }
+    }
+
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            writeBits(0b0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (leading >= prevLeading && trailing >= prevTrailing) {
+            //meaningful bits fit inside the previous window
+            writeBits(0b10, 2);
+            writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+        } else {
+            int meaningful = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            //64 meaningful bits are stored as 0
+            writeBits(meaningful, 6);
+            writeBits(xor >>> trailing, meaningful);
+            prevLeading = leading;
+            prevTrailing = trailing;
+        }
+    }
+
+    private void writeBits(long value, int n) {
+        long needed = (bitCount + n + 7) >>> 3;
+        if (needed > bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(bits.length * 2, (int) needed));
+        }
+        //fill the current byte from the most significant bits down
+        while (n > 0) {
+            int free = 8 - (int) (bitCount & 7);
+            int take = Math.min(free, n);
+            int chunk = (int) (value >>> (n - take)) & ((1 << take) - 1);
+            bits[(int) (bitCount >>> 3)] |= (byte) (chunk << (free - take));
+            bitCount += take;
+            n -= take;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Two-sided CUSUM control chart, which catches small persistent shifts and
+ * slow drifts away from the sensor's normal level long before the value
+ * leaves its allowed range.
+ *
+ * The normal mean and standard deviation are learned from the first
+ * baseline datapoints. After that, deviations from the mean beyond a slack
+ * of k standard deviations are summed separately upwards and downwards,
+ * and a datapoint is anomalous while either sum exceeds h standard
+ * deviations. Typical settings are k = 0.5 and h = 5, which detect a
+ * shift of one standard deviation within about ten datapoints; on fast
+ * sensors a larger h trades detection time for fewer false alarms.
+ */
+public class CusumDetector implements AnomalyDetector {
+    static final int DEFAULT_BASELINE = 256;
+
+    private final double k;
+    private final double h;
+    private final int baseline;
+
+    //baseline learned with Welford's algorithm
+    private int count;
+    private double mean;
+    private double m2;
+    private double stdDev;
+
+    private double upper;
+    private double lower;
+
+    /**
+     *
+     * @param k slack in standard deviations that is not accumulated
+     * @param h decision interval in standard deviations
+     * @param baseline number of datapoints the normal level is learned from, at least 2
+     */
+    public CusumDetector(double k, double h, int baseline) {
+        if (k < 0 || !(h > 0) || baseline < 2) {
+            throw new IllegalArgumentException("CUSUM needs k >= 0, h > 0 and a baseline of at least 2");
+        }
+        this.k = k;
+        this.h = h;
+        this.baseline = baseline;
+    }
+
+    public boolean update(long timeNanos, double value) {
+        if (count < baseline) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            if (count == baseline) {
+                stdDev = Math.sqrt(m2 / (count - 1));
+            }
+            return false;
+        }
+        if (stdDev == 0) {
+            return false;
+        }
+        double z = (value - mean) / stdDev;
+        upper = Math.max(0, upper + z - k);
+        lower = Math.max(0, lower - z - k);
+        return upper > h || lower > h;
+    }
+}
@@ -0,0 +1,440 @@
+import java.awt.Rectangle;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * One row per sensor for the dashboard table, rendered in coalesced frames.
+ *
+ * The pipeline threads and the buttons only set per-row dirty flags. A
+ * render thread wakes at a capped frame rate, formats the dirty rows into
+ * reusable TextBuffers and hands the whole frame to the EDT in one
+ * invokeLater. There the new buffers are swapped in and just the dirty,
+ * visible part of the table is repainted, without any relayout. Each row
+ * has a front buffer the EDT paints and a back buffer the render thread
+ * writes; the render thread skips its turn while a frame is still pending,
+ * so the two never touch the same buffer.
+ *
+ * Every row also feeds a TrendBuffer with the last few minutes of samples,
+ * shown as a sparkline in the table and as a chart of the selected sensor.
+ *
+ * Alarms arrive already deduplicated and grouped from an AlarmDispatcher,
+ * which has also paused their sensors; the row shows the alert.
+ */
+public class DashboardModel extends AbstractTableModel implements SampleRingBuffer.Handler, AlarmDispatcher.Listener {
+    static final String[] COLUMNS = {"Sensor", "Value", "Status", "Last at", "Alert", "Trend"};
+    static final int VALUE = 1;
+    static final int STATUS = 2;
+    static final int LAST_AT = 3;
+    static final int ALERT = 4;
+    static final int TREND = 5;
+
+    //trend history: 5 minutes in 1 second buckets
+    static final long TREND_WINDOW_NANOS = 300_000_000_000L;
+    static final int TREND_BUCKETS = 300;
+
+    private final List<Sensor> sensors;
+    private final int[] rowOfChannel;
+    private final String[] tooLowText;
+    private final String[] tooHighText;
+    private final DateTimeFormatter timeFormat = DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM);
+
+    //handed over to the render thread by the pipeline threads and the EDT
+    private final double[] latest;
+    private final long[] latestTime;
+    private final AtomicIntegerArray fresh;
+    private final AtomicReferenceArray<Alarm> pendingAlarms;
+    private final AtomicIntegerArray stateChanged;
+    private final AtomicLongArray pausedAt;
+    private final TrendBuffer[] trends;
+
+    //formatted rows; the EDT paints front, the render thread fills back
+    private RowText[] front;
+    private RowText[] back;
+    private final int[] dirtyRows;
+    private int dirtyCount;
+    private final AtomicBoolean framePending = new AtomicBoolean();
+    //sample time of the value each dirty row shows, for the sample-to-display latency
+    private final long[] shownTime;
+
+    private JTable table;
+    private ScheduledExecutorService renderer;
+
+    //EDT time spent presenting each frame
+    private volatile long lastFrameNanos;
+    private volatile long maxFrameNanos;
+
+    private final Metrics metrics;
+    private final SampleClock clock;
+
+    /**
+     *
+     * @param sensors sensors in display order, already registered with the service
+     * @param service service whose metrics record display latency and EDT time
+     */
+    public DashboardModel(List<Sensor> sensors, Service service) {
+        this.sensors = sensors;
+        this.metrics = service.getMetrics();
+        this.clock = service::now;
+        int rows = sensors.size();
+        int channels = 0;
+        for (Sensor sensor : sensors) {
+            channels = Math.max(channels, sensor.getChannel() + 1);
+        }
+        this.rowOfChannel = new int[channels];
+        Arrays.fill(rowOfChannel, -1);
+        this.tooLowText = new String[rows];
+        this.tooHighText = new String[rows];
+        this.front = new RowText[rows];
+        this.back = new RowText[rows];
+        for (int row = 0; row < rows; row++) {
+            Sensor sensor = sensors.get(row);
+            rowOfChannel[sensor.getChannel()] = row;
+            tooLowText[row] = "ALERT: below " + plain(sensor.getMin()) + " " + sensor.getUnit() + "; press Start to continue measuring.";
+            tooHighText[row] = "ALERT: above " + plain(sensor.getMax()) + " " + sensor.getUnit() + "; press Start to continue measuring.";
+            front[row] = new RowText();
+            back[row] = new RowText();
+        }
+        this.trends = new TrendBuffer[rows];
+        for (int row = 0; row < rows; row++) {
+            trends[row] = new TrendBuffer(TREND_WINDOW_NANOS, TREND_BUCKETS);
+        }
+        this.latest = new double[rows];
+        this.latestTime = new long[rows];
+        this.shownTime = new long[rows];
+        this.fresh = new AtomicIntegerArray(rows);
+        this.pendingAlarms = new AtomicReferenceArray<Alarm>(rows);
+        this.stateChanged = new AtomicIntegerArray(rows);
+        this.pausedAt = new AtomicLongArray(rows);
+        this.dirtyRows = new int[rows];
+    }
+
+    public void onSample(Sensor sensor, long timeNanos, double value, boolean endOfBatch) {
+        int row = rowOf(sensor);
+        if (row >= 0) {
+            trends[row].add(timeNanos, value);
+            latest[row] = value;
+            latestTime[row] = timeNanos;
+            //the volatile write publishes the value to the render thread
+            fresh.set(row, 1);
+        }
+    }
+
+    public void onAlarms(List<AlarmDispatcher.Event> alarms) {
+        for (AlarmDispatcher.Event event : alarms) {
+            int row = rowOf(event.getSensor());
+            if (row >= 0) {
+                if (event.isPaused()) {
+                    pausedAt.set(row, event.getTimeNanos() / 1_000_000L);
+                    stateChanged.set(row, 1);
+                }
+                pendingAlarms.set(row, event.getAlarm());
+            }
+        }
+    }
+
+    /**
+     * Starts rendering into the table at a capped frame rate.
+     *
+     * @param table table showing this model
+     * @param framesPerSecond upper bound on frames per second
+     */
+    public void start(JTable table, int framesPerSecond) {
+        this.table = table;
+        renderer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dashboard-render");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = 1_000_000_000L / framesPerSecond;
+        renderer.scheduleAtFixedRate(this::renderFrame, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    public void shutdown() {
+        if (renderer != null) {
+            renderer.shutdownNow();
+        }
+    }
+
+    /**
+     * Formats every dirty row and hands them to the EDT as one frame. Rows
+     * that change while a frame is pending simply wait for the next one.
+     * Runs on the render thread.
+     */
+    void renderFrame() {
+        if (framePending.get()) {
+            return;
+        }
+        try {
+            dirtyCount = 0;
+            for (int row = 0; row < sensors.size(); row++) {
+                if (formatRow(row)) {
+                    dirtyRows[dirtyCount++] = row;
+                }
+            }
+        } catch (RuntimeException e) {
+            //an exception would silently cancel the render schedule
+            e.printStackTrace();
+        }
+        if (dirtyCount > 0) {
+            framePending.set(true);
+            SwingUtilities.invokeLater(this::presentFrame);
+        }
+    }
+
+    /**
+     * Swaps in the rows formatted for this frame and repaints the visible
+     * ones in a single pass. Runs on the EDT.
+     */
+    void presentFrame() {
+        long start = System.nanoTime();
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (int i = 0; i < dirtyCount; i++) {
+            int row = dirtyRows[i];
+            RowText shown = front[row];
+            front[row] = back[row];
+            back[row] = shown;
+            first = Math.min(first, row);
+            last = Math.max(last, row);
+        }
+        if (table != null && last >= 0) {
+            Rectangle dirty = table.getCellRect(first, 0, true).union(table.getCellRect(last, COLUMNS.length - 1, true));
+            Rectangle area = dirty.intersection(table.getVisibleRect());
+            if (!area.isEmpty()) {
+                table.paintImmediately(area);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long now = clock.now();
+        for (int i = 0; i < dirtyCount; i++) {
+            if (shownTime[dirtyRows[i]] != 0) {
+                metrics.getSampleToDisplay().record(now - shownTime[dirtyRows[i]]);
+            }
+        }
+        metrics.getEdtFrame().record(elapsed);
+        lastFrameNanos = elapsed;
+        maxFrameNanos = Math.max(maxFrameNanos, elapsed);
+        framePending.set(false);
+    }
+
+    /**
+     *
+     * @return EDT nanoseconds spent on the most recent frame
+     */
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    /**
+     *
+     * @return most EDT nanoseconds spent on a frame since the last call
+     */
+    public long takeMaxFrameNanos() {
+        long max = maxFrameNanos;
+        maxFrameNanos = 0;
+        return max;
+    }
+
+    /**
+     *
+     * @param row row of the sensor
+     * @return the sensor shown in that row
+     */
+    public Sensor getSensor(int row) {
+        return sensors.get(row);
+    }
+
+    /**
+     *
+     * @param row row of the sensor
+     * @return recent history of the sensor
+     */
+    public TrendBuffer getTrend(int row) {
+        return trends[row];
+    }
+
+    /**
+     * Puts the sensor on standby.
+     *
+     * @param row row of the sensor
+     */
+    public void turnOn(int row) {
+        if (sensors.get(row).getState() == State.OFF) {
+            sensors.get(row).setState(State.ON);
+            stateChanged.set(row, 1);
+        }
+    }
+
+    /**
+     * Begins or resumes measuring.
+     *
+     * @param row row of the sensor
+     */
+    public void start(int row) {
+        State state = sensors.get(row).getState();
+        if (state == State.ON || state == State.IDLE) {
+            sensors.get(row).setState(State.MEASURING);
+            stateChanged.set(row, 1);
+        }
+    }
+
+    /**
+     * Pauses measuring; the row shows the time of the last measurement.
+     *
+     * @param row row of the sensor
+     */
+    public void pause(int row) {
+        if (sensors.get(row).getState() == State.MEASURING) {
+            sensors.get(row).setState(State.IDLE);
+            pausedAt.set(row, System.currentTimeMillis());
+            stateChanged.set(row, 1);
+        }
+    }
+
+    /**
+     * Shuts the sensor off and clears its row.
+     *
+     * @param row row of the sensor
+     */
+    public void turnOff(int row) {
+        if (sensors.get(row).getState() != State.OFF) {
+            sensors.get(row).setState(State.OFF);
+            stateChanged.set(row, 1);
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return sensors.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        switch (column) {
+            case 0:
+                return sensors.get(row).getName();
+            case VALUE:
+                return front[row].value;
+            case STATUS:
+                return statusText(sensors.get(row).getState());
+            case LAST_AT:
+                return front[row].lastAt;
+            case TREND:
+                return trends[row];
+            default:
+                return front[row].alert;
+        }
+    }
+
+    /**
+     * Brings the back buffer of a row up to date.
+     *
+     * @return whether the row changed
+     */
+    private boolean formatRow(int row) {
+        boolean updated = fresh.getAndSet(row, 0) == 1;
+        Alarm alarm = pendingAlarms.getAndSet(row, null);
+        boolean changed = stateChanged.getAndSet(row, 0) == 1;
+        if (!updated && alarm == null && !changed) {
+            return false;
+        }
+        Sensor sensor = sensors.get(row);
+        RowText text = back[row];
+        text.copyFrom(front[row]);
+        shownTime[row] = 0;
+
+        if (alarm != null) {
+            text.alert.clear();
+            text.alert.append(alarm == Alarm.TOO_LOW ? tooLowText[row]
+                    : alarm == Alarm.TOO_HIGH ? tooHighText[row]
+                    : alarm == Alarm.ANOMALY ? "ALERT: unusual readings within range; press Start to continue measuring."
+                    : "ALERT: changing too fast; press Start to continue measuring.");
+            changed = true;
+        } else if (updated && sensor.getState() == State.MEASURING) {
+            text.alert.clear();
+        }
+
+        State state = sensor.getState();
+        if (state == State.OFF) {
+            text.value.clear();
+            text.value.append("---");
+            text.lastAt.clear();
+            text.alert.clear();
+            return true;
+        }
+        if (updated || alarm != null) {
+            shownTime[row] = latestTime[row];
+            text.value.clear();
+            text.value.appendFixed(latest[row], 3);
+            text.value.append(' ');
+            text.value.append(sensor.getUnit());
+        }
+        if (changed) {
+            text.lastAt.clear();
+            if (state == State.IDLE) {
+                //only on pause, so the allocation is not on the per-sample path
+                LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(pausedAt.get(row)), ZoneId.systemDefault());
+                text.lastAt.append(time.format(timeFormat));
+            }
+        }
+        return true;
+    }
+
+    private int rowOf(Sensor sensor) {
+        int channel = sensor.getChannel();
+        return channel >= 0 && channel < rowOfChannel.length ? rowOfChannel[channel] : -1;
+    }
+
+    private static String statusText(State state) {
+        return state == State.MEASURING ? "MEAS" : state.name();
+    }
+
+    private static String plain(double value) {
+        return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Formatted text of one row.
+     */
+    private static class RowText {
+        final TextBuffer value = new TextBuffer(24);
+        final TextBuffer lastAt = new TextBuffer(16);
+        final TextBuffer alert = new TextBuffer(80);
+
+        RowText() {
+            value.append("---");
+        }
+
+        void copyFrom(RowText other) {
+            value.copyFrom(other.value);
+            lastAt.copyFrom(other.lastAt);
+            alert.copyFrom(other.alert);
+        }
+    }
+}
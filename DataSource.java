@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.Paths;
+
+/**
+ * Connection to an external instrument feed that delivers the datapoints
+ * of one sensor instead of the sensor generating them.
+ *
+ * A FeedReader opens, reads and closes the source. Selectable sources
+ * are read when their channel is ready, all on the FeedReader's one
+ * selector thread; the others block in read on a thread of their own.
+ * Either way the bytes are parsed in the source's Format.
+ */
+public interface DataSource {
+
+    /**
+     * Encoding of the datapoints in the byte stream.
+     *
+     * LINE: one datapoint per line, either {@code <value>}, stamped on
+     * arrival, or {@code <epoch nanoseconds> <value>}, separated by spaces,
+     * tabs or a comma. BINARY: 16 byte records {long epoch nanoseconds,
+     * double value}, big-endian.
+     */
+    enum Format {
+        LINE,
+        BINARY
+    }
+
+    /**
+     *
+     * @return how the datapoints are encoded
+     */
+    Format getFormat();
+
+    /**
+     *
+     * @return whether open returns a channel for the selector, rather than
+     *         the source being read with blocking reads
+     */
+    boolean isSelectable();
+
+    /**
+     * Opens the connection, or starts opening it.
+     *
+     * @return a channel in non-blocking mode for the selector, which may
+     *         still be connecting, or null if the source is not selectable
+     * @throws IOException if the feed cannot be reached
+     */
+    SelectableChannel open() throws IOException;
+
+    /**
+     * Reads what has arrived, after the position of buffer.
+     *
+     * @param buffer buffer to read into
+     * @return number of bytes read, 0 if nothing is available right now, or
+     *         -1 if the other side ended the stream
+     * @throws IOException
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     *
+     * @return whether every read ends at the end of a message, as with
+     *         datagrams, rather than anywhere in a stream
+     */
+    boolean isMessageBased();
+
+    /**
+     * Hands back the bytes at the end of what was read that were not
+     * parsed yet, before the source is closed. A source that reopens
+     * where it stopped resumes at the first of them, so no datapoint is
+     * cut in two; the others drop them.
+     *
+     * @param bytes number of bytes read but not parsed
+     */
+    default void unread(int bytes) {
+    }
+
+    void close() throws IOException;
+
+    /**
+     * Creates a source from its config notation: {@code udp:[<host>:]<port>}
+     * to receive datagrams on a local port, {@code tcp:<host>:<port>} to
+     * connect to an instrument's server, or {@code file:<path>} and
+     * {@code pipe:<path>} to read a file as it grows or a named pipe. Each
+     * kind takes the LINE format, or BINARY with the suffix -bin, e.g.
+     * {@code tcp-bin:daq1:5000}.
+     *
+     * @param spec source kind and address separated by a colon
+     * @return a new, unopened source
+     * @throws IllegalArgumentException if the notation is not understood
+     */
+    static DataSource parse(String spec) {
+        spec = spec.trim();
+        int colon = spec.indexOf(':');
+        String kind = colon < 0 ? spec : spec.substring(0, colon);
+        String target = colon < 0 ? "" : spec.substring(colon + 1);
+        Format format = Format.LINE;
+        if (kind.endsWith("-bin")) {
+            format = Format.BINARY;
+            kind = kind.substring(0, kind.length() - 4);
+        }
+        try {
+            switch (kind) {
+                case "udp":
+                    if (target.matches("\\d+")) {
+                        return new UdpSource(new InetSocketAddress(Integer.parseInt(target)), format);
+                    }
+                    if (target.lastIndexOf(':') > 0) {
+                        return new UdpSource(address(target), format);
+                    }
+                    break;
+                case "tcp":
+                    if (target.lastIndexOf(':') > 0) {
+                        return new TcpSource(address(target), format);
+                    }
+                    break;
+                case "file":
+                case "pipe":
+                    if (!target.isEmpty()) {
+                        return new FileSource(Paths.get(target), format, kind.equals("pipe"));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad port in data source " + spec, e);
+        }
+        throw new IllegalArgumentException("unknown data source " + spec
+                + "; expected udp:[<host>:]<port>, tcp:<host>:<port>, file:<path> or pipe:<path>, optionally with -bin");
+    }
+
+    private static InetSocketAddress address(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+}
@@ -13,4 +13,9 @@ public class Datapoint {
         this.value = value;
         time = LocalTime.now();
     }
+
+    public Datapoint(double value, LocalTime time) {
+        this.value = value;
+        this.time = time;
+    }
 }
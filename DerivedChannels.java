@@ -0,0 +1,203 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Virtual channels computed from other channels, such as a ratio of two
+ * sensors or a dose integrated over time. Each is a Sensor of its own,
+ * registered with the service like a physical one, whose value is an
+ * Expression over the latest values of its inputs; an input may itself
+ * be derived.
+ *
+ * Evaluation is incremental and happens on every input datapoint: update
+ * records the value, marks the channels reading it dirty and recomputes
+ * only those and the channels depending on them. The channels are kept
+ * in topological order, every channel after its inputs, so one pass in
+ * that order sees each input's new value first and recomputes each
+ * channel once per datapoint. As every datapoint advances integrate, rate
+ * and avg, their results do not depend on how the datapoints were
+ * batched. A channel is first computed once all its inputs have a value,
+ * and takes the time of the datapoint, but never goes back in time.
+ *
+ * Every channel is computed even while its sensor is not measuring, so
+ * integrals and averages stay current, but only published while it is.
+ * A result that is not a finite number, e.g. after a division by zero, is
+ * not published. Not thread safe; SamplePipeline and Aggregator drive it
+ * from a single thread.
+ */
+public class DerivedChannels {
+    //derived channels in evaluation order
+    private Sensor[] channels = new Sensor[0];
+    private Expression[] expressions = new Expression[0];
+    //channel number of every input of each derived channel
+    private int[][] slots = new int[0][];
+    private boolean[] dirty = new boolean[0];
+    private long[] dirtyTime = new long[0];
+    private long[] lastTime = new long[0];
+    private boolean[] ready = new boolean[0];
+    private boolean[] publish = new boolean[0];
+
+    //by channel number: latest value, whether there is one, derived channels reading it and whether it is derived itself
+    private double[] latest = new double[0];
+    private boolean[] known = new boolean[0];
+    private int[][] readers = new int[0][];
+    private boolean[] derived = new boolean[0];
+
+    //range of the evaluation order holding dirty channels; empty when lowestDirty > highestDirty
+    private int lowestDirty = Integer.MAX_VALUE;
+    private int highestDirty = -1;
+
+    /**
+     * Adds a derived channel; derived channels among its inputs must have
+     * been added before it.
+     *
+     * @param channel sensor holding the computed values, registered with the service
+     * @param expression a fresh expression computing the channel
+     * @param inputs sensors the expression reads, registered with the service, in the order of expression.getInputs()
+     */
+    public void add(Sensor channel, Expression expression, List<Sensor> inputs) {
+        if (channel.getChannel() < 0) {
+            throw new IllegalArgumentException(channel.getName() + " is not registered");
+        }
+        if (inputs.size() != expression.getInputs().size()) {
+            throw new IllegalArgumentException(channel.getName() + " needs " + expression.getInputs().size() + " inputs");
+        }
+        grow(channel.getChannel());
+        if (derived[channel.getChannel()]) {
+            throw new IllegalArgumentException("duplicate derived channel " + channel.getName());
+        }
+        int index = channels.length;
+        int[] inputSlots = new int[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            Sensor input = inputs.get(i);
+            if (input.getChannel() < 0) {
+                throw new IllegalArgumentException(input.getName() + " is not registered");
+            }
+            if (input == channel) {
+                throw new IllegalArgumentException(channel.getName() + " reads itself");
+            }
+            inputSlots[i] = input.getChannel();
+            grow(input.getChannel());
+            int[] reading = readers[input.getChannel()];
+            reading = reading == null ? new int[1] : Arrays.copyOf(reading, reading.length + 1);
+            reading[reading.length - 1] = index;
+            readers[input.getChannel()] = reading;
+        }
+        derived[channel.getChannel()] = true;
+        channels = Arrays.copyOf(channels, index + 1);
+        channels[index] = channel;
+        expressions = Arrays.copyOf(expressions, index + 1);
+        expressions[index] = expression;
+        slots = Arrays.copyOf(slots, index + 1);
+        slots[index] = inputSlots;
+        dirty = Arrays.copyOf(dirty, index + 1);
+        ready = Arrays.copyOf(ready, index + 1);
+        publish = Arrays.copyOf(publish, index + 1);
+        dirtyTime = Arrays.copyOf(dirtyTime, index + 1);
+        dirtyTime[index] = Long.MIN_VALUE;
+        lastTime = Arrays.copyOf(lastTime, index + 1);
+        lastTime[index] = Long.MIN_VALUE;
+    }
+
+    /**
+     *
+     * @return the derived channels in evaluation order
+     */
+    public List<Sensor> getChannels() {
+        return Arrays.asList(channels.clone());
+    }
+
+    /**
+     * Takes a datapoint of any sensor. If it is an input of derived
+     * channels, recomputes them and the channels depending on them and
+     * hands the new datapoints of those that are measuring to out, in
+     * evaluation order; the last of them is flagged as the end of the batch.
+     *
+     * @param sensor sensor the datapoint belongs to
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @param out receives the new datapoints of the derived channels
+     * @return whether the sensor is an input of a derived channel
+     */
+    public boolean update(Sensor sensor, long timeNanos, double value, SampleRingBuffer.Handler out) {
+        int channel = sensor.getChannel();
+        //the derived channels' own values come back from the pipeline, but are set by evaluate
+        if (channel >= readers.length || readers[channel] == null || derived[channel]) {
+            return false;
+        }
+        set(channel, timeNanos, value);
+        evaluate(out);
+        return true;
+    }
+
+    private void evaluate(SampleRingBuffer.Handler out) {
+        int last = -1;
+        int first = lowestDirty;
+        //set only marks channels later in the order, so the range can grow while this pass walks it
+        for (int i = first; i <= highestDirty; i++) {
+            if (!dirty[i]) {
+                continue;
+            }
+            dirty[i] = false;
+            long time = Math.max(dirtyTime[i], lastTime[i]);
+            dirtyTime[i] = Long.MIN_VALUE;
+            if (!isReady(i)) {
+                continue;
+            }
+            double value = expressions[i].evaluate(latest, slots[i], time);
+            if (!Double.isFinite(value)) {
+                continue;
+            }
+            lastTime[i] = time;
+            //marks the channels reading this one, which all come later in the order
+            set(channels[i].getChannel(), time, value);
+            if (channels[i].getState() == State.MEASURING) {
+                publish[i] = true;
+                last = i;
+            }
+        }
+        lowestDirty = Integer.MAX_VALUE;
+        highestDirty = -1;
+        for (int i = first; i <= last; i++) {
+            if (publish[i]) {
+                publish[i] = false;
+                out.onSample(channels[i], lastTime[i], latest[channels[i].getChannel()], i == last);
+            }
+        }
+    }
+
+    private void set(int channel, long timeNanos, double value) {
+        latest[channel] = value;
+        known[channel] = true;
+        int[] reading = readers[channel];
+        if (reading != null) {
+            for (int reader : reading) {
+                dirty[reader] = true;
+                dirtyTime[reader] = Math.max(dirtyTime[reader], timeNanos);
+                lowestDirty = Math.min(lowestDirty, reader);
+                highestDirty = Math.max(highestDirty, reader);
+            }
+        }
+    }
+
+    private boolean isReady(int index) {
+        if (!ready[index]) {
+            boolean all = true;
+            for (int slot : slots[index]) {
+                all &= known[slot];
+            }
+            ready[index] = all;
+        }
+        return ready[index];
+    }
+
+    private void grow(int channel) {
+        if (channel < latest.length) {
+            return;
+        }
+        int size = Math.max(channel + 1, latest.length * 2);
+        latest = Arrays.copyOf(latest, size);
+        known = Arrays.copyOf(known, size);
+        readers = Arrays.copyOf(readers, size);
+        derived = Arrays.copyOf(derived, size);
+    }
+}
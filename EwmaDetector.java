@@ -0,0 +1,73 @@
+/**
+ * EWMA control chart: an exponentially weighted moving average of the
+ * datapoints is compared against control limits around the normal level,
+ * which flags small sustained shifts while single noisy datapoints are
+ * smoothed out.
+ *
+ * The normal mean and standard deviation are learned from the first
+ * baseline datapoints. The limits are width standard deviations of the
+ * average, which for weight lambda after n datapoints is
+ * sigma * sqrt(lambda / (2 - lambda) * (1 - (1 - lambda)^(2n))), so they
+ * widen from their start-up value to the steady state. Typical settings
+ * are lambda = 0.1 and width = 3.
+ */
+public class EwmaDetector implements AnomalyDetector {
+    static final int DEFAULT_BASELINE = 256;
+
+    private final double lambda;
+    private final double width;
+    private final int baseline;
+
+    //baseline learned with Welford's algorithm
+    private int count;
+    private double mean;
+    private double m2;
+    private double stdDev;
+
+    private double average;
+    //(1 - lambda)^(2n); once negligible the limit stays at its steady state
+    private double decay = 1;
+    private double limit;
+
+    /**
+     *
+     * @param lambda weight of the newest datapoint, between 0 and 1
+     * @param width half-width of the control band in standard deviations of the average
+     * @param baseline number of datapoints the normal level is learned from, at least 2
+     */
+    public EwmaDetector(double lambda, double width, int baseline) {
+        if (!(lambda > 0 && lambda <= 1) || !(width > 0) || baseline < 2) {
+            throw new IllegalArgumentException("EWMA needs 0 < lambda <= 1, width > 0 and a baseline of at least 2");
+        }
+        this.lambda = lambda;
+        this.width = width;
+        this.baseline = baseline;
+    }
+
+    public boolean update(long timeNanos, double value) {
+        if (count < baseline) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            if (count == baseline) {
+                stdDev = Math.sqrt(m2 / (count - 1));
+                average = mean;
+            }
+            return false;
+        }
+        if (stdDev == 0) {
+            return false;
+        }
+        average += lambda * (value - average);
+        if (decay != 0) {
+            decay *= (1 - lambda) * (1 - lambda);
+            //stop before it underflows into slow subnormal arithmetic
+            if (decay < 1e-12) {
+                decay = 0;
+            }
+            limit = width * stdDev * Math.sqrt(lambda / (2 - lambda) * (1 - decay));
+        }
+        return Math.abs(average - mean) > limit;
+    }
+}
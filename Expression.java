@@ -0,0 +1,461 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Arithmetic over the latest values of other channels, the definition of
+ * a derived channel, e.g. {@code pressure / temperature} or
+ * {@code avg(t1 - t2, 60)}.
+ *
+ * The text is parsed once by recursive descent and compiled into the code
+ * of a small stack machine, so evaluating it is a loop over an int array
+ * without any allocation. Besides numbers, channel names, + - * / ^,
+ * unary minus and parentheses it knows the functions abs(x), sqrt(x),
+ * min(a, b) and max(a, b), and three that keep state between
+ * evaluations: integrate(x), the integral of x over time in seconds by
+ * the trapezoidal rule, rate(x), its change per second since the previous
+ * evaluation, and avg(x, n), the mean of its last n values for a constant
+ * n. Channel names start with a letter or _ and may contain digits and
+ * dots.
+ *
+ * integrate leaves out a value of x that is not finite, and a step that
+ * overflows, keeping the integral so far; otherwise one bad datapoint
+ * would make it NaN for good.
+ *
+ * Because of the state, every derived channel needs an instance of its
+ * own, evaluated by one thread at a time.
+ */
+public class Expression {
+    //opcodes; CONST, LOAD and the functions with state are followed by an operand
+    private static final int CONST = 0;
+    private static final int LOAD = 1;
+    private static final int NEG = 2;
+    private static final int ADD = 3;
+    private static final int SUB = 4;
+    private static final int MUL = 5;
+    private static final int DIV = 6;
+    private static final int POW = 7;
+    private static final int ABS = 8;
+    private static final int SQRT = 9;
+    private static final int MIN = 10;
+    private static final int MAX = 11;
+    private static final int INTEGRATE = 12;
+    private static final int RATE = 13;
+    private static final int AVG = 14;
+
+    private final String text;
+    private final List<String> inputs;
+    private final int[] code;
+    private final double[] constants;
+    private final double[] stack;
+
+    //integral and previous finite value (NaN before the first) of each integrate, previous value and last result of each rate
+    private final double[] state;
+    private final Window[] windows;
+    private long lastTimeNanos;
+    private boolean started;
+
+    private Expression(Compiler compiler) {
+        this.text = compiler.text;
+        this.inputs = Collections.unmodifiableList(compiler.inputs);
+        this.code = compiler.code.stream().mapToInt(Integer::intValue).toArray();
+        this.constants = compiler.constants.stream().mapToDouble(Double::doubleValue).toArray();
+        this.stack = new double[compiler.maxDepth];
+        this.state = new double[compiler.stateSize];
+        for (int slot : compiler.firstValues) {
+            state[slot] = Double.NaN;
+        }
+        this.windows = new Window[compiler.windowSizes.size()];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new Window(compiler.windowSizes.get(i));
+        }
+    }
+
+    /**
+     *
+     * @param text the expression
+     * @return the compiled expression with fresh state
+     * @throws IllegalArgumentException if the text is not a valid expression
+     */
+    public static Expression compile(String text) {
+        Compiler compiler = new Compiler(text.trim());
+        compiler.compile();
+        return new Expression(compiler);
+    }
+
+    /**
+     *
+     * @return names of the channels the expression reads, each once, in order of first use
+     */
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * Evaluates the expression on the latest values of its inputs.
+     *
+     * @param values latest values of the channels
+     * @param slots index in values of every input, in the order of getInputs()
+     * @param timeNanos epoch nanoseconds of the evaluation, never earlier than the previous one
+     * @return the value of the expression
+     */
+    public double evaluate(double[] values, int[] slots, long timeNanos) {
+        double seconds = started ? (timeNanos - lastTimeNanos) / 1e9 : 0;
+        double[] stack = this.stack;
+        int[] code = this.code;
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CONST:
+                    stack[++top] = constants[code[++pc]];
+                    break;
+                case LOAD:
+                    stack[++top] = values[slots[code[++pc]]];
+                    break;
+                case NEG:
+                    stack[top] = -stack[top];
+                    break;
+                case ADD:
+                    top--;
+                    stack[top] += stack[top + 1];
+                    break;
+                case SUB:
+                    top--;
+                    stack[top] -= stack[top + 1];
+                    break;
+                case MUL:
+                    top--;
+                    stack[top] *= stack[top + 1];
+                    break;
+                case DIV:
+                    top--;
+                    stack[top] /= stack[top + 1];
+                    break;
+                case POW:
+                    top--;
+                    stack[top] = Math.pow(stack[top], stack[top + 1]);
+                    break;
+                case ABS:
+                    stack[top] = Math.abs(stack[top]);
+                    break;
+                case SQRT:
+                    stack[top] = Math.sqrt(stack[top]);
+                    break;
+                case MIN:
+                    top--;
+                    stack[top] = Math.min(stack[top], stack[top + 1]);
+                    break;
+                case MAX:
+                    top--;
+                    stack[top] = Math.max(stack[top], stack[top + 1]);
+                    break;
+                case INTEGRATE: {
+                    int s = code[++pc];
+                    double x = stack[top];
+                    if (Double.isFinite(x)) {
+                        //not finite before the first value either, when there is no previous one
+                        double step = (state[s + 1] + x) / 2 * seconds;
+                        if (Double.isFinite(step)) {
+                            state[s] += step;
+                        }
+                        state[s + 1] = x;
+                    }
+                    stack[top] = state[s];
+                    break;
+                }
+                case RATE: {
+                    int s = code[++pc];
+                    double x = stack[top];
+                    //two values at the same time have no rate of their own; keep the last one
+                    if (started && seconds > 0) {
+                        state[s + 1] = (x - state[s]) / seconds;
+                    }
+                    state[s] = x;
+                    stack[top] = state[s + 1];
+                    break;
+                }
+                case AVG:
+                    stack[top] = windows[code[++pc]].add(stack[top]);
+                    break;
+                default:
+                    throw new IllegalStateException("bad opcode " + code[pc]);
+            }
+        }
+        started = true;
+        lastTimeNanos = timeNanos;
+        return stack[0];
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Ring of the last values of an avg with their running sum, which is
+     * recomputed each time the ring wraps so rounding errors do not pile up.
+     */
+    private static class Window {
+        private final double[] values;
+        private int position;
+        private int count;
+        private double sum;
+
+        Window(int size) {
+            this.values = new double[size];
+        }
+
+        double add(double value) {
+            if (count == values.length) {
+                sum -= values[position];
+            } else {
+                count++;
+            }
+            values[position] = value;
+            sum += value;
+            if (++position == values.length) {
+                position = 0;
+                sum = 0;
+                for (double v : values) {
+                    sum += v;
+                }
+            }
+            return sum / count;
+        }
+    }
+
+    /**
+     * Recursive descent over the grammar
+     * <pre>
+     * sum     = product {("+" | "-") product}
+     * product = unary {("*" | "/") unary}
+     * unary   = "-" unary | power
+     * power   = primary ["^" unary]
+     * primary = number | name | name "(" sum {"," sum} ")" | "(" sum ")"
+     * </pre>
+     * emitting code in postfix order as it goes.
+     */
+    private static class Compiler {
+        final String text;
+        final List<String> inputs = new ArrayList<String>();
+        final List<Integer> code = new ArrayList<Integer>();
+        final List<Double> constants = new ArrayList<Double>();
+        final List<Integer> windowSizes = new ArrayList<Integer>();
+        //state slots of the previous value of each integrate
+        final List<Integer> firstValues = new ArrayList<Integer>();
+        int stateSize;
+        int depth;
+        int maxDepth;
+        int pos;
+
+        Compiler(String text) {
+            this.text = text;
+        }
+
+        void compile() {
+            if (text.isEmpty()) {
+                throw new IllegalArgumentException("empty expression");
+            }
+            sum();
+            skipSpaces();
+            if (pos < text.length()) {
+                throw error("unexpected " + text.charAt(pos));
+            }
+        }
+
+        private void sum() {
+            product();
+            while (true) {
+                if (accept('+')) {
+                    product();
+                    emit(ADD, -1);
+                } else if (accept('-')) {
+                    product();
+                    emit(SUB, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void product() {
+            unary();
+            while (true) {
+                if (accept('*')) {
+                    unary();
+                    emit(MUL, -1);
+                } else if (accept('/')) {
+                    unary();
+                    emit(DIV, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void unary() {
+            if (accept('-')) {
+                unary();
+                emit(NEG, 0);
+            } else {
+                power();
+            }
+        }
+
+        private void power() {
+            primary();
+            //right-associative, and binding tighter than a unary minus on its left: -2^2 is -4
+            if (accept('^')) {
+                unary();
+                emit(POW, -1);
+            }
+        }
+
+        private void primary() {
+            skipSpaces();
+            if (accept('(')) {
+                sum();
+                expect(')');
+                return;
+            }
+            int start = pos;
+            if (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                emit(CONST, 1);
+                code.add(constants.size());
+                constants.add(number());
+                return;
+            }
+            String name = name();
+            if (name.isEmpty()) {
+                throw error(pos < text.length() ? "unexpected " + text.charAt(pos) : "unexpected end");
+            }
+            if (!accept('(')) {
+                int input = inputs.indexOf(name);
+                if (input < 0) {
+                    input = inputs.size();
+                    inputs.add(name);
+                }
+                emit(LOAD, 1);
+                code.add(input);
+                return;
+            }
+            switch (name) {
+                case "abs":
+                    sum();
+                    emit(ABS, 0);
+                    break;
+                case "sqrt":
+                    sum();
+                    emit(SQRT, 0);
+                    break;
+                case "min":
+                case "max":
+                    sum();
+                    expect(',');
+                    sum();
+                    emit(name.equals("min") ? MIN : MAX, -1);
+                    break;
+                case "integrate":
+                case "rate":
+                    sum();
+                    emit(name.equals("integrate") ? INTEGRATE : RATE, 0);
+                    if (name.equals("integrate")) {
+                        firstValues.add(stateSize + 1);
+                    }
+                    code.add(stateSize);
+                    stateSize += 2;
+                    break;
+                case "avg": {
+                    sum();
+                    expect(',');
+                    skipSpaces();
+                    int at = pos;
+                    double size = number();
+                    if (size < 1 || size != Math.rint(size) || size > 1 << 20) {
+                        pos = at;
+                        throw error("avg needs a whole number of values between 1 and 2^20");
+                    }
+                    emit(AVG, 0);
+                    code.add(windowSizes.size());
+                    windowSizes.add((int) size);
+                    break;
+                }
+                default:
+                    pos = start;
+                    throw error("unknown function " + name
+                            + "; expected abs, sqrt, min, max, integrate, rate or avg");
+            }
+            expect(')');
+        }
+
+        private double number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            try {
+                return Double.parseDouble(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("bad number");
+            }
+        }
+
+        private String name() {
+            int start = pos;
+            if (pos < text.length() && (Character.isLetter(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+                while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos))
+                        || text.charAt(pos) == '_' || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+            }
+            return text.substring(start, pos);
+        }
+
+        /**
+         *
+         * @param opcode instruction to append
+         * @param effect change of the stack depth
+         */
+        private void emit(int opcode, int effect) {
+            code.add(opcode);
+            depth += effect;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("expected " + c);
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + (pos + 1) + " in " + text);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the bytes of one feed into datapoints of its sensor and publishes
+ * them into the sample pipeline.
+ *
+ * Parsing works on the read buffer in place: lines are found by scanning
+ * for newlines with absolute gets and numbers are assembled digit by
+ * digit, so no String or array is created per datapoint. A decimal with at
+ * most 15 significant digits and a small exponent is computed exactly with
+ * one multiplication or division; anything else, e.g. a long mantissa or
+ * NaN, falls back to Double.parseDouble.
+ *
+ * The archive needs each sensor's datapoints in time order, but an
+ * instrument's clock may step back or its datapoints arrive reordered: a
+ * datapoint older than the last one published is dropped and counted as
+ * malformed.
+ */
+class FeedParser {
+    static final int RECORD_BYTES = 16;
+    //powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final Sensor sensor;
+    private final DataSource.Format format;
+    private final SamplePipeline pipeline;
+    private final SampleClock clock;
+
+    //written by the feed's reading thread only
+    private volatile long samples;
+    private volatile long malformed;
+
+    //value of the number and of the timestamp parsed last
+    private double number;
+    private long time;
+    //time of the last published datapoint
+    private long lastPublished = Long.MIN_VALUE;
+
+    /**
+     *
+     * @param sensor sensor the feed delivers
+     * @param format how the datapoints are encoded
+     * @param pipeline pipeline to publish into
+     * @param clock stamps datapoints that arrive without a time
+     */
+    FeedParser(Sensor sensor, DataSource.Format format, SamplePipeline pipeline, SampleClock clock) {
+        this.sensor = sensor;
+        this.format = format;
+        this.pipeline = pipeline;
+        this.clock = clock;
+    }
+
+    /**
+     * Parses the complete datapoints between position and limit and moves
+     * the position past them. An incomplete datapoint at the end is left
+     * in the buffer unless the buffer ends a message, in which case a last
+     * line without newline counts as complete.
+     *
+     * @param buffer bytes of the feed, flipped for reading
+     * @param endOfMessage whether the buffer holds the end of a datagram
+     * @param publish whether to publish the datapoints or only consume them
+     */
+    void parse(ByteBuffer buffer, boolean endOfMessage, boolean publish) {
+        if (format == DataSource.Format.BINARY) {
+            parseRecords(buffer, publish);
+            if (endOfMessage && buffer.hasRemaining()) {
+                malformed++;
+                buffer.position(buffer.limit());
+            }
+        } else {
+            parseLines(buffer, endOfMessage, publish);
+        }
+    }
+
+    /**
+     * Discards the buffer content if it is full without holding a single
+     * complete datapoint, i.e. a line longer than the buffer.
+     *
+     * @param buffer buffer after parse and compact
+     */
+    void skipOverlong(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            malformed++;
+            buffer.clear();
+        }
+    }
+
+    long getSamples() {
+        return samples;
+    }
+
+    long getMalformed() {
+        return malformed;
+    }
+
+    private void parseRecords(ByteBuffer buffer, boolean publish) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        long count = 0;
+        while (limit - position >= RECORD_BYTES) {
+            if (publish && inOrder(buffer.getLong(position))) {
+                pipeline.publish(sensor, buffer.getLong(position), buffer.getDouble(position + 8));
+                count++;
+            }
+            position += RECORD_BYTES;
+        }
+        buffer.position(position);
+        samples += count;
+    }
+
+    private void parseLines(ByteBuffer buffer, boolean endOfMessage, boolean publish) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                parseLine(buffer, start, i, publish);
+                start = i + 1;
+            }
+        }
+        if (endOfMessage && start < limit) {
+            parseLine(buffer, start, limit, publish);
+            start = limit;
+        }
+        buffer.position(start);
+    }
+
+    private void parseLine(ByteBuffer buffer, int from, int to, boolean publish) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        int firstStart = skipSeparators(buffer, from, to);
+        if (firstStart == to) {
+            return;
+        }
+        int firstEnd = tokenEnd(buffer, firstStart, to);
+        int secondStart = skipSeparators(buffer, firstEnd, to);
+        int secondEnd = tokenEnd(buffer, secondStart, to);
+        long timeNanos;
+        if (secondStart == to) {
+            timeNanos = clock.now();
+            secondStart = firstStart;
+            secondEnd = firstEnd;
+        } else if (skipSeparators(buffer, secondEnd, to) == to && parseTime(buffer, firstStart, firstEnd)) {
+            timeNanos = time;
+        } else {
+            malformed++;
+            return;
+        }
+        if (!parseNumber(buffer, secondStart, secondEnd)) {
+            malformed++;
+            return;
+        }
+        if (publish && inOrder(timeNanos)) {
+            pipeline.publish(sensor, timeNanos, number);
+            samples++;
+        }
+    }
+
+    private boolean inOrder(long timeNanos) {
+        if (timeNanos < lastPublished) {
+            malformed++;
+            return false;
+        }
+        lastPublished = timeNanos;
+        return true;
+    }
+
+    private static int skipSeparators(ByteBuffer buffer, int from, int to) {
+        while (from < to && isSeparator(buffer.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int tokenEnd(ByteBuffer buffer, int from, int to) {
+        while (from < to && !isSeparator(buffer.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Parses the token between from and to into number.
+     *
+     * @return whether the token is a number
+     */
+    private boolean parseNumber(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean point = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (significant > 0 || b != '0') {
+                    significant++;
+                }
+                if (significant <= 15) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (point) {
+                        exponent--;
+                    }
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E') && digits > 0) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+            if (j < to && (buffer.get(j) == '-' || buffer.get(j) == '+')) {
+                negativeExponent = buffer.get(j) == '-';
+                j++;
+            }
+            int explicit = 0;
+            int exponentDigits = 0;
+            for (; j < to && buffer.get(j) >= '0' && buffer.get(j) <= '9'; j++) {
+                explicit = Math.min(explicit * 10 + (buffer.get(j) - '0'), 100_000);
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+            i = j;
+        }
+        if (i < to || digits == 0 || significant > 15 || Math.abs(exponent) > 22) {
+            //NaN, Infinity, hexadecimal, long mantissas and large exponents
+            return slowParse(buffer, from, to);
+        }
+        //both operands are exact, so the one rounding step gives the correctly rounded result
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        number = negative ? -value : value;
+        return true;
+    }
+
+    private boolean slowParse(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        try {
+            number = Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the token between from and to into time.
+     *
+     * @return whether the token is an integer that fits a long
+     */
+    private boolean parseTime(ByteBuffer buffer, int from, int to) {
+        boolean negative = buffer.get(from) == '-';
+        int i = buffer.get(from) == '-' || buffer.get(from) == '+' ? from + 1 : from;
+        if (i == to) {
+            return false;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - 9) / 10 && value > (Long.MAX_VALUE - digit) / 10) {
+                return false;
+            }
+            value = value * 10 + digit;
+        }
+        time = negative ? -value : value;
+        return true;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == ',' || b == '\r';
+    }
+}
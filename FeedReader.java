@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ingests external instrument feeds into the sample pipeline, in place of
+ * the AcquisitionEngine for sensors that have a DataSource.
+ *
+ * All selectable feeds (UDP, TCP) share one selector thread; each feed
+ * has its own direct read buffer that its FeedParser reads in place.
+ * Feeds that can only be read with blocking reads (files, named pipes)
+ * get a thread of their own.
+ *
+ * The connection follows the state of the feed's sensor, checked every
+ * STATE_CHECK_MILLIS: OFF closes it; ON, MEASURING and IDLE keep it open,
+ * but only datapoints arriving while MEASURING are published, so a feed
+ * resumes with live values instead of a backlog. A connection that fails
+ * or is closed by the other side is retried every RETRY_NANOS for as long
+ * as the sensor is not OFF.
+ */
+public class FeedReader {
+    static final int BUFFER_BYTES = 1 << 16;
+    static final long STATE_CHECK_MILLIS = 100;
+    static final long RETRY_NANOS = 1_000_000_000L;
+
+    private final SamplePipeline pipeline;
+    private final SampleClock clock;
+    private final List<Feed> feeds = new CopyOnWriteArrayList<Feed>();
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     *
+     * @param pipeline pipeline the datapoints are published into
+     */
+    public FeedReader(SamplePipeline pipeline) {
+        this.pipeline = pipeline;
+        this.clock = pipeline.getService()::now;
+    }
+
+    /**
+     * Reads a sensor's datapoints from a source; must be called before start.
+     *
+     * @param sensor sensor registered with the pipeline's service
+     * @param source unopened source of the sensor's datapoints
+     */
+    public void add(Sensor sensor, DataSource source) {
+        feeds.add(new Feed(sensor, source, new FeedParser(sensor, source.getFormat(), pipeline, clock)));
+    }
+
+    /**
+     * Starts the selector thread and a thread for every blocking feed.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        running = true;
+        selectorThread = new Thread(this::select, "feeds");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        for (Feed feed : feeds) {
+            if (!feed.source.isSelectable()) {
+                Thread thread = new Thread(() -> readBlocking(feed), "feed-" + feed.sensor.getName());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops reading and closes every connection. A thread waiting for the
+     * writer of a named pipe is left to the JVM's exit, as opening a pipe
+     * cannot be interrupted.
+     */
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+            try {
+                selectorThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return number of feeds whose connection is open
+     */
+    public int getConnected() {
+        int connected = 0;
+        for (Feed feed : feeds) {
+            if (feed.connected) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     *
+     * @return datapoints published by all feeds
+     */
+    public long getSamples() {
+        long samples = 0;
+        for (Feed feed : feeds) {
+            samples += feed.parser.getSamples();
+        }
+        return samples;
+    }
+
+    /**
+     *
+     * @return lines or records of all feeds that could not be parsed or were older than the one before
+     */
+    public long getMalformed() {
+        long malformed = 0;
+        for (Feed feed : feeds) {
+            malformed += feed.parser.getMalformed();
+        }
+        return malformed;
+    }
+
+    private void select() {
+        try {
+            while (running) {
+                updateConnections();
+                selector.select(STATE_CHECK_MILLIS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Feed feed = (Feed) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            ((SocketChannel) key.channel()).finishConnect();
+                            connected(feed);
+                            key.interestOps(SelectionKey.OP_READ);
+                        } else if (key.isValid() && key.isReadable()) {
+                            readReady(feed);
+                        }
+                    } catch (IOException e) {
+                        disconnect(feed, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            for (Feed feed : feeds) {
+                if (feed.source.isSelectable()) {
+                    close(feed);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Opens the selectable feeds whose sensor is on and closes those that
+     * were turned off. Runs on the selector thread.
+     */
+    private void updateConnections() {
+        long now = System.nanoTime();
+        for (Feed feed : feeds) {
+            if (!feed.source.isSelectable()) {
+                continue;
+            }
+            boolean wanted = feed.sensor.getState() != State.OFF;
+            if (!wanted && feed.open) {
+                close(feed);
+            } else if (wanted && !feed.open && now >= feed.retryAt) {
+                try {
+                    SelectableChannel channel = feed.source.open();
+                    feed.open = true;
+                    boolean pending = channel instanceof SocketChannel && ((SocketChannel) channel).isConnectionPending();
+                    if (!pending) {
+                        connected(feed);
+                    }
+                    channel.register(selector, pending ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, feed);
+                } catch (IOException e) {
+                    disconnect(feed, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and parses everything that has arrived for a feed.
+     */
+    private void readReady(Feed feed) throws IOException {
+        ByteBuffer buffer = feed.buffer;
+        boolean messages = feed.source.isMessageBased();
+        //bounded, so one busy feed cannot starve the others
+        for (int reads = 0; reads < 16; reads++) {
+            if (messages) {
+                buffer.clear();
+            }
+            int read = feed.source.read(buffer);
+            if (read < 0) {
+                throw new IOException("closed by " + feed.source);
+            }
+            if (read == 0) {
+                return;
+            }
+            buffer.flip();
+            feed.parser.parse(buffer, messages, feed.sensor.getState() == State.MEASURING);
+            buffer.compact();
+            feed.parser.skipOverlong(buffer);
+        }
+    }
+
+    private void readBlocking(Feed feed) {
+        ByteBuffer buffer = feed.buffer;
+        while (running) {
+            try {
+                if (feed.sensor.getState() == State.OFF) {
+                    close(feed);
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(STATE_CHECK_MILLIS));
+                    continue;
+                }
+                if (!feed.open) {
+                    if (System.nanoTime() < feed.retryAt) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(STATE_CHECK_MILLIS));
+                        continue;
+                    }
+                    feed.source.open();
+                    feed.open = true;
+                    connected(feed);
+                }
+                int read = feed.source.read(buffer);
+                if (read < 0) {
+                    //the writer of the pipe is gone; open it again for the next one
+                    close(feed);
+                    continue;
+                }
+                if (read == 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(STATE_CHECK_MILLIS) / 4);
+                    continue;
+                }
+                buffer.flip();
+                feed.parser.parse(buffer, false, feed.sensor.getState() == State.MEASURING);
+                buffer.compact();
+                feed.parser.skipOverlong(buffer);
+            } catch (IOException e) {
+                disconnect(feed, e);
+            } catch (RuntimeException e) {
+                //an exception would silently end this feed
+                e.printStackTrace();
+            }
+        }
+        close(feed);
+    }
+
+    private static void connected(Feed feed) {
+        feed.connected = true;
+        feed.failing = false;
+    }
+
+    private void disconnect(Feed feed, IOException cause) {
+        if (!feed.failing) {
+            //report once per outage rather than on every retry
+            System.err.println(feed.sensor.getName() + ": " + feed.source + ": " + cause.getMessage());
+        }
+        feed.failing = true;
+        close(feed);
+        feed.retryAt = System.nanoTime() + RETRY_NANOS;
+    }
+
+    private void close(Feed feed) {
+        feed.open = false;
+        feed.connected = false;
+        //the unparsed tail is read again on reopening, where the source allows it
+        feed.source.unread(feed.buffer.position());
+        feed.buffer.clear();
+        try {
+            feed.source.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One sensor's source with its read buffer and connection state.
+     */
+    private static class Feed {
+        final Sensor sensor;
+        final DataSource source;
+        final FeedParser parser;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        //written by the feed's reading thread only
+        boolean open;
+        volatile boolean connected;
+        boolean failing;
+        long retryAt;
+
+        Feed(Sensor sensor, DataSource source, FeedParser parser) {
+            this.sensor = sensor;
+            this.source = source;
+            this.parser = parser;
+        }
+    }
+}
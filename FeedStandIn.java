@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays the instruments of every sensor in a config that has an external
+ * feed, so the feeds can be tried without the hardware: each one sends
+ * the sensor's simulated data at its rate over the feed's transport and in
+ * its format, timestamped with the nominal sample times.
+ *
+ * For a udp source it sends datagrams to the source's port (on the
+ * loopback interface if the source listens on all of them), for tcp it
+ * serves the source's port to any number of readers, for file it appends
+ * to the file and for pipe it creates the named pipe with mkfifo if
+ * needed and writes into it whenever a reader has it open.
+ *
+ * Usage: {@code java FeedStandIn [config]}, sensors.csv by default.
+ */
+public class FeedStandIn {
+    static final long TICK_NANOS = 10_000_000L;
+    //a datagram stays well below the 64 KiB limit
+    static final int MAX_DATAGRAM_BYTES = 32_768;
+    //datapoints an output could not take for longer than this are skipped instead of sent in a burst
+    static final long MAX_BACKLOG_NANOS = 1_000_000_000L;
+
+    /**
+     * Where the encoded datapoints of one tick go.
+     */
+    interface Output {
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path config = Paths.get(args.length > 0 ? args[0] : "sensors.csv");
+        SensorRegistry registry = SensorRegistry.load(config);
+        int feeds = 0;
+        for (Sensor sensor : registry.getSensors()) {
+            DataSource source = registry.createSource(sensor);
+            if (source == null) {
+                continue;
+            }
+            Output output = output(source);
+            Thread thread = new Thread(() -> play(sensor, source.getFormat(), output), "standin-" + sensor.getName());
+            thread.setDaemon(true);
+            thread.start();
+            System.out.println(sensor.getName() + ": " + sensor.getRate() + " Hz to " + source + " as " + source.getFormat());
+            feeds++;
+        }
+        if (feeds == 0) {
+            System.out.println("no sensor in " + config + " has a source");
+            return;
+        }
+        Thread.currentThread().join();
+    }
+
+    private static Output output(DataSource source) throws IOException {
+        if (source instanceof UdpSource) {
+            InetSocketAddress address = ((UdpSource) source).getAddress();
+            InetSocketAddress target = address.getAddress().isAnyLocalAddress()
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), address.getPort()) : address;
+            DatagramChannel channel = DatagramChannel.open();
+            return data -> {
+                //one datagram per batch of whole datapoints, which may be refused while nobody listens
+                try {
+                    channel.send(data, target);
+                } catch (IOException e) {
+                    data.position(data.limit());
+                }
+            };
+        }
+        if (source instanceof TcpSource) {
+            return serve(((TcpSource) source).getAddress().getPort());
+        }
+        FileSource file = (FileSource) source;
+        if (file.isPipe() && !Files.exists(file.getPath())) {
+            mkfifo(file.getPath());
+        }
+        return append(file.getPath());
+    }
+
+    private static void mkfifo(Path path) throws IOException {
+        try {
+            Process process = new ProcessBuilder("mkfifo", path.toString()).inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IOException("mkfifo " + path + " failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted creating " + path, e);
+        }
+    }
+
+    /**
+     * Accepts readers on a port and sends every batch to all of them.
+     */
+    private static Output serve(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        List<SocketChannel> clients = new CopyOnWriteArrayList<SocketChannel>();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    clients.add(server.accept());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "standin-accept-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return data -> {
+            for (SocketChannel client : clients) {
+                ByteBuffer copy = data.duplicate();
+                try {
+                    while (copy.hasRemaining()) {
+                        client.write(copy);
+                    }
+                } catch (IOException e) {
+                    clients.remove(client);
+                    client.close();
+                }
+            }
+            data.position(data.limit());
+        };
+    }
+
+    /**
+     * Appends to a file, or writes into a named pipe while it has a reader;
+     * without one, opening a pipe waits and the datapoints meanwhile are
+     * not sent.
+     */
+    private static Output append(Path path) {
+        FileChannel[] channel = new FileChannel[1];
+        return data -> {
+            try {
+                if (channel[0] == null) {
+                    channel[0] = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                while (data.hasRemaining()) {
+                    channel[0].write(data);
+                }
+            } catch (IOException e) {
+                //the reader of the pipe went away; wait for the next one
+                data.position(data.limit());
+                if (channel[0] != null) {
+                    channel[0].close();
+                    channel[0] = null;
+                }
+            }
+        };
+    }
+
+    private static void play(Sensor sensor, DataSource.Format format, Output output) {
+        SampleClock clock = SampleClock.system();
+        long periodNanos = Math.round(1e9 / sensor.getRate());
+        long start = clock.now();
+        long taken = 0;
+        ByteBuffer batch = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+        while (true) {
+            LockSupport.parkNanos(TICK_NANOS);
+            long due = (clock.now() - start) / periodNanos + 1;
+            taken = Math.max(taken, due - MAX_BACKLOG_NANOS / periodNanos);
+            try {
+                while (taken < due) {
+                    long time = start + taken * periodNanos;
+                    double value = sensor.generateData();
+                    if (format == DataSource.Format.BINARY) {
+                        batch.putLong(time).putDouble(value);
+                    } else {
+                        batch.put((time + " " + value + "\n").getBytes(StandardCharsets.US_ASCII));
+                    }
+                    taken++;
+                    if (batch.remaining() < 64) {
+                        flush(batch, output);
+                    }
+                }
+                flush(batch, output);
+            } catch (IOException | RuntimeException e) {
+                //an exception would silently end this feed
+                e.printStackTrace();
+                batch.clear();
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer batch, Output output) throws IOException {
+        batch.flip();
+        if (batch.hasRemaining()) {
+            output.write(batch);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads datapoints from a file an instrument appends to, or from a named
+ * pipe it writes into. Neither can be selected, so the FeedReader gives
+ * the source a thread of its own that blocks in read.
+ *
+ * A regular file is followed like {@code tail -f}: reading starts after
+ * the last complete line or record already in it, its end only means
+ * nothing has been appended yet, and reopening continues at the first
+ * byte that was not parsed. For a pipe, the end means the writer has
+ * gone; opening it again waits for the next writer.
+ */
+public class FileSource implements DataSource {
+    private final Path path;
+    private final Format format;
+    private final boolean pipe;
+    private FileChannel channel;
+    private boolean regular;
+    //bytes of the regular file read so far; -1 until it is first opened
+    private long position = -1;
+
+    /**
+     *
+     * @param path file or named pipe to read
+     * @param format how the datapoints are encoded
+     * @param pipe whether the path is configured as a named pipe
+     */
+    public FileSource(Path path, Format format, boolean pipe) {
+        this.path = path;
+        this.format = format;
+        this.pipe = pipe;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isPipe() {
+        return pipe;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public boolean isSelectable() {
+        return false;
+    }
+
+    /**
+     * Opens the file; for a named pipe this blocks until a writer opens it.
+     *
+     * @return null, as the file is read with blocking reads
+     * @throws IOException if the file cannot be opened
+     */
+    public SelectableChannel open() throws IOException {
+        regular = Files.isRegularFile(path);
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (regular) {
+            if (position < 0) {
+                position = end();
+            }
+            channel.position(position);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return offset just after the last complete line or record in the file
+     */
+    private long end() throws IOException {
+        long size = channel.size();
+        if (format == Format.BINARY) {
+            return size - size % FeedParser.RECORD_BYTES;
+        }
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        for (long to = size; to > 0; to -= block.capacity()) {
+            long from = Math.max(0, to - block.capacity());
+            block.clear().limit((int) (to - from));
+            channel.read(block, from);
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    public int read(ByteBuffer buffer) throws IOException {
+        int read = channel.read(buffer);
+        if (read > 0 && regular) {
+            position += read;
+        }
+        return read < 0 && regular ? 0 : read;
+    }
+
+    public boolean isMessageBased() {
+        return false;
+    }
+
+    @Override
+    public void unread(int bytes) {
+        if (regular) {
+            position -= bytes;
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (pipe ? "pipe " : "file ") + path;
+    }
+}
@@ -0,0 +1,484 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a whole fleet of simulated sensors through the sample pipeline,
+ * headless, to load and soak test ingest, archiving and alarms.
+ *
+ * The sensors use Sensor's Gaussian model with seeds derived from one
+ * fleet seed, and every datapoint gets its nominal sample time, so a run
+ * is reproducible: the same seed and fault script give the same values
+ * at the same offsets from the start. Generator threads each own a slice
+ * of the fleet and publish what fell due every TICK_NANOS; with the
+ * pipeline's BLOCK policy they slow down rather than drop datapoints when
+ * the consumers cannot keep up, which shows as a growing lag behind the
+ * schedule. That lag, the published rate, the sample-to-archive latency
+ * and heap and GC use are reported periodically, and once more at the end;
+ * the latency percentiles cover the time since the previous report, and
+ * the final report gives the worst of them.
+ *
+ * Each sensor's range is 0 to 100, and its alarm rule allows five standard
+ * deviations around the mean, so a healthy fleet raises practically no
+ * alarms and the injected faults stand out. A fault script has one fault
+ * per line, {@code <at seconds> <kind> <sensors> <duration seconds> [parameter]},
+ * where sensors is *, an index or a range such as 100-199, and kind is one
+ * of:
+ * drift (adds parameter units per second since the fault started),
+ * spike (adds parameter to every datapoint in the window, or to the one
+ * datapoint at its start for a duration of 0),
+ * stuck (repeats the last value before the fault),
+ * dropout (sends nothing),
+ * burst (sends parameter times as many datapoints, the extra ones in the
+ * first half of the sample period) and
+ * skew (shifts timestamps by up to parameter milliseconds: the sensor's
+ * clock runs SKEW_SLOPE faster or slower until the shift is reached, and
+ * back before the window ends).
+ * Every fault keeps each sensor's timestamps increasing, as the archive
+ * requires.
+ * Blank lines and text after # are ignored.
+ *
+ * Usage: {@code java FleetSimulator <sensors> <rate Hz | min-max> [seconds] [fault script] [seed] [threads]};
+ * a range of rates is spread geometrically over the fleet, and 0 seconds runs until interrupted.
+ */
+public class FleetSimulator {
+    static final double MIN = 0;
+    static final double MAX = 100;
+    static final long TICK_NANOS = 10_000_000L;
+    //how much faster or slower a skewed clock runs; below 1/2, so a skewed burst still keeps its times in order
+    static final double SKEW_SLOPE = 0.25;
+    static final long REPORT_NANOS = 10_000_000_000L;
+    //kept short, so a fleet of thousands fits the heap: about 17 KB of rollups per sensor plus a minute of raw datapoints
+    static final long RAW_RETENTION_NANOS = 60_000_000_000L;
+    static final int SECOND_ROLLUPS = 300;
+    static final int MINUTE_ROLLUPS = 60;
+
+    /**
+     * Kinds of scripted faults.
+     */
+    enum FaultKind {
+        DRIFT,
+        SPIKE,
+        STUCK,
+        DROPOUT,
+        BURST,
+        SKEW
+    }
+
+    /**
+     * One scripted fault as it applies to one sensor; stuck faults keep the
+     * held value per sensor.
+     */
+    static class Fault {
+        final FaultKind kind;
+        //window in nanoseconds since the start of the run
+        final long from;
+        final long to;
+        final double parameter;
+        double held = Double.NaN;
+
+        Fault(FaultKind kind, long from, long to, double parameter) {
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.parameter = parameter;
+        }
+
+        Fault copy() {
+            return new Fault(kind, from, to, parameter);
+        }
+    }
+
+    /**
+     * A parsed line of a fault script.
+     */
+    static class ScriptLine {
+        final int first;
+        final int last;
+        final Fault fault;
+
+        ScriptLine(int first, int last, Fault fault) {
+            this.first = first;
+            this.last = last;
+            this.fault = fault;
+        }
+    }
+
+    private final Sensor[] sensors;
+    private final long[] periodNanos;
+    private final Fault[][] faults;
+    private final SamplePipeline pipeline;
+    private final Service service;
+    private final int threads;
+
+    //per generator thread, written by that thread only
+    private final AtomicLongArray published;
+    private final AtomicLongArray lag;
+    private final LongAdder alarms = new LongAdder();
+    private long start;
+    private volatile boolean running;
+
+    /**
+     *
+     * @param count number of sensors
+     * @param minRate rate of the slowest sensor in Hz
+     * @param maxRate rate of the fastest sensor in Hz
+     * @param seed seed of the whole fleet
+     * @param script faults as parsed by parseScript; each applies to the sensors it names
+     * @param threads number of generator threads
+     */
+    public FleetSimulator(int count, double minRate, double maxRate, long seed, List<ScriptLine> script, int threads) {
+        this.service = new Service();
+        this.sensors = new Sensor[count];
+        this.periodNanos = new long[count];
+        SplittableRandom seeds = new SplittableRandom(seed);
+        for (int i = 0; i < count; i++) {
+            double rate = count == 1 ? minRate : minRate * Math.pow(maxRate / minRate, i / (double) (count - 1));
+            sensors[i] = new Sensor(State.MEASURING, MIN, MAX, "sim-" + i, true, rate, seeds.nextLong());
+            periodNanos[i] = Math.round(1e9 / rate);
+            //the model's standard deviation is 0.3 of the range, so this is 5 of them either side of the mean
+            service.register(sensors[i], new AlarmRule(MIN - 1.5 * (MAX - MIN), MAX + 1.5 * (MAX - MIN)));
+        }
+        this.faults = new Fault[count][];
+        List<List<Fault>> faultsOf = new ArrayList<List<Fault>>();
+        for (int i = 0; i < count; i++) {
+            faultsOf.add(new ArrayList<Fault>());
+        }
+        for (ScriptLine line : script) {
+            for (int i = line.first; i <= Math.min(line.last, count - 1); i++) {
+                faultsOf.get(i).add(line.fault.copy());
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            faults[i] = faultsOf.get(i).toArray(new Fault[0]);
+        }
+        //memory stays flat during a soak test once the first hour has filled the rollups
+        service.enableRetention(RAW_RETENTION_NANOS, SECOND_ROLLUPS, MINUTE_ROLLUPS);
+        this.pipeline = new SamplePipeline(service);
+        pipeline.addAlarmListener((sensor, timeNanos, value, alarm) -> alarms.increment());
+        this.threads = threads;
+        this.published = new AtomicLongArray(threads);
+        this.lag = new AtomicLongArray(threads);
+    }
+
+    /**
+     * Reads a fault script.
+     *
+     * @param script file in the notation described above
+     * @return its faults in file order
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static List<ScriptLine> parseScript(Path script) throws IOException {
+        List<ScriptLine> lines = new ArrayList<ScriptLine>();
+        try (BufferedReader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                line = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields.length < 4 || fields.length > 5) {
+                        throw new IllegalArgumentException("expected <at seconds> <kind> <sensors> <duration seconds> [parameter]");
+                    }
+                    long from = Math.round(Double.parseDouble(fields[0]) * 1e9);
+                    FaultKind kind = FaultKind.valueOf(fields[1].toUpperCase());
+                    long duration = Math.round(Double.parseDouble(fields[3]) * 1e9);
+                    double parameter = fields.length == 5 ? Double.parseDouble(fields[4]) : 0;
+                    if (kind == FaultKind.BURST && parameter < 1) {
+                        throw new IllegalArgumentException("burst needs a factor of at least 1");
+                    }
+                    int first = 0;
+                    int last = Integer.MAX_VALUE;
+                    if (!fields[2].equals("*")) {
+                        int dash = fields[2].indexOf('-');
+                        first = Integer.parseInt(dash < 0 ? fields[2] : fields[2].substring(0, dash));
+                        last = dash < 0 ? first : Integer.parseInt(fields[2].substring(dash + 1));
+                    }
+                    //a spike of duration 0 hits exactly the first datapoint at or after its start
+                    lines.add(new ScriptLine(first, last, new Fault(kind, from, duration == 0 ? from : from + duration, parameter)));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(script + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Starts the generator threads.
+     */
+    public void start() {
+        start = service.now();
+        running = true;
+        for (int t = 0; t < threads; t++) {
+            int slice = t;
+            Thread thread = new Thread(() -> generate(slice), "sim-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops generating and lets the pipeline drain.
+     */
+    public void shutdown() {
+        running = false;
+        //the generators see running within a tick
+        LockSupport.parkNanos(2 * TICK_NANOS);
+        pipeline.shutdown();
+    }
+
+    /**
+     * Publishes every datapoint that fell due for the sensors of one slice,
+     * once per tick, until stopped.
+     */
+    private void generate(int slice) {
+        long[] next = new long[sensors.length];
+        //whether the spike of duration 0 of each fault has fired, per sensor
+        boolean[][] spiked = new boolean[sensors.length][];
+        for (int i = slice; i < sensors.length; i += threads) {
+            spiked[i] = new boolean[faults[i].length];
+        }
+        long count = 0;
+        long tick = 0;
+        while (running) {
+            long target = start + ++tick * TICK_NANOS;
+            long wait = target - service.now();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long elapsed = target - start;
+            try {
+                for (int i = slice; i < sensors.length; i += threads) {
+                    long due = elapsed / periodNanos[i] + 1;
+                    while (next[i] < due) {
+                        long offset = next[i]++ * periodNanos[i];
+                        count += emit(i, offset, spiked[i]);
+                    }
+                }
+            } catch (RuntimeException e) {
+                //an exception would silently stop this slice of the fleet
+                e.printStackTrace();
+            }
+            published.lazySet(slice, count);
+            lag.lazySet(slice, Math.max(0, service.now() - target));
+        }
+    }
+
+    /**
+     * Generates one nominal datapoint of a sensor, applies its active
+     * faults and publishes the result.
+     *
+     * @return number of datapoints published
+     */
+    private int emit(int i, long offset, boolean[] spiked) {
+        Sensor sensor = sensors[i];
+        double value = sensor.generateData();
+        Fault[] active = faults[i];
+        if (active.length == 0) {
+            pipeline.publish(sensor, start + offset, value);
+            return 1;
+        }
+        long time = start + offset;
+        int copies = 1;
+        for (int f = 0; f < active.length; f++) {
+            Fault fault = active[f];
+            boolean instant = fault.from == fault.to;
+            if (instant ? offset < fault.from || spiked[f] : offset < fault.from || offset >= fault.to) {
+                if (fault.kind == FaultKind.STUCK) {
+                    fault.held = value;
+                }
+                continue;
+            }
+            switch (fault.kind) {
+                case DRIFT:
+                    value += fault.parameter * (offset - fault.from) / 1e9;
+                    break;
+                case SPIKE:
+                    value += fault.parameter;
+                    spiked[f] = instant;
+                    break;
+                case STUCK:
+                    value = Double.isNaN(fault.held) ? value : fault.held;
+                    fault.held = value;
+                    break;
+                case DROPOUT:
+                    return 0;
+                case BURST:
+                    copies = (int) fault.parameter;
+                    break;
+                default:
+                    time += skew(fault, offset);
+                    break;
+            }
+        }
+        pipeline.publish(sensor, time, value);
+        //the next datapoint comes at least half a period later, even with a skew easing back
+        for (int c = 1; c < copies; c++) {
+            pipeline.publish(sensor, time + c * periodNanos[i] / (2 * copies), sensor.generateData());
+        }
+        return copies;
+    }
+
+    /**
+     *
+     * @param fault a skew fault
+     * @param offset nanoseconds since the start, within the fault's window
+     * @return shift of the timestamp, eased in from the start of the window and out towards its end
+     */
+    private static long skew(Fault fault, long offset) {
+        double full = Math.abs(fault.parameter) * 1e6;
+        double eased = Math.min(full, SKEW_SLOPE * Math.min(offset - fault.from, fault.to - offset));
+        return Math.round(Math.copySign(eased, fault.parameter));
+    }
+
+    /**
+     *
+     * @return datapoints published so far
+     */
+    public long getPublished() {
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            total += published.get(t);
+        }
+        return total;
+    }
+
+    /**
+     *
+     * @return how far the slowest generator thread is behind its schedule, in nanoseconds
+     */
+    public long getLag() {
+        long max = 0;
+        for (int t = 0; t < threads; t++) {
+            max = Math.max(max, lag.get(t));
+        }
+        return max;
+    }
+
+    /**
+     *
+     * @return datapoints per second the fleet is scheduled to produce, without bursts
+     */
+    public double getTargetRate() {
+        double rate = 0;
+        for (Sensor sensor : sensors) {
+            rate += sensor.getRate();
+        }
+        return rate;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java FleetSimulator <sensors> <rate Hz | min-max> [seconds] [fault script] [seed] [threads]");
+            return;
+        }
+        int count = Integer.parseInt(args[0]);
+        String[] rates = args[1].split("-");
+        double minRate = Double.parseDouble(rates[0]);
+        double maxRate = rates.length > 1 ? Double.parseDouble(rates[1]) : minRate;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        List<ScriptLine> script = args.length > 3 && !args[3].equals("-") ? parseScript(Paths.get(args[3])) : new ArrayList<ScriptLine>();
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        FleetSimulator simulator = new FleetSimulator(count, minRate, maxRate, seed, script, threads);
+        System.out.printf("%,d sensors, %,.0f samples/s scheduled, %d faults, seed %d%n",
+                count, simulator.getTargetRate(), script.size(), seed);
+        long startNanos = System.nanoTime();
+        Reporter reporter = new Reporter(simulator, startNanos);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            simulator.shutdown();
+            System.out.println("final: " + reporter.report(true));
+        }, "simulator-shutdown"));
+        simulator.start();
+        long endNanos = startNanos + seconds * 1_000_000_000L;
+        while (seconds == 0 || System.nanoTime() < endNanos) {
+            LockSupport.parkNanos(seconds == 0 ? REPORT_NANOS : Math.min(REPORT_NANOS, endNanos - System.nanoTime()));
+            System.out.println(reporter.report(false));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Formats the periodic report lines.
+     */
+    static class Reporter {
+        private final FleetSimulator simulator;
+        private final long startNanos;
+        private long lastNanos;
+        private long lastPublished;
+        private long lastCollections;
+        //worst percentiles of any period, as the histogram is reset after each one
+        private long worst99;
+        private long worst999;
+        private long worstMax;
+
+        Reporter(FleetSimulator simulator, long startNanos) {
+            this.simulator = simulator;
+            this.startNanos = startNanos;
+            this.lastNanos = startNanos;
+        }
+
+        /**
+         *
+         * @param total whether to report the averages over the whole run rather than since the last report
+         * @return one line of throughput, lag, latency, memory and alarms
+         */
+        synchronized String report(boolean total) {
+            long now = System.nanoTime();
+            long published = simulator.getPublished();
+            double seconds = (now - (total ? startNanos : lastNanos)) / 1e9;
+            double rate = (published - (total ? 0 : lastPublished)) / seconds;
+            long collections = 0;
+            long collectionMillis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections += Math.max(0, gc.getCollectionCount());
+                collectionMillis += Math.max(0, gc.getCollectionTime());
+            }
+            Runtime runtime = Runtime.getRuntime();
+            LatencyHistogram latency = simulator.service.getMetrics().getSampleToArchive();
+            long p50 = latency.getMedian();
+            long p99 = latency.get99thPercentile();
+            long p999 = latency.get999thPercentile();
+            long max = latency.getMax();
+            if (latency.getCount() > 0) {
+                worst99 = Math.max(worst99, p99);
+                worst999 = Math.max(worst999, p999);
+                worstMax = Math.max(worstMax, max);
+            }
+            String percentiles = total
+                    ? String.format("worst p99 %.2f p99.9 %.2f max %.2f ms", worst99 / 1e6, worst999 / 1e6, worstMax / 1e6)
+                    : String.format("p50 %.2f p99 %.2f p99.9 %.2f max %.2f ms", p50 / 1e6, p99 / 1e6, p999 / 1e6, max / 1e6);
+            String line = String.format("%,.0fs: %,.0f samples/s (%,d total), lag %.1f ms, sample->archive %s,"
+                            + " heap %,d/%,d MiB, %d GCs (%,d ms total), %,d alarms, %,d dropped",
+                    (now - startNanos) / 1e9, rate, published, simulator.getLag() / 1e6, percentiles,
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.maxMemory() >> 20,
+                    collections - (total ? 0 : lastCollections), collectionMillis, simulator.alarms.sum(), simulator.pipeline.getDropped());
+            lastNanos = now;
+            lastPublished = published;
+            lastCollections = collections;
+            if (!total) {
+                //percentiles per report period rather than since the start
+                latency.reset();
+            }
+            return line;
+        }
+    }
+}
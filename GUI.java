@@ -1,5 +1,6 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import java.awt.BorderLayout;
 import java.awt.Font;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -8,648 +9,222 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import javax.management.JMException;
 import java.awt.event.ActionEvent;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.FormatStyle;
 
 public class GUI extends JFrame{
 
-    //components of FAIR are cooled to as low as -269C and need thermal control within +/-0.5C
-    Sensor tempSensor = new Sensor(State.OFF, -269.5, -268.5, "temperature", true);
-
-    //humidity sensor needs to stay within 10%
-    Sensor humSensor = new Sensor(State.OFF,  0.0, 10.0, "humidity", false);
-
-    //energy must be kept below 5MeV to avoid producing radioactivities in the sample
-    //due to the photonuclear effect which has resonance peak between 5-40MeV
-    Sensor radSensor = new Sensor(State.OFF, 5.0, 40.0, "radiation", false);
-
-    //particle accelerators require ultra high vacuum with pressure levels ranging from 
-    //10^(-9) - 10^(-12) mbar; i.e. 1 - 10^(-3) nanombar
-    Sensor presSensor = new Sensor(State.OFF, Math.pow(10, -3), 1, "pressure", false);
+    //sensors and their allowed ranges come from the config file
+    SensorRegistry registry;
 
     //service instance variable responsible for archiving and monitoring
     Service service = new Service();
 
     //final variables that determind formatting
-    final int WIDTH = 160;
-    final int HEIGHT = 320;
-    final Font HEADER1 = new Font("Dialog", Font.BOLD, 18);
+    final int WIDTH = 900;
+    final int HEIGHT = 480;
+    final int TREND_HEIGHT = 220;
+    final Font HEADER1 = new Font("Dialog", Font.BOLD, 30);
     final Color COL_COLOR = new Color(206, 132, 132);
-    final EmptyBorder HEADER_BORDER = new EmptyBorder(20, 20, 10, 20);
 
-    public GUI() {
+    public GUI(SensorRegistry registry) {
         //loading GUI frame
         super("Particle Accelerator Monitoring");
+        this.registry = registry;
         setBackground(new Color(229, 191, 191));
-        
+        List<Sensor> sensors = registry.getSensors();
+        for (Sensor sensor : sensors) {
+            service.register(sensor, registry.createRule(sensor));
+        }
+
+        //replay the write-ahead log of earlier sessions and keep logging to it
+        try {
+            service.attachLog(new WriteAheadLog(Paths.get("wal")));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //raw datapoints in memory for 10 minutes, then spilled to disk for the export on exit,
+        //1 second rollups for an hour and 1 minute rollups for a day
+        try {
+            service.enableRetention(600_000_000_000L, 3600, 1440, Paths.get("spill"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //latencies and counters for jconsole, and every 5 seconds in metrics.properties
+        Metrics metrics = service.getMetrics();
+        try {
+            metrics.registerMBeans();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        metrics.startSnapshots(Paths.get("metrics.properties"), 5000);
+
         //title
         JLabel title = new JLabel("Live Sensor Monitoring", JLabel.CENTER);
-        title.setFont(new Font("Dialog", Font.BOLD, 30));
-        title.setAlignmentX(JLabel.CENTER_ALIGNMENT);
+        title.setFont(HEADER1);
         title.setBorder(new EmptyBorder(20, 20, 20, 20));
-        add(title);
-
-        //temperature column
-        JPanel col1 = new JPanel();
-        col1.setPreferredSize(new Dimension(WIDTH, HEIGHT));
-        col1.setBackground(COL_COLOR);
-        col1.setLayout(new BoxLayout(col1, BoxLayout.Y_AXIS));
-
-        JLabel tempText = new JLabel("Temperature", JLabel.CENTER);
-        JLabel curTemp = new JLabel("---");
-        JLabel tempTime = new JLabel("\n");
-        JLabel tempStatus = new JLabel("Status: OFF");
-        JLabel tempAlert = new JLabel("\n", JLabel.CENTER);
-
-        tempText.setFont(HEADER1);
-        tempText.setBorder(HEADER_BORDER);
-        tempText.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        curTemp.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        tempTime.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        tempStatus.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        tempStatus.setBorder(new EmptyBorder(0, 0, 10, 0));
-        tempAlert.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        tempAlert.setMaximumSize(new Dimension(130, 100));
-        tempAlert.setForeground(new Color(255, 255, 255));
-
-        col1.add(tempText);
-        col1.add(curTemp);
-        col1.add(tempTime);
-        col1.add(tempStatus);
-
-        //temperature buttons
-        JButton tempOn = new JButton("Turn on");
-        col1.add(tempOn);
-        tempOn.setEnabled(true);
-        tempOn.setFocusPainted(false);
-        tempOn.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton tempMon = new JButton("Start");
-        col1.add(tempMon);
-        tempMon.setEnabled(false);
-        tempMon.setFocusPainted(false);
-        tempMon.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        JButton tempStop = new JButton("Pause");
-        col1.add(tempStop);
-        tempStop.setEnabled(false);
-        tempStop.setFocusPainted(false);
-        tempStop.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton tempOff = new JButton("Turn off");
-        col1.add(tempOff);
-        tempOff.setEnabled(false);
-        tempOff.setFocusPainted(false);
-        tempOff.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        col1.add(tempAlert);
-
-        //temperature action listeners
-        tempOn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update tempSensor's state
-                tempSensor.setState(State.ON);
-
-                //remove time display
-                tempTime.setText("\n");
-
-                //update displayed status
-                tempStatus.setText("Status: ON");
-
-                //enable other buttons; disable on button
-                tempOn.setEnabled(false);
-                tempMon.setEnabled(true);
-                tempOff.setEnabled(true);
-            }
-        });
-        tempMon.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                tempSensor.setState(State.MEASURING);
-
-                //remove time display
-                tempTime.setText("\n");
-
-                //update displayed status
-                tempStatus.setText("Status: MEAS");
-
-                //disable measuring button
-                tempMon.setEnabled(false);
-                tempStop.setEnabled(true);
-            }
-        });
-        tempStop.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                tempSensor.setState(State.IDLE);
-
-                //add time of last measurement
-                tempTime.setText("(Last at: " + LocalTime.now().format(DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM)) + ")");
-
-                //update status
-                tempStatus.setText("Status: IDLE");
-
-                //update buttons
-                tempMon.setEnabled(true);
-                tempStop.setEnabled(false);
-            }
-        });
-        tempOff.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                tempSensor.setState(State.OFF);
-
-                //remove time display
-                tempTime.setText("\n");
-
-                //update status
-                tempStatus.setText("Status: OFF");
-
-                //update text
-                curTemp.setText("---");
-
-                //update alert
-                tempAlert.setText("\n");
-
-                //update buttons
-                tempOn.setEnabled(true);
-                tempMon.setEnabled(false);
-                tempStop.setEnabled(false);
-                tempOff.setEnabled(false);
-            }
-        });
-
-        //humidity column
-        JPanel col2 = new JPanel();
-        col2.setPreferredSize(new Dimension(WIDTH, HEIGHT));
-        col2.setBackground(COL_COLOR);
-        col2.setLayout(new BoxLayout(col2, BoxLayout.Y_AXIS));
-
-        JLabel humText = new JLabel("Humidity", JLabel.CENTER);
-        JLabel curHum = new JLabel("---");
-        JLabel humTime = new JLabel("\n");
-        JLabel humStatus = new JLabel("Status: OFF");
-        JLabel humAlert = new JLabel("\n", JLabel.CENTER);
-
-        humText.setFont(HEADER1);
-        humText.setBorder(HEADER_BORDER);
-        humText.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        curHum.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        humTime.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        humStatus.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        humStatus.setBorder(new EmptyBorder(0, 0, 10, 0));
-        humAlert.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        humAlert.setMaximumSize(new Dimension(130, 100));
-        humAlert.setForeground(new Color(255, 255, 255));
-
-        col2.add(humText);
-        col2.add(curHum);
-        col2.add(humTime);
-        col2.add(humStatus);
-
-        //humidity buttons
-        JButton humOn = new JButton("Turn on");
-        col2.add(humOn);
-        humOn.setEnabled(true);
-        humOn.setFocusPainted(false);
-        humOn.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton humMon = new JButton("Start");
-        col2.add(humMon);
-        humMon.setEnabled(false);
-        humMon.setFocusPainted(false);
-        humMon.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        JButton humStop = new JButton("Pause");
-        col2.add(humStop);
-        humStop.setEnabled(false);
-        humStop.setFocusPainted(false);
-        humStop.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton humOff = new JButton("Turn off");
-        col2.add(humOff);
-        humOff.setEnabled(false);
-        humOff.setFocusPainted(false);
-        humOff.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        col2.add(humAlert);
-
-        //humidity action listeners
-        humOn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update humSensor's state
-                humSensor.setState(State.ON);
-
-                //remove time display
-                humTime.setText("\n");
-
-                //update displayed status
-                humStatus.setText("Status: ON");
-
-                //enable other buttons; disable on button
-                humOn.setEnabled(false);
-                humMon.setEnabled(true);
-                humOff.setEnabled(true);
-            }
-        });
-        humMon.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                humSensor.setState(State.MEASURING);
-
-                //remove time display
-                humTime.setText("\n");
-
-                //update displayed status
-                humStatus.setText("Status: MEAS");
-
-                //disable measuring button
-                humMon.setEnabled(false);
-                humStop.setEnabled(true);
-            }
-        });
-        humStop.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                humSensor.setState(State.IDLE);
-
-                //add time of last measurement
-                humTime.setText("(Last at: " + LocalTime.now().format(DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM)) + ")");
-
-                //update status
-                humStatus.setText("Status: IDLE");
-
-                //update buttons
-                humMon.setEnabled(true);
-                humStop.setEnabled(false);
-            }
-        });
-        humOff.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                humSensor.setState(State.OFF);
-
-                //remove time display
-                humTime.setText("\n");
-
-                //update status
-                humStatus.setText("Status: OFF");
-
-                //update text
-                curHum.setText("---");
-
-                //update alert
-                humAlert.setText("\n");
-
-                //update buttons
-                humOn.setEnabled(true);
-                humMon.setEnabled(false);
-                humStop.setEnabled(false);
-                humOff.setEnabled(false);
+        add(title, BorderLayout.NORTH);
+
+        //one row per sensor; JTable only paints the rows in view
+        DashboardModel model = new DashboardModel(sensors, service);
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.setRowHeight(22);
+        table.getColumnModel().getColumn(DashboardModel.ALERT).setPreferredWidth(360);
+        table.getColumnModel().getColumn(DashboardModel.TREND).setPreferredWidth(160);
+        table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        table.setDefaultRenderer(Object.class, new TextCellRenderer());
+        table.getColumnModel().getColumn(DashboardModel.TREND).setCellRenderer(new TrendPanel(false));
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(WIDTH, HEIGHT));
+
+        //trend of the last few minutes of the selected sensor
+        TrendPanel trend = new TrendPanel(true);
+        trend.setPreferredSize(new Dimension(WIDTH, TREND_HEIGHT));
+        JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, scroll, trend);
+        split.setResizeWeight(1.0);
+        add(split, BorderLayout.CENTER);
+
+        //buttons act on every selected sensor
+        JButton onButton = new JButton("Turn on");
+        JButton monButton = new JButton("Start");
+        JButton stopButton = new JButton("Pause");
+        JButton offButton = new JButton("Turn off");
+        JPanel buttonRow = new JPanel(new FlowLayout());
+        buttonRow.setBackground(COL_COLOR);
+        for (JButton button : new JButton[] {onButton, monButton, stopButton, offButton}) {
+            button.setFocusPainted(false);
+            button.setEnabled(false);
+            buttonRow.add(button);
+        }
+        //EDT time per frame, so slow rendering shows up while it happens
+        JLabel frameTime = new JLabel("EDT --- ms/frame");
+        frameTime.setPreferredSize(new Dimension(160, 20));
+        buttonRow.add(frameTime);
+        add(buttonRow, BorderLayout.SOUTH);
+
+        //enable only the buttons that apply to at least one selected sensor
+        Runnable updateButtons = () -> {
+            boolean canOn = false;
+            boolean canMon = false;
+            boolean canStop = false;
+            boolean canOff = false;
+            for (int row : table.getSelectedRows()) {
+                State state = model.getSensor(row).getState();
+                canOn |= state == State.OFF;
+                canMon |= state == State.ON || state == State.IDLE;
+                canStop |= state == State.MEASURING;
+                canOff |= state != State.OFF;
             }
+            onButton.setEnabled(canOn);
+            monButton.setEnabled(canMon);
+            stopButton.setEnabled(canStop);
+            offButton.setEnabled(canOff);
+        };
+        table.getSelectionModel().addListSelectionListener(e -> {
+            updateButtons.run();
+            int row = table.getSelectedRow();
+            trend.setTrend(row >= 0 ? model.getSensor(row) : null, row >= 0 ? model.getTrend(row) : null);
         });
 
-        //radiation column
-        JPanel col3 = new JPanel();
-        col3.setPreferredSize(new Dimension(WIDTH, HEIGHT));
-        col3.setBackground(COL_COLOR);
-        col3.setLayout(new BoxLayout(col3, BoxLayout.Y_AXIS));
-
-        JLabel radText = new JLabel("Radiation", JLabel.CENTER);
-        JLabel curRad = new JLabel("---");
-        JLabel radTime = new JLabel("\n");
-        JLabel radStatus = new JLabel("Status: OFF");
-        JLabel radAlert = new JLabel("\n", JLabel.CENTER);
-
-        radText.setFont(HEADER1);
-        radText.setBorder(HEADER_BORDER);
-        radText.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        curRad.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        radTime.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        radStatus.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        radStatus.setBorder(new EmptyBorder(0, 0, 10, 0));
-        radAlert.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        radAlert.setMaximumSize(new Dimension(130, 100));
-        radAlert.setForeground(new Color(255, 255, 255));
-
-        col3.add(radText);
-        col3.add(curRad);
-        col3.add(radTime);
-        col3.add(radStatus);
-
-        //radiation buttons
-        JButton radOn = new JButton("Turn on");
-        col3.add(radOn);
-        radOn.setEnabled(true);
-        radOn.setFocusPainted(false);
-        radOn.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton radMon = new JButton("Start");
-        col3.add(radMon);
-        radMon.setEnabled(false);
-        radMon.setFocusPainted(false);
-        radMon.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        JButton radStop = new JButton("Pause");
-        col3.add(radStop);
-        radStop.setEnabled(false);
-        radStop.setFocusPainted(false);
-        radStop.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton radOff = new JButton("Turn off");
-        col3.add(radOff);
-        radOff.setEnabled(false);
-        radOff.setFocusPainted(false);
-        radOff.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        col3.add(radAlert);
-
-        //radiation action listeners
-        radOn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update radSensor's state
-                radSensor.setState(State.ON);
-
-                //remove time display
-                radTime.setText("\n");
-
-                //update displayed status
-                radStatus.setText("Status: ON");
-
-                //enable other buttons; disable on button
-                radOn.setEnabled(false);
-                radMon.setEnabled(true);
-                radOff.setEnabled(true);
-            }
-        });
-        radMon.addActionListener(new ActionListener() {
+        onButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                //update state
-                radSensor.setState(State.MEASURING);
-
-                //remove time display
-                radTime.setText("\n");
-
-                //update displayed status
-                radStatus.setText("Status: MEAS");
-
-                //disable measuring button
-                radMon.setEnabled(false);
-                radStop.setEnabled(true);
+                for (int row : table.getSelectedRows()) {
+                    model.turnOn(row);
+                }
+                updateButtons.run();
             }
         });
-        radStop.addActionListener(new ActionListener() {
+        monButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                //update state
-                radSensor.setState(State.IDLE);
-
-                //add time of last measurement
-                radTime.setText("(Last at: " + LocalTime.now().format(DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM)) + ")");
-
-                //update status
-                radStatus.setText("Status: IDLE");
-
-                //update buttons
-                radMon.setEnabled(true);
-                radStop.setEnabled(false);
+                for (int row : table.getSelectedRows()) {
+                    model.start(row);
+                }
+                updateButtons.run();
             }
         });
-        radOff.addActionListener(new ActionListener() {
+        stopButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                //update state
-                radSensor.setState(State.OFF);
-
-                //remove time display
-                radTime.setText("\n");
-
-                //update status
-                radStatus.setText("Status: OFF");
-
-                //update text
-                curRad.setText("---");
-
-                //update alert
-                radAlert.setText("\n");
-
-                //update buttons
-                radOn.setEnabled(true);
-                radMon.setEnabled(false);
-                radStop.setEnabled(false);
-                radOff.setEnabled(false);
-            }
-        });
-
-        //pressure column
-        JPanel col4 = new JPanel();
-        col4.setPreferredSize(new Dimension(WIDTH, HEIGHT));
-        col4.setBackground(COL_COLOR);
-        col4.setLayout(new BoxLayout(col4, BoxLayout.Y_AXIS));
-
-        JLabel presText = new JLabel("Pressure", JLabel.CENTER);
-        JLabel curPres = new JLabel("---");
-        JLabel presTime = new JLabel("\n");
-        JLabel presStatus = new JLabel("Status: OFF");
-        JLabel presAlert = new JLabel("\n", JLabel.CENTER);
-
-        presText.setFont(HEADER1);
-        presText.setBorder(new EmptyBorder(20, 25, 10, 25));
-        presText.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        curPres.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        presTime.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        presStatus.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        presStatus.setBorder(new EmptyBorder(0, 0, 10, 0));
-        presAlert.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        presAlert.setMaximumSize(new Dimension(130, 100));
-        presAlert.setForeground(new Color(255, 255, 255));
-
-        col4.add(presText);
-        col4.add(curPres);
-        col4.add(presTime);
-        col4.add(presStatus);
-
-        //pressure buttons
-        JButton presOn = new JButton("Turn on");
-        col4.add(presOn);
-        presOn.setEnabled(true);
-        presOn.setFocusPainted(false);
-        presOn.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton presMon = new JButton("Start");
-        col4.add(presMon);
-        presMon.setEnabled(false);
-        presMon.setFocusPainted(false);
-        presMon.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        JButton presStop = new JButton("Pause");
-        col4.add(presStop);
-        presStop.setEnabled(false);
-        presStop.setFocusPainted(false);
-        presStop.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-        
-        JButton presOff = new JButton("Turn off");
-        col4.add(presOff);
-        presOff.setEnabled(false);
-        presOff.setFocusPainted(false);
-        presOff.setAlignmentX(JLabel.CENTER_ALIGNMENT);
-
-        col4.add(presAlert);
-
-        //pressure action listeners
-        presOn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update presSensor's state
-                presSensor.setState(State.ON);
-
-                //remove time display
-                presTime.setText("\n");
-
-                //update displayed status
-                presStatus.setText("Status: ON");
-
-                //enable other buttons; disable on button
-                presOn.setEnabled(false);
-                presMon.setEnabled(true);
-                presOff.setEnabled(true);
+                for (int row : table.getSelectedRows()) {
+                    model.pause(row);
+                }
+                updateButtons.run();
             }
         });
-        presMon.addActionListener(new ActionListener() {
+        offButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                //update state
-                presSensor.setState(State.MEASURING);
-
-                //remove time display
-                presTime.setText("\n");
-
-                //update displayed status
-                presStatus.setText("Status: MEAS");
-
-                //disable measuring button
-                presMon.setEnabled(false);
-                presStop.setEnabled(true);
+                for (int row : table.getSelectedRows()) {
+                    model.turnOff(row);
+                }
+                updateButtons.run();
             }
         });
-        presStop.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                presSensor.setState(State.IDLE);
-
-                //add time of last measurement
-                presTime.setText("(Last at: " + LocalTime.now().format(DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM)) + ")");
 
-                //update status
-                presStatus.setText("Status: IDLE");
-
-                //update buttons
-                presMon.setEnabled(true);
-                presStop.setEnabled(false);
+        //acquisition runs on its own thread at each sensor's rate and publishes into
+        //the pipeline, whose consumers archive, log, monitor and update the display
+        SamplePipeline pipeline = new SamplePipeline(service);
+        pipeline.addConsumer("display", model);
+        DerivedChannels derived = registry.createDerivedChannels();
+        if (derived != null) {
+            pipeline.addDerivedChannels(derived);
+        }
+
+        //alarms pause their sensor on the dispatcher's thread; repeats are dropped and the
+        //rest reach the table and alarms.log in groups, at most 1 per second after a burst of 3
+        AlarmDispatcher dispatcher = new AlarmDispatcher(sensors, true, 1.0, 3);
+        try {
+            dispatcher.openLog(Paths.get("alarms.log"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        dispatcher.addListener(model);
+        dispatcher.start();
+        pipeline.addAlarmListener(dispatcher);
+
+        //sensors with an external feed are read from it instead of being simulated, derived ones are computed
+        AcquisitionEngine engine = new AcquisitionEngine(pipeline);
+        FeedReader feeds = new FeedReader(pipeline);
+        for (Sensor sensor : sensors) {
+            if (registry.isDerived(sensor)) {
+                continue;
             }
-        });
-        presOff.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                //update state
-                presSensor.setState(State.OFF);
-
-                //remove time display
-                presTime.setText("\n");
-
-                //update status
-                presStatus.setText("Status: OFF");
-
-                //update text
-                curPres.setText("---");
-
-                //update alert
-                presAlert.setText("\n");
-
-                //update buttons
-                presOn.setEnabled(true);
-                presMon.setEnabled(false);
-                presStop.setEnabled(false);
-                presOff.setEnabled(false);
+            DataSource source = registry.createSource(sensor);
+            if (source != null) {
+                feeds.add(sensor, source);
+            } else {
+                engine.add(sensor);
             }
-        });
-
-        //row for sensor columns
-        JPanel sensorRow = new JPanel();
-        sensorRow.add(col1);
-        sensorRow.add(col2);
-        sensorRow.add(col3);
-        sensorRow.add(col4);
-        sensorRow.setLayout(new FlowLayout());
-        add(sensorRow);
-        setLayout(new BoxLayout(getContentPane(), BoxLayout.Y_AXIS));
-
-        //update panel every second and trigger alarm if necessary
-        int delay = 1000;
+        }
+        try {
+            feeds.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //render the latest values in coalesced frames of at most 20 per second
+        model.start(table, 20);
+
+        //keep the buttons in step with sensors paused by alarms and scroll the trend
+        int delay = 250;
         ActionListener action = new ActionListener() {
-            public void actionPerformed(ActionEvent evt) {
-                if (tempSensor.getState() == State.MEASURING) {
-                    //generate and display data
-                    double tempVal = tempSensor.generateData();
-                    curTemp.setText(String.format("%.3f \u2103", tempVal));
+            int ticks = 0;
+            long lastFired = System.nanoTime();
 
-                    //archive and monitor
-                    String monitor = service.measure(tempSensor, tempVal);
-                    if (monitor == "too high") {
-                        tempAlert.setText("<html><center>ALERT: Temperature above -268.5 \u2103; press Start to continue measuring.</center></html>");
-                        tempStop.doClick();
-                    } else if (monitor == "too low") {
-                        tempAlert.setText("<html><center>ALERT: Temperature below -269.5 \u2103; press Start to continue measuring.</center></html>");
-                        tempStop.doClick();
-                    } else {
-                        tempAlert.setText("\n");
-                    }
-                    pack();
-                }
-
-                if (humSensor.getState() == State.MEASURING) {
-                    //generate and display data
-                    double humVal = humSensor.generateData();
-                    curHum.setText(String.format("%.3f %%", humVal));
-
-                    //archive and monitor
-                    String monitor = service.measure(humSensor, humVal);
-                    if (monitor == "too high") {
-                        humAlert.setText("<html><center>ALERT: Humidity above 10 &#37;; press Start to continue measuring.</center></html>");
-                        humStop.doClick();
-                    } else {
-                        humAlert.setText("\n");
-                    }
-                    pack();
-                }
-
-                if (radSensor.getState() == State.MEASURING) {
-                    //generate and display data
-                    double radVal = radSensor.generateData();
-                    curRad.setText(String.format("%.3f MeV", radVal));
-                
-                    //archive and monitor
-                    String monitor = service.measure(radSensor, radVal);
-                    if (monitor == "too high") {
-                        radAlert.setText("<html><center>ALERT: Radiation above 40 MeV; press Start to continue measuring.</center></html>");
-                        radStop.doClick();
-                    } else {
-                        radAlert.setText("\n");
-                    }
-                    pack();
-                }
-
-                if (presSensor.getState() == State.MEASURING) {
-                    //generate and display data
-                    double presVal = presSensor.generateData();
-                    curPres.setText(String.format("%.3f nanombar", presVal));
-                
-                    //archive and monitor
-                    String monitor = service.measure(presSensor, presVal);
-                    if (monitor == "too high") {
-                        presAlert.setText("<html><center>ALERT: Pressure above 1 nanombar; press Start to continue measuring.</center></html>");
-                        presStop.doClick();
-                    } else {
-                        presAlert.setText("\n");
-                    }
-                    pack();
+            public void actionPerformed(ActionEvent evt) {
+                long fired = System.nanoTime();
+                //the timer can fire early, which is no lateness
+                metrics.getTimerLateness().record(Math.max(0, fired - lastFired - delay * 1_000_000L));
+                lastFired = fired;
+                updateButtons.run();
+                trend.repaint();
+                if (++ticks % 4 == 0) {
+                    frameTime.setText(String.format("EDT %.2f ms/frame (max %.2f)",
+                            model.getLastFrameNanos() / 1e6, model.takeMaxFrameNanos() / 1e6));
                 }
             }
         };
@@ -658,19 +233,38 @@ public class GUI extends JFrame{
         //display frame
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
+                engine.shutdown();
+                feeds.shutdown();
+                pipeline.shutdown();
+                dispatcher.shutdown();
+                model.shutdown();
                 try {
                     service.saveToFile();
+                    service.close();
                 } catch (IOException e1) {
                     e1.printStackTrace();
                 }
                 System.exit(0);
             }
         });
+        long layoutStart = System.nanoTime();
         pack();
+        metrics.getEdtLayout().record(System.nanoTime() - layoutStart);
         setVisible(true);
     }
     public static void main(String[] args) {
+        //sensor config file, sensors.csv in the working directory by default
+        Path config = Paths.get(args.length > 0 ? args[0] : "sensors.csv");
+        SensorRegistry registry;
+        try {
+            registry = SensorRegistry.load(config);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Could not load " + config + ": " + e.getMessage());
+            return;
+        }
+
         //invoke Swing for GUI
-        SwingUtilities.invokeLater(GUI::new);
+        SwingUtilities.invokeLater(() -> new GUI(registry));
     }
 }
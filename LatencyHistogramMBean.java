@@ -0,0 +1,17 @@
+/**
+ * JMX view of a LatencyHistogram; all durations are in nanoseconds.
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    long getMax();
+
+    long getMedian();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+
+    void reset();
+}
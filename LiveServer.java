@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams live samples and alarms to any number of dashboards over a
+ * WebSocket, and answers plain HTTP requests for the channel list and the
+ * latest values.
+ *
+ * The server is a pipeline consumer: the consumer thread appends each
+ * datapoint to a local batch and hands the batch over under a short lock
+ * once per pipeline batch, so ingest never waits for a socket. One server
+ * thread owns every connection through a Selector. At a fixed frame rate
+ * it turns what was handed over into one binary frame, which is shared
+ * read-only by all clients, and writes it without blocking.
+ *
+ * Every client has bounded queues. When a slow client has
+ * MAX_QUEUED_FRAMES sample frames waiting, they are conflated: the queue
+ * is replaced by one snapshot of the latest value of every channel. Alarms
+ * are never conflated; a client too slow to take MAX_QUEUED_ALARMS alarm
+ * frames is disconnected instead.
+ *
+ * Endpoints, all GET:
+ * <ul>
+ * <li>/live upgrades to a WebSocket that sends binary messages, big-endian:
+ * type 1 (samples) followed by {int channel, long epoch nanoseconds,
+ * double value} per datapoint; type 2 (alarms) followed by {int channel,
+ * long epoch nanoseconds, double value, byte Alarm ordinal} per alarm.
+ * A snapshot is a samples message and is sent first on connect.</li>
+ * <li>/channels returns the channel number, name, unit, range and rate of every sensor as JSON; derived channels have rate 0.</li>
+ * <li>/latest returns the latest datapoint of every channel as JSON, for polling.</li>
+ * </ul>
+ */
+public class LiveServer implements SampleRingBuffer.Handler, SamplePipeline.AlarmListener {
+    static final byte SAMPLES = 1;
+    static final byte ALARMS = 2;
+    static final int SAMPLE_BYTES = 20;
+    static final int ALARM_BYTES = 21;
+    //datapoints waiting for the next frame; beyond this the stream drops them
+    static final int MAX_PENDING_BYTES = 1 << 20;
+    static final int BATCH_BYTES = 1 << 16;
+    //sample frames queued for a client before they are conflated into a snapshot
+    static final int MAX_QUEUED_FRAMES = 64;
+    //alarm frames queued for a client before it is disconnected
+    static final int MAX_QUEUED_ALARMS = 1024;
+    //longest HTTP request head, and longest frame a client may send
+    static final int MAX_REQUEST_BYTES = 8192;
+    static final int BACKLOG = 256;
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_BINARY = 2;
+    private static final int OPCODE_CLOSE = 8;
+    private static final int OPCODE_PING = 9;
+    private static final int OPCODE_PONG = 10;
+
+    private final List<Sensor> sensors;
+    private final InetSocketAddress address;
+    private final long framePeriodNanos;
+
+    //filled by the stream consumer thread only
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+
+    //handed over to the server thread; guarded by this
+    private ByteBuffer pendingSamples = ByteBuffer.allocate(MAX_PENDING_BYTES);
+    private ByteBuffer pendingAlarms = ByteBuffer.allocate(MAX_PENDING_BYTES);
+    private final LongAdder dropped = new LongAdder();
+
+    //owned by the server thread
+    private ByteBuffer spareSamples = ByteBuffer.allocate(MAX_PENDING_BYTES);
+    private ByteBuffer spareAlarms = ByteBuffer.allocate(MAX_PENDING_BYTES);
+    private final long[] latestTime;
+    private final double[] latestValue;
+    private final boolean[] seen;
+    private final List<Client> clients = new ArrayList<Client>();
+    private final LongAdder conflations = new LongAdder();
+    private volatile int clientCount;
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread server;
+    private volatile boolean running;
+
+    /**
+     *
+     * @param sensors streamed sensors, already registered with the service
+     * @param address address to listen on, usually on the loopback interface
+     * @param framesPerSecond frames sent to each client per second
+     */
+    public LiveServer(List<Sensor> sensors, InetSocketAddress address, int framesPerSecond) {
+        this.sensors = sensors;
+        this.address = address;
+        this.framePeriodNanos = 1_000_000_000L / framesPerSecond;
+        int channels = 0;
+        for (Sensor sensor : sensors) {
+            channels = Math.max(channels, sensor.getChannel() + 1);
+        }
+        this.latestTime = new long[channels];
+        this.latestValue = new double[channels];
+        this.seen = new boolean[channels];
+    }
+
+    public void onSample(Sensor sensor, long timeNanos, double value, boolean endOfBatch) {
+        if (batch.remaining() < SAMPLE_BYTES) {
+            handOver();
+        }
+        batch.putInt(sensor.getChannel()).putLong(timeNanos).putDouble(value);
+        if (endOfBatch) {
+            handOver();
+        }
+    }
+
+    public synchronized void onAlarm(Sensor sensor, long timeNanos, double value, Alarm alarm) {
+        if (pendingAlarms.remaining() >= ALARM_BYTES) {
+            pendingAlarms.putInt(sensor.getChannel()).putLong(timeNanos).putDouble(value).put((byte) alarm.ordinal());
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Moves the consumer's batch to the datapoints waiting for the next frame.
+     */
+    private void handOver() {
+        batch.flip();
+        synchronized (this) {
+            if (pendingSamples.remaining() >= batch.remaining()) {
+                pendingSamples.put(batch);
+            } else {
+                //the server thread is stalled; rather lose these datapoints from the stream than hold up ingest
+                dropped.add(batch.remaining() / SAMPLE_BYTES);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Binds the address and starts serving on a thread of its own.
+     *
+     * @throws IOException if the address cannot be bound
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        server = new Thread(this::serve, "live-server");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /**
+     * Closes every connection and stops serving.
+     */
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+            try {
+                server.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return local address the server listens on
+     * @throws IOException
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     *
+     * @return number of open connections
+     */
+    public int getClients() {
+        return clientCount;
+    }
+
+    /**
+     *
+     * @return datapoints and alarms dropped because the server thread fell behind
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     *
+     * @return number of times a slow client's samples were replaced by a snapshot
+     */
+    public long getConflations() {
+        return conflations.sum();
+    }
+
+    private void serve() {
+        long nextFrame = System.nanoTime() + framePeriodNanos;
+        try {
+            while (running) {
+                long wait = nextFrame - System.nanoTime();
+                if (wait > 0) {
+                    selector.select(Math.max(1, wait / 1_000_000));
+                } else {
+                    selector.selectNow();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+                long now = System.nanoTime();
+                if (now >= nextFrame) {
+                    broadcast();
+                    //after a stall, do not send a burst of empty frames to catch up
+                    nextFrame = Math.max(nextFrame + framePeriodNanos, now);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            for (Client client : new ArrayList<Client>(clients)) {
+                client.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Client client = (Client) key.attachment();
+        try {
+            if (key.isReadable()) {
+                client.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                client.flush();
+            }
+        } catch (IOException e) {
+            //the dashboard went away; the others are unaffected
+            client.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            clientCount = clients.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends what the consumers handed over since the last frame to every
+     * WebSocket client. Runs on the server thread.
+     */
+    private void broadcast() {
+        ByteBuffer samples;
+        ByteBuffer alarms;
+        synchronized (this) {
+            samples = pendingSamples;
+            pendingSamples = spareSamples;
+            alarms = pendingAlarms;
+            pendingAlarms = spareAlarms;
+        }
+        spareSamples = samples;
+        spareAlarms = alarms;
+        samples.flip();
+        alarms.flip();
+
+        ByteBuffer sampleFrame = null;
+        ByteBuffer alarmFrame = null;
+        if (samples.hasRemaining()) {
+            for (int i = samples.position(); i < samples.limit(); i += SAMPLE_BYTES) {
+                int channel = samples.getInt(i);
+                if (channel >= 0 && channel < seen.length) {
+                    latestTime[channel] = samples.getLong(i + 4);
+                    latestValue[channel] = samples.getDouble(i + 12);
+                    seen[channel] = true;
+                }
+            }
+            sampleFrame = frame(OPCODE_BINARY, SAMPLES, samples);
+        }
+        if (alarms.hasRemaining()) {
+            alarmFrame = frame(OPCODE_BINARY, ALARMS, alarms);
+        }
+        samples.clear();
+        alarms.clear();
+        if (sampleFrame == null && alarmFrame == null) {
+            return;
+        }
+
+        ByteBuffer snapshot = null;
+        for (Client client : new ArrayList<Client>(clients)) {
+            if (!client.webSocket || client.closing) {
+                continue;
+            }
+            if (alarmFrame != null) {
+                if (client.alarms.size() >= MAX_QUEUED_ALARMS) {
+                    client.close();
+                    continue;
+                }
+                client.alarms.add(alarmFrame.duplicate());
+            }
+            if (sampleFrame != null) {
+                if (client.samples.size() >= MAX_QUEUED_FRAMES) {
+                    if (snapshot == null) {
+                        snapshot = snapshot();
+                    }
+                    client.samples.clear();
+                    client.samples.add(snapshot.duplicate());
+                    conflations.increment();
+                } else {
+                    client.samples.add(sampleFrame.duplicate());
+                }
+            }
+            try {
+                client.flush();
+            } catch (IOException e) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return a samples frame holding the latest datapoint of every channel
+     */
+    private ByteBuffer snapshot() {
+        ByteBuffer payload = ByteBuffer.allocate(seen.length * SAMPLE_BYTES);
+        for (int channel = 0; channel < seen.length; channel++) {
+            if (seen[channel]) {
+                payload.putInt(channel).putLong(latestTime[channel]).putDouble(latestValue[channel]);
+            }
+        }
+        payload.flip();
+        return frame(OPCODE_BINARY, SAMPLES, payload);
+    }
+
+    /**
+     * Builds an unmasked WebSocket frame.
+     *
+     * @param type first payload byte, or -1 for none
+     */
+    private static ByteBuffer frame(int opcode, int type, ByteBuffer payload) {
+        int length = payload.remaining() + (type >= 0 ? 1 : 0);
+        int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length < 65536) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        if (type >= 0) {
+            frame.put((byte) type);
+        }
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    private String channelsJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (Sensor sensor : sensors) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"channel\":").append(sensor.getChannel())
+                    .append(",\"name\":").append(quote(sensor.getName()))
+                    .append(",\"unit\":").append(quote(sensor.getUnit()))
+                    .append(",\"min\":").append(sensor.getMin())
+                    .append(",\"max\":").append(sensor.getMax())
+                    .append(",\"rate\":").append(sensor.getRate()).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private String latestJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (Sensor sensor : sensors) {
+            int channel = sensor.getChannel();
+            if (channel < 0 || !seen[channel]) {
+                continue;
+            }
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"channel\":").append(channel)
+                    .append(",\"name\":").append(quote(sensor.getName()))
+                    .append(",\"time\":").append(latestTime[channel])
+                    .append(",\"value\":").append(Double.isFinite(latestValue[channel]) ? String.valueOf(latestValue[channel]) : "null")
+                    .append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One connection, first as an HTTP request and, after an upgrade, as a
+     * WebSocket. Only touched by the server thread.
+     */
+    private class Client {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        boolean webSocket;
+        //close once the control queue is written; nothing else is sent any more
+        boolean closing;
+
+        //frame being written, then queues in order of priority
+        ByteBuffer writing;
+        final ArrayDeque<ByteBuffer> control = new ArrayDeque<ByteBuffer>();
+        final ArrayDeque<ByteBuffer> alarms = new ArrayDeque<ByteBuffer>();
+        final ArrayDeque<ByteBuffer> samples = new ArrayDeque<ByteBuffer>();
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            if (closing) {
+                //the response or close frame is on its way; ignore whatever else arrives
+                in.clear();
+            } else if (webSocket) {
+                readFrames();
+            } else {
+                readRequest();
+            }
+        }
+
+        /**
+         * Answers the request once its head is complete.
+         */
+        void readRequest() throws IOException {
+            int end = -1;
+            for (int i = 3; i < in.position(); i++) {
+                if (in.get(i - 3) == '\r' && in.get(i - 2) == '\n' && in.get(i - 1) == '\r' && in.get(i) == '\n') {
+                    end = i + 1;
+                    break;
+                }
+            }
+            if (end < 0) {
+                if (!in.hasRemaining()) {
+                    respond("431 Request Header Fields Too Large", "text/plain", "request too large");
+                }
+                return;
+            }
+            String[] lines = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] request = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            //keep anything the client sent after the head, e.g. its first frame
+            in.flip();
+            in.position(end);
+            in.compact();
+
+            if (request.length < 3 || !request[0].equals("GET")) {
+                respond("405 Method Not Allowed", "text/plain", "only GET is supported");
+                return;
+            }
+            String path = request[1];
+            if (path.equals("/live")) {
+                String key = headers.get("sec-websocket-key");
+                if (key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                    respond("426 Upgrade Required", "text/plain", "/live is a WebSocket");
+                    return;
+                }
+                String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+                control.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+                webSocket = true;
+                samples.add(snapshot());
+                flush();
+                readFrames();
+            } else if (path.equals("/channels")) {
+                respond("200 OK", "application/json; charset=utf-8", channelsJson());
+            } else if (path.equals("/latest")) {
+                respond("200 OK", "application/json; charset=utf-8", latestJson());
+            } else {
+                respond("404 Not Found", "text/plain", "unknown path " + path);
+            }
+        }
+
+        void respond(String status, String contentType, String body) throws IOException {
+            byte[] content = body.getBytes(StandardCharsets.UTF_8);
+            String head = "HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + content.length
+                    + "\r\nAccess-Control-Allow-Origin: *\r\nConnection: close\r\n\r\n";
+            control.add(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+            control.add(ByteBuffer.wrap(content));
+            startClosing();
+            flush();
+        }
+
+        /**
+         * Handles the frames a dashboard sends, which are masked: close and
+         * ping are answered, anything else is ignored.
+         */
+        void readFrames() throws IOException {
+            in.flip();
+            while (in.remaining() >= 2) {
+                int start = in.position();
+                int first = in.get() & 0xff;
+                int second = in.get() & 0xff;
+                long length = second & 0x7f;
+                int lengthBytes = length == 126 ? 2 : length == 127 ? 8 : 0;
+                if ((second & 0x80) == 0) {
+                    //clients must mask their frames
+                    in.clear();
+                    close();
+                    return;
+                }
+                if (in.remaining() < lengthBytes + 4) {
+                    in.position(start);
+                    break;
+                }
+                if (lengthBytes == 2) {
+                    length = in.getShort() & 0xffff;
+                } else if (lengthBytes == 8) {
+                    length = in.getLong();
+                }
+                if (length < 0 || length > MAX_REQUEST_BYTES - 14) {
+                    in.clear();
+                    close();
+                    return;
+                }
+                byte[] mask = new byte[4];
+                in.get(mask);
+                if (in.remaining() < length) {
+                    in.position(start);
+                    break;
+                }
+                byte[] payload = new byte[(int) length];
+                in.get(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+                int opcode = first & 0x0f;
+                if (opcode == OPCODE_CLOSE) {
+                    control.add(frame(OPCODE_CLOSE, -1, ByteBuffer.wrap(payload, 0, Math.min(payload.length, 2))));
+                    startClosing();
+                    //the close frame is the last one sent, so anything after it is left unanswered
+                    in.position(in.limit());
+                    break;
+                } else if (opcode == OPCODE_PING) {
+                    control.add(frame(OPCODE_PONG, -1, ByteBuffer.wrap(payload)));
+                }
+            }
+            in.compact();
+            flush();
+        }
+
+        /**
+         * Writes as much as the socket takes without blocking and waits for
+         * writability only while something is left.
+         */
+        void flush() throws IOException {
+            while (true) {
+                if (writing == null || !writing.hasRemaining()) {
+                    writing = next();
+                    if (writing == null) {
+                        break;
+                    }
+                }
+                channel.write(writing);
+                if (writing.hasRemaining()) {
+                    break;
+                }
+            }
+            if (writing == null && closing) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(writing != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        ByteBuffer next() {
+            if (!control.isEmpty() || closing) {
+                return control.poll();
+            }
+            if (!alarms.isEmpty()) {
+                return alarms.poll();
+            }
+            return samples.poll();
+        }
+
+        /**
+         * Drops the alarm and sample frames not yet started, so nothing but
+         * control frames follows a close frame or an HTTP response. A frame
+         * that is partly written is finished first.
+         */
+        void startClosing() {
+            closing = true;
+            alarms.clear();
+            samples.clear();
+        }
+
+        void close() {
+            if (clients.remove(this)) {
+                clientCount = clients.size();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
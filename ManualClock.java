@@ -0,0 +1,28 @@
+/**
+ * Clock that only moves when told to, e.g. to the timestamp of each
+ * datapoint during a replay.
+ */
+public class ManualClock implements SampleClock {
+    private volatile long now;
+
+    /**
+     *
+     * @param start initial time in epoch nanoseconds
+     */
+    public ManualClock(long start) {
+        this.now = start;
+    }
+
+    @Override
+    public long now() {
+        return this.now;
+    }
+
+    /**
+     *
+     * @param timeNanos new time in epoch nanoseconds
+     */
+    public void set(long timeNanos) {
+        this.now = timeNanos;
+    }
+}
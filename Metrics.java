@@ -0,0 +1,217 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Built-in instrumentation of acquisition, ingest and rendering.
+ *
+ * Latencies go into lock-free LatencyHistograms and counts into LongAdders,
+ * so recording costs a few array increments on the measuring threads and
+ * nothing is locked or allocated. Everything is readable from any thread:
+ * as JMX MBeans under the particleaccelerator domain (jconsole, VisualVM)
+ * and as a snapshot file that is rewritten periodically.
+ */
+public class Metrics implements MetricsMBean {
+    static final String DOMAIN = "particleaccelerator";
+
+    //from the nominal sample time until the datapoint is in the archive, one in LATENCY_STRIDE samples
+    private final LatencyHistogram sampleToArchive = new LatencyHistogram();
+    //from the nominal sample time until the dashboard showed the value
+    private final LatencyHistogram sampleToDisplay = new LatencyHistogram();
+    //duration of Service.measure, one in LATENCY_STRIDE samples
+    private final LatencyHistogram measure = new LatencyHistogram();
+    //how late acquisition ticks run compared to their schedule
+    private final LatencyHistogram tickJitter = new LatencyHistogram();
+    //how late the dashboard's Swing Timer fires compared to its delay
+    private final LatencyHistogram timerLateness = new LatencyHistogram();
+    //EDT time spent presenting a dashboard frame
+    private final LatencyHistogram edtFrame = new LatencyHistogram();
+    //EDT time blocked by layout, e.g. pack()
+    private final LatencyHistogram edtLayout = new LatencyHistogram();
+
+    private final ConcurrentHashMap<String, SensorMetrics> sensors = new ConcurrentHashMap<String, SensorMetrics>();
+    private ScheduledExecutorService snapshots;
+
+    /**
+     * Creates the counters of a sensor, once.
+     *
+     * @param name name of the sensor
+     * @param archive archive the sensor's datapoints are stored in
+     * @return the sensor's counters
+     */
+    public SensorMetrics register(String name, SensorArchive archive) {
+        return sensors.computeIfAbsent(name, key -> new SensorMetrics(key, archive));
+    }
+
+    public LatencyHistogram getSampleToArchive() {
+        return sampleToArchive;
+    }
+
+    public LatencyHistogram getSampleToDisplay() {
+        return sampleToDisplay;
+    }
+
+    public LatencyHistogram getMeasure() {
+        return measure;
+    }
+
+    public LatencyHistogram getTickJitter() {
+        return tickJitter;
+    }
+
+    public LatencyHistogram getTimerLateness() {
+        return timerLateness;
+    }
+
+    public LatencyHistogram getEdtFrame() {
+        return edtFrame;
+    }
+
+    public LatencyHistogram getEdtLayout() {
+        return edtLayout;
+    }
+
+    public int getSensors() {
+        return sensors.size();
+    }
+
+    public long getSamples() {
+        long samples = 0;
+        for (SensorMetrics sensor : sensors.values()) {
+            samples += sensor.getSamples();
+        }
+        return samples;
+    }
+
+    public long getAlarms() {
+        long alarms = 0;
+        for (SensorMetrics sensor : sensors.values()) {
+            alarms += sensor.getAlarms();
+        }
+        return alarms;
+    }
+
+    public long getArchiveSize() {
+        long size = 0;
+        for (SensorMetrics sensor : sensors.values()) {
+            size += sensor.getArchiveSize();
+        }
+        return size;
+    }
+
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : histograms().values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Registers the totals, every latency histogram and the counters of
+     * every sensor registered so far with the platform MBean server.
+     *
+     * @throws JMException if the names are taken, e.g. by a second service in this JVM
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(DOMAIN + ":type=Metrics"));
+        for (Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()) {
+            server.registerMBean(entry.getValue(), new ObjectName(DOMAIN + ":type=Latency,name=" + entry.getKey()));
+        }
+        for (SensorMetrics sensor : sensors.values()) {
+            server.registerMBean(sensor, new ObjectName(DOMAIN + ":type=Sensor,name=" + ObjectName.quote(sensor.getName())));
+        }
+    }
+
+    /**
+     * Rewrites the snapshot file periodically on a background thread. The
+     * file is replaced atomically, so readers never see half a snapshot.
+     *
+     * @param file file to write, in key=value lines
+     * @param periodMillis milliseconds between snapshots
+     */
+    public void startSnapshots(Path file, long periodMillis) {
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(() -> {
+            try {
+                writeSnapshot(file);
+            } catch (IOException | RuntimeException e) {
+                //an exception would silently cancel the schedule
+                e.printStackTrace();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the current totals, latency percentiles and per-sensor counters.
+     *
+     * @param file file to create or replace
+     * @throws IOException
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp)) {
+            line(out, "time", Instant.now());
+            line(out, "samples", getSamples());
+            line(out, "alarms", getAlarms());
+            line(out, "archive.size", getArchiveSize());
+            for (Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()) {
+                String key = "latency." + entry.getKey();
+                LatencyHistogram histogram = entry.getValue();
+                line(out, key + ".count", histogram.getCount());
+                line(out, key + ".p50_ns", histogram.getMedian());
+                line(out, key + ".p99_ns", histogram.get99thPercentile());
+                line(out, key + ".p999_ns", histogram.get999thPercentile());
+                line(out, key + ".max_ns", histogram.getMax());
+            }
+            for (SensorMetrics sensor : sensors.values()) {
+                String key = "sensor." + sensor.getName();
+                line(out, key + ".samples", sensor.getSamples());
+                line(out, key + ".alarms", sensor.getAlarms());
+                line(out, key + ".archive.size", sensor.getArchiveSize());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+        histograms.put("sampleToArchive", sampleToArchive);
+        histograms.put("sampleToDisplay", sampleToDisplay);
+        histograms.put("measure", measure);
+        histograms.put("tickJitter", tickJitter);
+        histograms.put("timerLateness", timerLateness);
+        histograms.put("edtFrame", edtFrame);
+        histograms.put("edtLayout", edtLayout);
+        return histograms;
+    }
+
+    private static void line(BufferedWriter out, String key, Object value) throws IOException {
+        out.write(key);
+        out.write('=');
+        out.write(String.valueOf(value));
+        out.newLine();
+    }
+}
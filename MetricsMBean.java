@@ -0,0 +1,18 @@
+/**
+ * JMX view of the totals over all sensors.
+ */
+public interface MetricsMBean {
+
+    int getSensors();
+
+    long getSamples();
+
+    long getAlarms();
+
+    long getArchiveSize();
+
+    /**
+     * Clears every latency histogram, e.g. after warming up.
+     */
+    void resetLatencies();
+}
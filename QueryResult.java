@@ -0,0 +1,87 @@
+/**
+ * Time buckets returned by an archive query. Bucket i covers
+ * [start[i], start[i] + width) and summarizes the datapoints inside it;
+ * empty buckets have a count of 0 and NaN statistics.
+ */
+public class QueryResult {
+    int buckets;
+    long width;
+    long[] start;
+    long[] count;
+    double[] min;
+    double[] max;
+    double[] avg;
+
+    //times at which the minimum and maximum of each bucket were measured
+    long[] minTime;
+    long[] maxTime;
+
+    public QueryResult(long from, long width, int buckets) {
+        this.buckets = buckets;
+        this.width = width;
+        this.start = new long[buckets];
+        this.count = new long[buckets];
+        this.min = new double[buckets];
+        this.max = new double[buckets];
+        this.avg = new double[buckets];
+        this.minTime = new long[buckets];
+        this.maxTime = new long[buckets];
+        for (int b = 0; b < buckets; b++) {
+            start[b] = from + b * width;
+            min[b] = Double.NaN;
+            max[b] = Double.NaN;
+            avg[b] = Double.NaN;
+        }
+    }
+
+    /**
+     * 
+     * @return number of buckets
+     */
+    public int size() {
+        return buckets;
+    }
+
+    /**
+     * Folds a datapoint into a bucket; avg holds the running sum until finish().
+     */
+    void add(int b, long time, double value) {
+        if (count[b] == 0 || value < min[b]) {
+            min[b] = value;
+            minTime[b] = time;
+        }
+        if (count[b] == 0 || value > max[b]) {
+            max[b] = value;
+            maxTime[b] = time;
+        }
+        avg[b] = count[b] == 0 ? value : avg[b] + value;
+        count[b]++;
+    }
+
+    /**
+     * Folds a whole chunk summary into a bucket.
+     */
+    void add(int b, long n, double chunkMin, long chunkMinTime, double chunkMax, long chunkMaxTime, double sum) {
+        if (count[b] == 0 || chunkMin < min[b]) {
+            min[b] = chunkMin;
+            minTime[b] = chunkMinTime;
+        }
+        if (count[b] == 0 || chunkMax > max[b]) {
+            max[b] = chunkMax;
+            maxTime[b] = chunkMaxTime;
+        }
+        avg[b] = count[b] == 0 ? sum : avg[b] + sum;
+        count[b] += n;
+    }
+
+    /**
+     * Turns the running sums into averages.
+     */
+    void finish() {
+        for (int b = 0; b < buckets; b++) {
+            if (count[b] > 0) {
+                avg[b] /= count[b];
+            }
+        }
+    }
+}
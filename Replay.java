@@ -0,0 +1,186 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds recorded sessions back through Service.measure, so alarm rules can
+ * be backtested against history. Every sensor's .ts file (as written by
+ * Service.saveToFile) is streamed block by block and merged by timestamp;
+ * a ManualClock follows the recorded time, so rate-of-change alarms and
+ * retention behave as they did live.
+ *
+ * Usage: {@code java Replay <config> <speed|max> <sensor>.ts...}, where
+ * config holds the thresholds to test in the sensors.csv format and speed
+ * is a multiple of real time, e.g. 1000.
+ */
+public class Replay {
+    //report throughput once per wall-clock second
+    static final long REPORT_NANOS = 1_000_000_000L;
+    //sleep only when this far ahead of schedule
+    static final long MIN_PARK_NANOS = 1_000_000L;
+
+    private final SensorRegistry registry;
+    private final double speed;
+    private final ManualClock clock = new ManualClock(0);
+    private final Service service = new Service(false, clock);
+
+    private long samples;
+    private long alarms;
+    private long[] alarmsOf;
+    private long[] firstAlarmOf;
+
+    /**
+     *
+     * @param registry sensors with the thresholds to test
+     * @param speed multiple of real time to replay at; infinite for as fast as possible
+     */
+    public Replay(SensorRegistry registry, double speed) {
+        this.registry = registry;
+        this.speed = speed;
+        int channels = 0;
+        for (Sensor sensor : registry.getSensors()) {
+            service.register(sensor, registry.createRule(sensor));
+            channels = Math.max(channels, sensor.getChannel() + 1);
+        }
+        this.alarmsOf = new long[channels];
+        this.firstAlarmOf = new long[channels];
+        //only the recent past is needed; older datapoints live on as rollups
+        service.enableRetention(60_000_000_000L, 3600, 1440);
+    }
+
+    /**
+     * Replays the files merged in time order and prints progress and a summary.
+     *
+     * @param files one compressed series per sensor, named after the sensor
+     * @throws IOException
+     */
+    public void run(List<Path> files) throws IOException {
+        PriorityQueue<Source> queue = new PriorityQueue<Source>((a, b) -> Long.compare(a.reader.getTime(), b.reader.getTime()));
+        for (Path file : files) {
+            String name = file.getFileName().toString().replaceFirst("\\.ts$", "");
+            Sensor sensor = registry.get(name);
+            if (sensor == null) {
+                System.err.println("skipping " + file + ": no sensor " + name + " in the config");
+                continue;
+            }
+            Source source = new Source(sensor, new CompressedSeriesReader(new FileInputStream(file.toFile())));
+            if (source.reader.next()) {
+                queue.add(source);
+            } else {
+                source.reader.close();
+            }
+        }
+        if (queue.isEmpty()) {
+            System.out.println("nothing to replay");
+            return;
+        }
+
+        long firstTime = queue.peek().reader.getTime();
+        long wallStart = System.nanoTime();
+        long nextReport = wallStart + REPORT_NANOS;
+        long reportedSamples = 0;
+        try {
+            while (!queue.isEmpty()) {
+                Source source = queue.poll();
+                long time = source.reader.getTime();
+                double value = source.reader.getValue();
+                if (speed != Double.POSITIVE_INFINITY) {
+                    long ahead = wallStart + (long) ((time - firstTime) / speed) - System.nanoTime();
+                    if (ahead >= MIN_PARK_NANOS) {
+                        LockSupport.parkNanos(ahead);
+                    }
+                }
+                clock.set(time);
+                measure(source.sensor, value, time);
+                if (source.reader.next()) {
+                    queue.add(source);
+                } else {
+                    source.reader.close();
+                }
+
+                if ((samples & 4095) == 0) {
+                    long wall = System.nanoTime();
+                    if (wall >= nextReport) {
+                        System.out.printf("%s  %,d samples, %,.0f samples/s, %,d alarms%n", format(time), samples,
+                                (samples - reportedSamples) * 1e9 / (wall - nextReport + REPORT_NANOS), alarms);
+                        reportedSamples = samples;
+                        nextReport = wall + REPORT_NANOS;
+                    }
+                }
+            }
+        } finally {
+            for (Source source : queue) {
+                source.reader.close();
+            }
+            service.close();
+        }
+
+        long elapsed = System.nanoTime() - wallStart;
+        System.out.printf("replayed %,d samples (%s to %s) in %.2f s: %,.0f samples/s, %.0fx real time%n",
+                samples, format(firstTime), format(clock.now()), elapsed / 1e9, samples * 1e9 / elapsed,
+                (clock.now() - firstTime) / (double) elapsed);
+        for (Sensor sensor : registry.getSensors()) {
+            int channel = sensor.getChannel();
+            if (alarmsOf[channel] > 0) {
+                System.out.printf("  %s: %,d alarms, first at %s%n", sensor.getName(), alarmsOf[channel],
+                        format(firstAlarmOf[channel]));
+            } else {
+                System.out.printf("  %s: no alarms%n", sensor.getName());
+            }
+        }
+    }
+
+    private void measure(Sensor sensor, double value, long time) {
+        samples++;
+        if (service.measure(sensor, value, time) != Alarm.GOOD) {
+            int channel = sensor.getChannel();
+            if (alarmsOf[channel]++ == 0) {
+                firstAlarmOf[channel] = time;
+            }
+            alarms++;
+        }
+    }
+
+    private static String format(long epochNanos) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(0, epochNanos), ZoneId.systemDefault()).toString();
+    }
+
+    /**
+     * A sensor's file, positioned at its next datapoint.
+     */
+    private static class Source {
+        final Sensor sensor;
+        final CompressedSeriesReader reader;
+
+        Source(Sensor sensor, CompressedSeriesReader reader) {
+            this.sensor = sensor;
+            this.reader = reader;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: java Replay <config> <speed|max> <sensor>.ts...");
+            System.exit(1);
+        }
+        SensorRegistry registry = SensorRegistry.load(Paths.get(args[0]));
+        double speed = args[1].equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(args[1]);
+        if (!(speed > 0)) {
+            System.err.println("speed must be positive or max");
+            System.exit(1);
+        }
+        List<Path> files = new ArrayList<Path>();
+        for (int i = 2; i < args.length; i++) {
+            files.add(Paths.get(args[i]));
+        }
+        new Replay(registry, speed).run(files);
+    }
+}
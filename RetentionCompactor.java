@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounds archive memory with retention tiers. Raw datapoints are kept for
+ * a configurable time; before they are dropped, every completed second is
+ * rolled up into a 1 second tier and every completed minute into a 1 minute
+ * tier, each a RollupRing of fixed size.
+ *
+ * Compaction runs on its own thread once a second. It only reads the
+ * archives, which are never locked, and asks them to drop old chunks, which
+ * the appending thread does itself on its next chunk; measuring is never
+ * paused. Alarm times reach the compactor through a small ring per sensor,
+ * holding at most one alarm per second since only the first one of each
+ * second is kept.
+ *
+ * With a spill directory, the raw datapoints are appended to a SpillFile
+ * per sensor before they are dropped, so an export still writes the whole
+ * session. Compaction holds the compactor's lock; hold it to see spill
+ * files, archives and rollups that agree with each other.
+ */
+public class RetentionCompactor {
+    static final long SECOND = 1_000_000_000L;
+    static final long MINUTE = 60 * SECOND;
+    //datapoints may reach the archive this long after they were taken
+    static final long LATENESS = SECOND;
+
+    private final long rawRetentionNanos;
+    private final int secondRollups;
+    private final int minuteRollups;
+    private final LongSupplier clock;
+    //null when dropped datapoints are not kept anywhere
+    private final Path spillDirectory;
+    private final ConcurrentHashMap<String, Tiers> tiers = new ConcurrentHashMap<String, Tiers>();
+    private ScheduledExecutorService compactor;
+
+    /**
+     *
+     * @param rawRetentionNanos how long raw datapoints are kept
+     * @param secondRollups number of 1 second rollups kept per sensor
+     * @param minuteRollups number of 1 minute rollups kept per sensor
+     * @param clock current time in epoch nanoseconds
+     */
+    public RetentionCompactor(long rawRetentionNanos, int secondRollups, int minuteRollups, LongSupplier clock) {
+        this(rawRetentionNanos, secondRollups, minuteRollups, clock, null);
+    }
+
+    /**
+     *
+     * @param rawRetentionNanos how long raw datapoints are kept in memory
+     * @param secondRollups number of 1 second rollups kept per sensor
+     * @param minuteRollups number of 1 minute rollups kept per sensor
+     * @param clock current time in epoch nanoseconds
+     * @param spillDirectory existing directory the dropped datapoints are spilled to, or null
+     */
+    public RetentionCompactor(long rawRetentionNanos, int secondRollups, int minuteRollups, LongSupplier clock,
+            Path spillDirectory) {
+        this.rawRetentionNanos = rawRetentionNanos;
+        this.secondRollups = secondRollups;
+        this.minuteRollups = minuteRollups;
+        this.clock = clock;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     *
+     * @param archive archive to compact from now on
+     */
+    public synchronized void add(SensorArchive archive) {
+        if (tiers.containsKey(archive.getName())) {
+            return;
+        }
+        Tiers sensorTiers = new Tiers(archive);
+        if (spillDirectory != null) {
+            try {
+                sensorTiers.spill = new SpillFile(spillDirectory.resolve(archive.getName() + ".spill"), archive.firstIndex());
+            } catch (IOException e) {
+                //without a spill file the sensor's raw datapoints are never dropped
+                e.printStackTrace();
+            }
+        }
+        tiers.put(archive.getName(), sensorTiers);
+    }
+
+    /**
+     *
+     * @return whether every dropped datapoint is spilled first
+     */
+    public boolean isSpilling() {
+        return spillDirectory != null;
+    }
+
+    /**
+     *
+     * @param sensorName name of the sensor
+     * @return datapoints of the sensor dropped from its archive, or null without a spill file
+     */
+    public SpillFile getSpill(String sensorName) {
+        Tiers sensorTiers = tiers.get(sensorName);
+        return sensorTiers == null ? null : sensorTiers.spill;
+    }
+
+    /**
+     * Notes the time of an alarm; called by the thread that monitors the sensor.
+     *
+     * @param sensorName name of the sensor
+     * @param timeNanos epoch nanoseconds of the datapoint that raised the alarm
+     */
+    public void recordAlarm(String sensorName, long timeNanos) {
+        Tiers sensorTiers = tiers.get(sensorName);
+        if (sensorTiers != null) {
+            sensorTiers.recordAlarm(timeNanos);
+        }
+    }
+
+    /**
+     *
+     * @param sensorName name of the sensor
+     * @return 1 second rollups of the sensor, or null if it is unknown
+     */
+    public RollupRing getSecondRollups(String sensorName) {
+        Tiers sensorTiers = tiers.get(sensorName);
+        return sensorTiers == null ? null : sensorTiers.seconds;
+    }
+
+    /**
+     *
+     * @param sensorName name of the sensor
+     * @return 1 minute rollups of the sensor, or null if it is unknown
+     */
+    public RollupRing getMinuteRollups(String sensorName) {
+        Tiers sensorTiers = tiers.get(sensorName);
+        return sensorTiers == null ? null : sensorTiers.minutes;
+    }
+
+    public void start() {
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (RuntimeException e) {
+                //an exception would silently cancel the schedule
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops compaction, letting a running pass finish, and closes the spill files.
+     */
+    public void shutdown() {
+        if (compactor != null) {
+            //not shutdownNow: an interrupt would close a spill file under a write
+            compactor.shutdown();
+        }
+        synchronized (this) {
+            for (Tiers sensorTiers : tiers.values()) {
+                if (sensorTiers.spill != null) {
+                    try {
+                        sensorTiers.spill.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rolls up every completed second of every sensor and releases the raw
+     * datapoints that are both rolled up and older than the retention time,
+     * once they are spilled when there is a spill directory.
+     */
+    synchronized void compact() {
+        long now = clock.getAsLong();
+        long boundary = Math.floorDiv(now - LATENESS, SECOND) * SECOND;
+        for (Tiers sensorTiers : tiers.values()) {
+            sensorTiers.compact(boundary);
+            SensorArchive archive = sensorTiers.archive;
+            long trim = Math.min(sensorTiers.rolledIndex, archive.indexOf(now - rawRetentionNanos));
+            if (spillDirectory == null) {
+                archive.trimTo(trim);
+            } else if (sensorTiers.spill != null) {
+                try {
+                    sensorTiers.spill.spill(archive, trim);
+                } catch (IOException e) {
+                    //only what reached the file is dropped
+                    e.printStackTrace();
+                }
+                archive.trimTo(sensorTiers.spill.getArchiveIndex());
+            }
+        }
+    }
+
+    /**
+     * Rollup state of one sensor.
+     */
+    private class Tiers {
+        final SensorArchive archive;
+        final RollupRing seconds = new RollupRing(SECOND, secondRollups);
+        final RollupRing minutes = new RollupRing(MINUTE, minuteRollups);
+        SpillFile spill;
+        long rolledIndex;
+
+        //minute being accumulated; minuteCount is 0 while none is open
+        long minuteStart;
+        long minuteCount;
+        double minuteMin;
+        double minuteMax;
+        double minuteSum;
+        long minuteAlarm = RollupRing.NO_ALARM;
+
+        //alarm times handed over by the monitoring thread, one per second at most
+        final long[] alarms = new long[64];
+        volatile long alarmsWritten;
+        //read by the monitoring thread to tell whether the ring is full
+        volatile long alarmsRead;
+        long lastAlarmSecond = Long.MIN_VALUE;
+
+        Tiers(SensorArchive archive) {
+            this.archive = archive;
+            this.rolledIndex = archive.firstIndex();
+        }
+
+        void recordAlarm(long timeNanos) {
+            long second = Math.floorDiv(timeNanos, SECOND);
+            long written = alarmsWritten;
+            //a full ring means the compactor is stalled; later alarms are dropped
+            if (second != lastAlarmSecond && written - alarmsRead < alarms.length) {
+                alarms[(int) (written % alarms.length)] = timeNanos;
+                alarmsWritten = written + 1;
+                lastAlarmSecond = second;
+            }
+        }
+
+        void compact(long boundary) {
+            long end = archive.size();
+            long i = Math.max(rolledIndex, archive.firstIndex());
+            while (i < end) {
+                long time = archive.getTime(i);
+                if (time >= boundary) {
+                    break;
+                }
+                long second = Math.floorDiv(time, SECOND) * SECOND;
+                long count = 0;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                double sum = 0;
+                while (i < end && (time = archive.getTime(i)) < second + SECOND) {
+                    double value = archive.getValue(i);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    sum += value;
+                    count++;
+                    i++;
+                }
+                long alarm = takeLastAlarm(second + SECOND);
+                seconds.add(second, count, min, max, sum / count, alarm);
+                addToMinute(second, count, min, max, sum, alarm);
+            }
+            rolledIndex = i;
+            if (minuteCount > 0 && boundary >= minuteStart + MINUTE) {
+                flushMinute();
+            }
+        }
+
+        /**
+         * Consumes the alarms before end and returns the last of them if it
+         * lies in the second ending there. The ring holds one alarm per
+         * second, the first one recorded in it, so that is the first alarm
+         * of the second.
+         */
+        long takeLastAlarm(long end) {
+            long written = alarmsWritten;
+            long read = alarmsRead;
+            long last = RollupRing.NO_ALARM;
+            while (read < written) {
+                long time = alarms[(int) (read % alarms.length)];
+                if (time >= end) {
+                    break;
+                }
+                last = time >= end - SECOND ? time : RollupRing.NO_ALARM;
+                read++;
+            }
+            alarmsRead = read;
+            return last;
+        }
+
+        void addToMinute(long second, long count, double min, double max, double sum, long alarm) {
+            long minute = Math.floorDiv(second, MINUTE) * MINUTE;
+            if (minuteCount > 0 && minute != minuteStart) {
+                flushMinute();
+            }
+            if (minuteCount == 0) {
+                minuteStart = minute;
+                minuteMin = min;
+                minuteMax = max;
+                minuteSum = 0;
+                minuteAlarm = RollupRing.NO_ALARM;
+            }
+            minuteCount += count;
+            minuteMin = Math.min(minuteMin, min);
+            minuteMax = Math.max(minuteMax, max);
+            minuteSum += sum;
+            if (minuteAlarm == RollupRing.NO_ALARM) {
+                minuteAlarm = alarm;
+            }
+        }
+
+        void flushMinute() {
+            minutes.add(minuteStart, minuteCount, minuteMin, minuteMax, minuteSum / minuteCount, minuteAlarm);
+            minuteCount = 0;
+        }
+    }
+}
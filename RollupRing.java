@@ -0,0 +1,124 @@
+/**
+ * Fixed number of the most recent rollups of one sensor at one resolution:
+ * count, min, max and mean of the datapoints in each interval, and the
+ * time of the first alarm raised in it.
+ *
+ * Positions count up from the first rollup ever added; once the ring is
+ * full every new rollup replaces the oldest. One thread adds rollups and
+ * any thread may read them. A reader racing the writer should check that
+ * the positions it read are still at least first() afterwards.
+ */
+public class RollupRing {
+    //marks an interval without alarms
+    static final long NO_ALARM = Long.MIN_VALUE;
+
+    private final long intervalNanos;
+    private final long[] start;
+    private final long[] count;
+    private final double[] min;
+    private final double[] max;
+    private final double[] mean;
+    private final long[] firstAlarm;
+
+    //written after the rollup itself
+    private volatile long end;
+
+    /**
+     *
+     * @param intervalNanos length of the interval each rollup covers
+     * @param capacity number of rollups kept
+     */
+    public RollupRing(long intervalNanos, int capacity) {
+        this.intervalNanos = intervalNanos;
+        this.start = new long[capacity];
+        this.count = new long[capacity];
+        this.min = new double[capacity];
+        this.max = new double[capacity];
+        this.mean = new double[capacity];
+        this.firstAlarm = new long[capacity];
+    }
+
+    /**
+     *
+     * @return length of the interval each rollup covers
+     */
+    public long getIntervalNanos() {
+        return this.intervalNanos;
+    }
+
+    /**
+     *
+     * @return position of the oldest rollup still held
+     */
+    public long first() {
+        return Math.max(0, this.end - this.start.length);
+    }
+
+    /**
+     *
+     * @return position after the newest rollup
+     */
+    public long end() {
+        return this.end;
+    }
+
+    /**
+     * Adds the rollup of the interval after the newest one.
+     *
+     * @param start epoch nanoseconds where the interval starts
+     * @param count number of datapoints in the interval
+     * @param min lowest value in the interval
+     * @param max highest value in the interval
+     * @param mean average value in the interval
+     * @param firstAlarm epoch nanoseconds of the first alarm in the interval, or NO_ALARM
+     */
+    public void add(long start, long count, double min, double max, double mean, long firstAlarm) {
+        long n = this.end;
+        int slot = (int) (n % this.start.length);
+        this.start[slot] = start;
+        this.count[slot] = count;
+        this.min[slot] = min;
+        this.max[slot] = max;
+        this.mean[slot] = mean;
+        this.firstAlarm[slot] = firstAlarm;
+        this.end = n + 1;
+    }
+
+    /**
+     *
+     * @param position position of the rollup, between first() and end()
+     * @return epoch nanoseconds where the interval starts
+     */
+    public long getStart(long position) {
+        return this.start[slot(position)];
+    }
+
+    public long getCount(long position) {
+        return this.count[slot(position)];
+    }
+
+    public double getMin(long position) {
+        return this.min[slot(position)];
+    }
+
+    public double getMax(long position) {
+        return this.max[slot(position)];
+    }
+
+    public double getMean(long position) {
+        return this.mean[slot(position)];
+    }
+
+    /**
+     *
+     * @param position position of the rollup, between first() and end()
+     * @return epoch nanoseconds of the first alarm in the interval, or NO_ALARM
+     */
+    public long getFirstAlarm(long position) {
+        return this.firstAlarm[slot(position)];
+    }
+
+    private int slot(long position) {
+        return (int) (position % this.start.length);
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Source of the timestamps given to datapoints, in epoch nanoseconds.
+ * Live sessions use system(); replays and tests drive a ManualClock so
+ * timestamps, alarm rates and retention follow the recorded time.
+ */
+public interface SampleClock {
+
+    /**
+     *
+     * @return current time in epoch nanoseconds
+     */
+    long now();
+
+    /**
+     * Wall-clock time derived from the monotonic clock, so reading it does
+     * not allocate and never steps backwards.
+     *
+     * @return the system clock
+     */
+    static SampleClock system() {
+        long epochOffset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+        return () -> epochOffset + System.nanoTime();
+    }
+}
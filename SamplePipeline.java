@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Connects sensor producers to the service through a SampleRingBuffer.
+ *
+ * Archiving, file export (the write-ahead log) and alarm evaluation each
+ * run as their own consumer, so a slow disk never holds up the alarms and
+ * further consumers such as the GUI can be added without touching the
+ * service. The archive consumer is the only thread writing the archive.
+ *
+ * With derived channels, producers publish into a stage ahead of the ring
+ * instead, whose single consumer hands every datapoint on to the ring,
+ * followed by the new values of the derived channels reading it, so they
+ * are archived, logged and alarmed like any other sensor. A consumer of the ring itself cannot do that: once the ring is
+ * full, its publish would wait for the slot it is still holding.
+ */
+public class SamplePipeline {
+
+    /**
+     * Notified on the alarm consumer's thread when a datapoint is out of range.
+     */
+    public interface AlarmListener {
+        void onAlarm(Sensor sensor, long timeNanos, double value, Alarm alarm);
+    }
+
+    private final Service service;
+    private final SampleRingBuffer ring;
+    private final SampleRingBuffer.Policy policy;
+    //between the producers and the ring while derived channels are computed, otherwise null
+    private volatile SampleRingBuffer stage;
+    private final List<AlarmListener> alarmListeners = new CopyOnWriteArrayList<AlarmListener>();
+
+    /**
+     * 
+     * @param service service that archives, logs and monitors the datapoints
+     * @param capacity number of datapoints the ring can hold
+     * @param policy what producers do when a consumer falls a full ring behind
+     */
+    public SamplePipeline(Service service, int capacity, SampleRingBuffer.Policy policy) {
+        this.service = service;
+        this.ring = new SampleRingBuffer(capacity, policy);
+        this.policy = policy;
+        ring.addConsumer("archive", (sensor, time, value, endOfBatch) -> service.archive(sensor, value, time));
+        ring.addConsumer("export", (sensor, time, value, endOfBatch) -> service.log(sensor, value, time));
+        ring.addConsumer("alarms", new AlarmBatch());
+    }
+
+    /**
+     * Alarm consumer: collects the datapoints of a ring batch, at most one
+     * per sensor, and monitors them together with Service.monitorBatch, so
+     * the range screen runs over 64 channels at a time. The collected
+     * datapoints are monitored when the ring batch ends or before a second
+     * datapoint of one of their sensors, so every sensor still sees its
+     * datapoints in order; listeners are notified in channel order.
+     */
+    private class AlarmBatch implements SampleRingBuffer.Handler {
+        //indexed by alarm channel, grown as sensors with higher channels arrive
+        private Sensor[] sensors = new Sensor[0];
+        private long[] times = new long[0];
+        private double[] values = new double[0];
+        private long[] present = new long[0];
+        private long[] raised = new long[0];
+        private int pending;
+
+        public void onSample(Sensor sensor, long timeNanos, double value, boolean endOfBatch) {
+            int ch = sensor.getChannel();
+            if (ch >= sensors.length) {
+                grow(ch + 1);
+            } else if ((present[ch >>> 6] & (1L << ch)) != 0) {
+                flush();
+            }
+            sensors[ch] = sensor;
+            times[ch] = timeNanos;
+            values[ch] = value;
+            present[ch >>> 6] |= 1L << ch;
+            pending++;
+            if (endOfBatch) {
+                flush();
+            }
+        }
+
+        private void grow(int channels) {
+            int capacity = (channels + 63) & ~63;
+            sensors = Arrays.copyOf(sensors, capacity);
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+            present = Arrays.copyOf(present, capacity >>> 6);
+            raised = Arrays.copyOf(raised, capacity >>> 6);
+        }
+
+        private void flush() {
+            if (pending == 0) {
+                return;
+            }
+            int count = service.monitorBatch(sensors, times, values, present, raised);
+            Arrays.fill(present, 0);
+            pending = 0;
+            if (count > 0 && !alarmListeners.isEmpty()) {
+                for (int word = 0; word < raised.length; word++) {
+                    for (long bits = raised[word]; bits != 0; bits &= bits - 1) {
+                        int ch = (word << 6) + Long.numberOfTrailingZeros(bits);
+                        Alarm alarm = service.getAlarmState(sensors[ch]);
+                        for (AlarmListener listener : alarmListeners) {
+                            listener.onAlarm(sensors[ch], times[ch], values[ch], alarm);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocking pipeline with room for 64k datapoints.
+     * 
+     * @param service service that archives, logs and monitors the datapoints
+     */
+    public SamplePipeline(Service service) {
+        this(service, 1 << 16, SampleRingBuffer.Policy.BLOCK);
+    }
+
+    /**
+     * 
+     * @return the service fed by this pipeline
+     */
+    public Service getService() {
+        return service;
+    }
+
+    /**
+     * 
+     * @param listener notified of every out-of-range datapoint from now on
+     */
+    public void addAlarmListener(AlarmListener listener) {
+        alarmListeners.add(listener);
+    }
+
+    /**
+     * Adds an independent consumer; must be called before the first publish.
+     * 
+     * @param name name of the consumer's thread
+     * @param handler receives every datapoint
+     * @return the started consumer
+     */
+    public SampleRingBuffer.Consumer addConsumer(String name, SampleRingBuffer.Handler handler) {
+        return ring.addConsumer(name, handler);
+    }
+
+    /**
+     * Computes derived channels from the published datapoints; must be
+     * called before the first publish.
+     * 
+     * @param derived derived channels whose sensors are registered with the service
+     */
+    public void addDerivedChannels(DerivedChannels derived) {
+        if (stage != null) {
+            throw new IllegalStateException("derived channels are already added");
+        }
+        SampleRingBuffer stage = new SampleRingBuffer(ring.capacity(), policy);
+        SampleRingBuffer.Handler publisher = (sensor, time, value, endOfBatch) -> ring.publish(sensor, time, value);
+        stage.addConsumer("derived", (sensor, time, value, endOfBatch) -> {
+            ring.publish(sensor, time, value);
+            derived.update(sensor, time, value, publisher);
+        });
+        this.stage = stage;
+    }
+
+    /**
+     * 
+     * @param sensor sensor the datapoint belongs to
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @return false if the datapoint was dropped
+     */
+    public boolean publish(Sensor sensor, long timeNanos, double value) {
+        SampleRingBuffer stage = this.stage;
+        return (stage != null ? stage : ring).publish(sensor, timeNanos, value);
+    }
+
+    /**
+     * 
+     * @return number of datapoints dropped because the ring was full
+     */
+    public long getDropped() {
+        SampleRingBuffer stage = this.stage;
+        return ring.getDropped() + (stage != null ? stage.getDropped() : 0);
+    }
+
+    /**
+     * Lets every consumer drain what has been published, then stops them.
+     * Producers must be stopped first.
+     */
+    public void shutdown() {
+        SampleRingBuffer stage = this.stage;
+        if (stage != null) {
+            stage.shutdown();
+        }
+        ring.shutdown();
+    }
+}
@@ -0,0 +1,246 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pre-allocated ring of datapoints between any number of producers and
+ * independent consumers, in the style of the LMAX Disruptor.
+ *
+ * Producers claim a sequence with a CAS on the cursor, fill the slot and
+ * mark it published. Every consumer runs on its own thread, tracks its own
+ * sequence and handles everything published since its last pass as one
+ * batch. A slot is only reused once the slowest consumer has moved past it;
+ * until then producers either wait (BLOCK) or drop the datapoint (DROP).
+ */
+public class SampleRingBuffer {
+
+    /**
+     * What a producer does when the slowest consumer is a full ring behind.
+     */
+    public enum Policy {
+        BLOCK,
+        DROP
+    }
+
+    /**
+     * Handles datapoints on a consumer thread, in sequence order.
+     */
+    public interface Handler {
+        /**
+         *
+         * @param sensor sensor the datapoint belongs to
+         * @param timeNanos epoch nanoseconds of the datapoint
+         * @param value the measured value
+         * @param endOfBatch whether this is the last datapoint currently available
+         */
+        void onSample(Sensor sensor, long timeNanos, double value, boolean endOfBatch);
+    }
+
+    private final int mask;
+    private final int shift;
+    private final Policy policy;
+
+    //slots
+    private final Sensor[] sensors;
+    private final long[] times;
+    private final double[] values;
+
+    //lap in which each slot was last published, so consumers can tell it is ready
+    private final AtomicIntegerArray published;
+
+    //next sequence to be claimed by a producer
+    private final AtomicLong cursor = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+
+    //cached minimum of the consumer sequences to avoid scanning them on every claim
+    private volatile long gate = -1;
+
+    /**
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param policy what producers do when the ring is full
+     */
+    public SampleRingBuffer(int capacity, Policy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.shift = Integer.numberOfTrailingZeros(size);
+        this.policy = policy;
+        this.sensors = new Sensor[size];
+        this.times = new long[size];
+        this.values = new double[size];
+        this.published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Registers a consumer; must be called before anything is published.
+     *
+     * @param name name of the consumer's thread
+     * @param handler receives every published datapoint
+     * @return the started consumer
+     */
+    public Consumer addConsumer(String name, Handler handler) {
+        Consumer consumer = new Consumer(name, handler);
+        consumers.add(consumer);
+        consumer.thread.start();
+        return consumer;
+    }
+
+    /**
+     * Publishes a datapoint to every consumer.
+     *
+     * @param sensor sensor the datapoint belongs to
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @return false if the datapoint was dropped because the ring was full
+     */
+    public boolean publish(Sensor sensor, long timeNanos, double value) {
+        long seq;
+        if (policy == Policy.DROP) {
+            do {
+                seq = cursor.get();
+                if (seq - capacity() > gate && seq - capacity() > minimumSequence()) {
+                    dropped.increment();
+                    return false;
+                }
+            } while (!cursor.compareAndSet(seq, seq + 1));
+        } else {
+            seq = cursor.getAndIncrement();
+            int spins = 0;
+            while (seq - capacity() > gate && seq - capacity() > minimumSequence()) {
+                spins = backOff(spins);
+            }
+        }
+        int slot = (int) seq & mask;
+        sensors[slot] = sensor;
+        times[slot] = timeNanos;
+        values[slot] = value;
+        published.lazySet(slot, (int) (seq >>> shift));
+        return true;
+    }
+
+    /**
+     *
+     * @return number of slots in the ring
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     *
+     * @return number of datapoints dropped under the DROP policy
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until every consumer has handled everything published so far,
+     * then stops the consumer threads.
+     */
+    public void shutdown() {
+        long last = cursor.get() - 1;
+        for (Consumer consumer : consumers) {
+            int spins = 0;
+            while (consumer.sequence.get() < last && consumer.thread.isAlive()) {
+                spins = backOff(spins);
+            }
+            consumer.running = false;
+        }
+        for (Consumer consumer : consumers) {
+            try {
+                consumer.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long minimumSequence() {
+        long min = Long.MAX_VALUE;
+        for (Consumer consumer : consumers) {
+            min = Math.min(min, consumer.sequence.get());
+        }
+        if (min == Long.MAX_VALUE) {
+            //without consumers nothing holds the producers back
+            min = cursor.get() - 1;
+        }
+        gate = min;
+        return min;
+    }
+
+    private static int backOff(int spins) {
+        if (spins < 100) {
+            Thread.onSpinWait();
+        } else if (spins < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return spins + 1;
+    }
+
+    /**
+     * A handler together with its thread and the last sequence it handled.
+     */
+    public class Consumer {
+        private final Handler handler;
+        private final Thread thread;
+        private final AtomicLong sequence = new AtomicLong(-1);
+        private volatile boolean running = true;
+
+        Consumer(String name, Handler handler) {
+            this.handler = handler;
+            this.thread = new Thread(this::run, name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         *
+         * @return number of datapoints published but not yet handled by this consumer
+         */
+        public long getLag() {
+            return cursor.get() - 1 - sequence.get();
+        }
+
+        private void run() {
+            long next = sequence.get() + 1;
+            int spins = 0;
+            while (running) {
+                long available = highestPublished(next, cursor.get() - 1);
+                if (available < next) {
+                    spins = backOff(spins);
+                    continue;
+                }
+                spins = 0;
+                for (long seq = next; seq <= available; seq++) {
+                    int slot = (int) seq & mask;
+                    try {
+                        handler.onSample(sensors[slot], times[slot], values[slot], seq == available);
+                    } catch (RuntimeException e) {
+                        //one bad datapoint must not stall the ring for every producer
+                        e.printStackTrace();
+                    }
+                }
+                sequence.lazySet(available);
+                next = available + 1;
+            }
+        }
+
+        private long highestPublished(long from, long to) {
+            for (long seq = from; seq <= to; seq++) {
+                if (published.get((int) seq & mask) != (int) (seq >>> shift)) {
+                    return seq - 1;
+                }
+            }
+            return to;
+        }
+    }
+}
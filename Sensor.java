@@ -1,18 +1,60 @@
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public class Sensor {
-    private State curState;
+    //coefficients of Acklam's inverse normal CDF approximation
+    private static final double[] ACKLAM_A = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+            1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+    private static final double[] ACKLAM_B = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+            6.680131188771972e+01, -1.328068155288572e+01};
+    private static final double[] ACKLAM_C = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+            -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+    private static final double[] ACKLAM_D = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+            3.754408661907416e+00};
+
+    //written by the GUI, read by the acquisition thread
+    private volatile State curState;
     private double min;
     private double max;
     private String sensorName;
     private boolean canNegative;
+    private double rate;
+    private String unit = "";
+
+    //index assigned when the sensor is registered with a service
+    private int channel = -1;
+
+    //simulation state; a sensor is only ever sampled by one thread at a time
+    private final double mean;
+    private final double stdDev;
+    private final double negativeCdf;
+    private SplittableRandom random;
+    private double spareGaussian;
+    private boolean hasSpare;
 
     public Sensor(State initialState, double min, double max, String sensorName, boolean canNegative) {
+        this(initialState, min, max, sensorName, canNegative, 1.0);
+    }
+
+    public Sensor(State initialState, double min, double max, String sensorName, boolean canNegative, double rate) {
+        this(initialState, min, max, sensorName, canNegative, rate, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * 
+     * @param seed makes the generated data reproducible
+     */
+    public Sensor(State initialState, double min, double max, String sensorName, boolean canNegative, double rate, long seed) {
         curState = initialState;
         this.min = min;
         this.max = max;
         this.sensorName = sensorName;
         this.canNegative = canNegative;
+        this.rate = rate;
+        this.mean = (min + max) / 2;
+        this.stdDev = 0.3 * (max - min);
+        //probability mass below zero, cut off for sensors that cannot be negative
+        this.negativeCdf = normalCdf(-mean / stdDev);
+        this.random = new SplittableRandom(seed);
     }
 
     /**
@@ -47,6 +89,46 @@ public class Sensor {
         return this.sensorName;
     }
 
+    /**
+     * 
+     * @return number of measurements per second
+     */
+    public double getRate() {
+        return this.rate;
+    }
+
+    /**
+     * 
+     * @return unit the sensor's values are displayed in
+     */
+    public String getUnit() {
+        return this.unit;
+    }
+
+    /**
+     * 
+     * @param unit unit the sensor's values are displayed in
+     */
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * 
+     * @return index of the sensor in the service it is registered with
+     */
+    public int getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * 
+     * @param channel index assigned by the service the sensor is registered with
+     */
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
     /**
      * 
      * @param newState passes in what the new state of sensor will be
@@ -55,6 +137,16 @@ public class Sensor {
         this.curState = newState;
     }
     
+    /**
+     * Restarts the generated data from a seed.
+     * 
+     * @param seed makes the generated data reproducible
+     */
+    public void reseed(long seed) {
+        this.random = new SplittableRandom(seed);
+        this.hasSpare = false;
+    }
+
     /**
      * Generate data for each sensor by randomly sampling from a gaussian
      * distribution with a mean that is the midpoint of its allowed interval;
@@ -63,16 +155,101 @@ public class Sensor {
      * @return the pseudorandomized datapoint
      */
     public double generateData() {
-        double mean = (this.min + this.max) / 2;
-        double stdDev = 0.3 * (this.max - this.min);
-        Random rand = new Random();
-        double randNum = rand.nextGaussian() * stdDev + mean;
-        //sensors that cannot have negative values will keep resampling until a nonnegative number
-        if (!this.canNegative) {
-            while(randNum < 0) {
-                randNum = rand.nextGaussian() * stdDev + mean;
-            }
+        double randNum = nextGaussian() * this.stdDev + this.mean;
+        //sensors that cannot have negative values draw from the normal truncated at zero
+        if (!this.canNegative && randNum < 0) {
+            randNum = truncatedSample();
         }
         return randNum;
     }
+
+    /**
+     * Fills a buffer with datapoints from the same distribution as
+     * generateData() without allocating.
+     * 
+     * @param out buffer receiving the datapoints
+     * @param n number of datapoints to generate, at most out.length
+     */
+    public void generateBatch(double[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            out[i] = generateData();
+        }
+    }
+
+    /**
+     * A few plain resamples almost always succeed; when the interval sits so
+     * close to zero that they keep failing, invert the CDF over the
+     * nonnegative part instead so the cost stays bounded.
+     */
+    private double truncatedSample() {
+        for (int i = 0; i < 4; i++) {
+            double randNum = nextGaussian() * this.stdDev + this.mean;
+            if (randNum >= 0) {
+                return randNum;
+            }
+        }
+        double u = this.negativeCdf + this.random.nextDouble() * (1 - this.negativeCdf);
+        return Math.max(0, inverseNormalCdf(u) * this.stdDev + this.mean);
+    }
+
+    /**
+     * Marsaglia's polar method, keeping the second gaussian of each pair.
+     */
+    private double nextGaussian() {
+        if (this.hasSpare) {
+            this.hasSpare = false;
+            return this.spareGaussian;
+        }
+        double u;
+        double v;
+        double s;
+        do {
+            u = this.random.nextDouble() * 2 - 1;
+            v = this.random.nextDouble() * 2 - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
+        double scale = Math.sqrt(-2 * Math.log(s) / s);
+        this.spareGaussian = v * scale;
+        this.hasSpare = true;
+        return u * scale;
+    }
+
+    /**
+     * Standard normal CDF using the complementary error function
+     * approximation from Numerical Recipes (relative error below 1.2e-7).
+     */
+    static double normalCdf(double x) {
+        double z = Math.abs(x) / Math.sqrt(2);
+        double t = 1 / (1 + 0.5 * z);
+        double erfc = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+                + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? 1 - erfc / 2 : erfc / 2;
+    }
+
+    /**
+     * Inverse standard normal CDF by Acklam's rational approximation
+     * (relative error below 1.2e-9).
+     */
+    static double inverseNormalCdf(double p) {
+        if (p <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        } else if (p >= 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((ACKLAM_C[0] * q + ACKLAM_C[1]) * q + ACKLAM_C[2]) * q + ACKLAM_C[3]) * q + ACKLAM_C[4]) * q + ACKLAM_C[5])
+                    / ((((ACKLAM_D[0] * q + ACKLAM_D[1]) * q + ACKLAM_D[2]) * q + ACKLAM_D[3]) * q + 1);
+        } else if (p > 1 - low) {
+            double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((ACKLAM_C[0] * q + ACKLAM_C[1]) * q + ACKLAM_C[2]) * q + ACKLAM_C[3]) * q + ACKLAM_C[4]) * q + ACKLAM_C[5])
+                    / ((((ACKLAM_D[0] * q + ACKLAM_D[1]) * q + ACKLAM_D[2]) * q + ACKLAM_D[3]) * q + 1);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((ACKLAM_A[0] * r + ACKLAM_A[1]) * r + ACKLAM_A[2]) * r + ACKLAM_A[3]) * r + ACKLAM_A[4]) * r + ACKLAM_A[5]) * q
+                / (((((ACKLAM_B[0] * r + ACKLAM_B[1]) * r + ACKLAM_B[2]) * r + ACKLAM_B[3]) * r + ACKLAM_B[4]) * r + 1);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,419 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Columnar store for the datapoints of a single sensor.
+ *
+ * Samples are kept in fixed-size chunks of primitive timestamps (epoch nanos)
+ * and values, 16 bytes per sample, so appending never allocates except when
+ * a chunk fills up. Chunks can optionally live off-heap in direct buffers.
+ *
+ * Every block of 256 datapoints also keeps its min, max and sum, so
+ * time-range queries can binary-search to the first datapoint and fold whole
+ * blocks into their buckets without reading them. One thread appends; any thread may query.
+ *
+ * Old chunks can be released with trimTo, so a retention policy can keep
+ * memory bounded. Indexes keep counting from the first datapoint ever
+ * archived; firstIndex() tells where the datapoints still held begin.
+ */
+public class SensorArchive implements Iterable<Datapoint> {
+    static final int CHUNK_SHIFT = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    //summaries are kept per block of 256 datapoints, 16 blocks per chunk
+    static final int BLOCK_SHIFT = 8;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    static final int BLOCKS_PER_CHUNK = CHUNK_SIZE / BLOCK_SIZE;
+
+    private final String sensorName;
+    private final boolean offHeap;
+
+    //chunks and their summaries; replaced as a whole when it grows or drops old chunks
+    private volatile Storage storage = new Storage(0, 16);
+    //number of chunks ever added, including dropped ones
+    private long chunkCount;
+
+    //datapoints before this index may be dropped, once a new chunk is needed
+    private volatile long trimTo;
+
+    //written only after the sample itself so readers never see a half-written slot
+    private volatile long size;
+
+    public SensorArchive(String sensorName, boolean offHeap) {
+        this.sensorName = sensorName;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     *
+     * @return name of the sensor this archive belongs to
+     */
+    public String getName() {
+        return this.sensorName;
+    }
+
+    /**
+     *
+     * @return number of datapoints ever archived, including dropped ones
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     *
+     * @return index of the oldest datapoint still held
+     */
+    public long firstIndex() {
+        return this.storage.firstChunk << CHUNK_SHIFT;
+    }
+
+    /**
+     * Allows the datapoints before index to be dropped. They are released a
+     * whole chunk at a time by the appending thread, the next time it needs
+     * a new chunk, so trimming never blocks or races an append.
+     *
+     * @param index first datapoint that must be kept
+     */
+    public void trimTo(long index) {
+        if (index > this.trimTo) {
+            this.trimTo = index;
+        }
+    }
+
+    /**
+     * Appends a datapoint; timestamps are expected to be non-decreasing.
+     *
+     * @param timeNanos epoch nanoseconds at which the value was measured
+     * @param value the measured value
+     */
+    public void append(long timeNanos, double value) {
+        long n = this.size;
+        int offset = (int) (n & CHUNK_MASK);
+        if (offset == 0) {
+            addChunk();
+        }
+        Storage s = this.storage;
+        int chunk = (int) ((n >>> CHUNK_SHIFT) - s.firstChunk);
+        s.times[chunk].put(offset, timeNanos);
+        s.values[chunk].put(offset, value);
+        int block = (int) ((n >>> BLOCK_SHIFT) - s.firstBlock);
+        boolean first = (n & BLOCK_MASK) == 0;
+        if (first || value < s.blockMin[block]) {
+            s.blockMin[block] = value;
+            s.blockMinTime[block] = timeNanos;
+        }
+        if (first || value > s.blockMax[block]) {
+            s.blockMax[block] = value;
+            s.blockMaxTime[block] = timeNanos;
+        }
+        s.blockSum[block] = first ? value : s.blockSum[block] + value;
+        s.blockLastTime[block] = timeNanos;
+        this.size = n + 1;
+    }
+
+    /**
+     *
+     * @param index position of the datapoint in chronological order, at least firstIndex()
+     * @return epoch nanoseconds of the datapoint
+     */
+    public long getTime(long index) {
+        return this.storage.time(index);
+    }
+
+    /**
+     *
+     * @param index position of the datapoint in chronological order, at least firstIndex()
+     * @return value of the datapoint
+     */
+    public double getValue(long index) {
+        return this.storage.value(index);
+    }
+
+    /**
+     * Binary-searches the archive for a timestamp, first among the chunks
+     * and then inside the chunk.
+     *
+     * @param timeNanos epoch nanoseconds to look for
+     * @return index of the first datapoint held at or after timeNanos, or size() if there is none
+     */
+    public long indexOf(long timeNanos) {
+        long end = this.size;
+        return indexOf(this.storage, end, timeNanos);
+    }
+
+    private static long indexOf(Storage s, long end, long timeNanos) {
+        long firstIndex = s.firstChunk << CHUNK_SHIFT;
+        if (end <= firstIndex) {
+            return end;
+        }
+        int lastChunk = (int) (((end - 1) >>> CHUNK_SHIFT) - s.firstChunk);
+        //last chunk whose first timestamp is below timeNanos
+        int lo = 0;
+        int hi = lastChunk;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (s.times[mid].get(0) < timeNanos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long first = firstIndex + ((long) lo << CHUNK_SHIFT);
+        long last = Math.min(end, first + CHUNK_SIZE);
+        while (first < last) {
+            long mid = (first + last) >>> 1;
+            if (s.time(mid) < timeNanos) {
+                first = mid + 1;
+            } else {
+                last = mid;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Summarizes the datapoints in [from, to) into equal-width time buckets.
+     * Blocks that fall entirely inside one bucket are folded in from their
+     * summaries, so the cost depends on the number of buckets rather than
+     * on the number of datapoints.
+     *
+     * @param from epoch nanoseconds where the first bucket starts
+     * @param to epoch nanoseconds where the last bucket ends
+     * @param maxPoints number of buckets
+     * @return min, max, average and count of every bucket
+     */
+    public QueryResult query(long from, long to, int maxPoints) {
+        long width = Math.max(1, (to - from + maxPoints - 1) / maxPoints);
+        QueryResult result = new QueryResult(from, width, maxPoints);
+        long end = this.size;
+        Storage s = this.storage;
+        long i = indexOf(s, end, from);
+        while (i < end) {
+            long time = s.time(i);
+            if (time >= to) {
+                break;
+            }
+            int bucket = (int) ((time - from) / width);
+            long limit = Math.min(from + (bucket + 1) * width, to);
+            //fill the bucket, a whole block at a time where possible
+            while (i < end) {
+                int block = (int) ((i >>> BLOCK_SHIFT) - s.firstBlock);
+                if ((i & BLOCK_MASK) == 0 && i + BLOCK_SIZE <= end && s.blockLastTime[block] < limit) {
+                    result.add(bucket, BLOCK_SIZE, s.blockMin[block], s.blockMinTime[block],
+                            s.blockMax[block], s.blockMaxTime[block], s.blockSum[block]);
+                    i += BLOCK_SIZE;
+                    continue;
+                }
+                time = s.time(i);
+                if (time >= limit) {
+                    break;
+                }
+                result.add(bucket, time, s.value(i));
+                i++;
+            }
+        }
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Picks visually representative datapoints with Largest-Triangle-Three-Buckets.
+     * To stay fast on long ranges, LTTB runs over the minimum and maximum of
+     * 4 * maxPoints query buckets (MinMaxLTTB) instead of every datapoint.
+     *
+     * @param from epoch nanoseconds where the range starts
+     * @param to epoch nanoseconds where the range ends
+     * @param maxPoints number of datapoints to return, at least 3
+     * @return the chosen datapoints in chronological order
+     */
+    public SensorArchive downsample(long from, long to, int maxPoints) {
+        QueryResult buckets = query(from, to, maxPoints * 4);
+        long[] candidateTimes = new long[buckets.size() * 2];
+        double[] candidateValues = new double[buckets.size() * 2];
+        int n = 0;
+        for (int b = 0; b < buckets.size(); b++) {
+            if (buckets.count[b] == 0) {
+                continue;
+            }
+            boolean minFirst = buckets.minTime[b] <= buckets.maxTime[b];
+            candidateTimes[n] = minFirst ? buckets.minTime[b] : buckets.maxTime[b];
+            candidateValues[n++] = minFirst ? buckets.min[b] : buckets.max[b];
+            if (buckets.minTime[b] != buckets.maxTime[b]) {
+                candidateTimes[n] = minFirst ? buckets.maxTime[b] : buckets.minTime[b];
+                candidateValues[n++] = minFirst ? buckets.max[b] : buckets.min[b];
+            }
+        }
+
+        SensorArchive out = new SensorArchive(this.sensorName, false);
+        if (n <= maxPoints || maxPoints < 3) {
+            for (int i = 0; i < n; i++) {
+                out.append(candidateTimes[i], candidateValues[i]);
+            }
+            return out;
+        }
+        //first and last points are always kept; each bucket in between keeps the point
+        //spanning the largest triangle with the previous pick and the next bucket's average
+        out.append(candidateTimes[0], candidateValues[0]);
+        double every = (double) (n - 2) / (maxPoints - 2);
+        int previous = 0;
+        for (int b = 0; b < maxPoints - 2; b++) {
+            int start = (int) (b * every) + 1;
+            int stop = (int) ((b + 1) * every) + 1;
+            int nextStop = Math.min(n, (int) ((b + 2) * every) + 1);
+            double avgTime = 0;
+            double avgValue = 0;
+            for (int j = stop; j < nextStop; j++) {
+                avgTime += candidateTimes[j] - candidateTimes[0];
+                avgValue += candidateValues[j];
+            }
+            int nextCount = Math.max(1, nextStop - stop);
+            avgTime /= nextCount;
+            avgValue /= nextCount;
+
+            double px = candidateTimes[previous] - candidateTimes[0];
+            double py = candidateValues[previous];
+            double maxArea = -1;
+            int chosen = start;
+            for (int j = start; j < stop; j++) {
+                double area = Math.abs((px - avgTime) * (candidateValues[j] - py)
+                        - (px - (candidateTimes[j] - candidateTimes[0])) * (avgValue - py));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = j;
+                }
+            }
+            out.append(candidateTimes[chosen], candidateValues[chosen]);
+            previous = chosen;
+        }
+        out.append(candidateTimes[n - 1], candidateValues[n - 1]);
+        return out;
+    }
+
+    /**
+     * Iterates the archive in chronological order, converting each sample
+     * into a Datapoint on the fly.
+     */
+    @Override
+    public Iterator<Datapoint> iterator() {
+        final long end = this.size;
+        final Storage s = this.storage;
+        final ZoneId zone = ZoneId.systemDefault();
+        return new Iterator<Datapoint>() {
+            long next = s.firstChunk << CHUNK_SHIFT;
+
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            public Datapoint next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                long nanos = s.time(next);
+                double value = s.value(next);
+                next++;
+                return new Datapoint(value, LocalTime.ofInstant(Instant.ofEpochSecond(0, nanos), zone));
+            }
+        };
+    }
+
+    /**
+     * Starts a new chunk, dropping the chunks before trimTo when that frees
+     * a good part of the storage or when it would otherwise have to grow.
+     * Runs on the appending thread.
+     */
+    private void addChunk() {
+        Storage s = this.storage;
+        long keepFrom = Math.max(s.firstChunk, Math.min(this.trimTo >>> CHUNK_SHIFT, this.chunkCount));
+        int live = (int) (this.chunkCount - keepFrom);
+        boolean full = this.chunkCount - s.firstChunk == s.times.length;
+        if (full || keepFrom - s.firstChunk > s.times.length / 4) {
+            //at least twice the chunks still live, so copying stays amortized O(1)
+            int capacity = 16;
+            while (capacity < (live + 1) * 2) {
+                capacity *= 2;
+            }
+            s = s.copy(keepFrom, live, capacity);
+        }
+        int slot = (int) (this.chunkCount - s.firstChunk);
+        if (this.offHeap) {
+            s.times[slot] = ByteBuffer.allocateDirect(CHUNK_SIZE * Long.BYTES)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+            s.values[slot] = ByteBuffer.allocateDirect(CHUNK_SIZE * Double.BYTES)
+                    .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        } else {
+            s.times[slot] = LongBuffer.wrap(new long[CHUNK_SIZE]);
+            s.values[slot] = DoubleBuffer.wrap(new double[CHUNK_SIZE]);
+        }
+        this.storage = s;
+        this.chunkCount++;
+    }
+
+    /**
+     * Chunks from firstChunk on, with the summaries of their blocks.
+     */
+    private static class Storage {
+        final long firstChunk;
+        final long firstBlock;
+        final LongBuffer[] times;
+        final DoubleBuffer[] values;
+
+        //per-block summaries, complete once the block is full
+        final double[] blockMin;
+        final double[] blockMax;
+        final double[] blockSum;
+        final long[] blockMinTime;
+        final long[] blockMaxTime;
+        final long[] blockLastTime;
+
+        Storage(long firstChunk, int capacity) {
+            this.firstChunk = firstChunk;
+            this.firstBlock = firstChunk * BLOCKS_PER_CHUNK;
+            this.times = new LongBuffer[capacity];
+            this.values = new DoubleBuffer[capacity];
+            int blocks = capacity * BLOCKS_PER_CHUNK;
+            this.blockMin = new double[blocks];
+            this.blockMax = new double[blocks];
+            this.blockSum = new double[blocks];
+            this.blockMinTime = new long[blocks];
+            this.blockMaxTime = new long[blocks];
+            this.blockLastTime = new long[blocks];
+        }
+
+        /**
+         * Copies the chunks from keepFrom on into a new storage of the given capacity.
+         */
+        Storage copy(long keepFrom, int chunks, int capacity) {
+            Storage copy = new Storage(keepFrom, capacity);
+            int skip = (int) (keepFrom - this.firstChunk);
+            System.arraycopy(this.times, skip, copy.times, 0, chunks);
+            System.arraycopy(this.values, skip, copy.values, 0, chunks);
+            int skipBlocks = skip * BLOCKS_PER_CHUNK;
+            int blocks = chunks * BLOCKS_PER_CHUNK;
+            System.arraycopy(this.blockMin, skipBlocks, copy.blockMin, 0, blocks);
+            System.arraycopy(this.blockMax, skipBlocks, copy.blockMax, 0, blocks);
+            System.arraycopy(this.blockSum, skipBlocks, copy.blockSum, 0, blocks);
+            System.arraycopy(this.blockMinTime, skipBlocks, copy.blockMinTime, 0, blocks);
+            System.arraycopy(this.blockMaxTime, skipBlocks, copy.blockMaxTime, 0, blocks);
+            System.arraycopy(this.blockLastTime, skipBlocks, copy.blockLastTime, 0, blocks);
+            return copy;
+        }
+
+        long time(long index) {
+            return this.times[(int) ((index >>> CHUNK_SHIFT) - this.firstChunk)].get((int) (index & CHUNK_MASK));
+        }
+
+        double value(long index) {
+            return this.values[(int) ((index >>> CHUNK_SHIFT) - this.firstChunk)].get((int) (index & CHUNK_MASK));
+        }
+    }
+}
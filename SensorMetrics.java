@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ingest counters of one sensor. Samples are counted by the one thread
+ * that archives the sensor, so a single-writer counter published with
+ * lazySet is enough and costs no atomic instruction; alarms are counted
+ * in a LongAdder since any thread monitoring the sensor may raise them.
+ * Readers never block either. Reading a clock costs about as much as
+ * archiving a datapoint, so only every LATENCY_STRIDE-th sample of a
+ * sensor has its latency recorded; the percentiles are unaffected at the
+ * rates sensors run.
+ */
+public class SensorMetrics implements SensorMetricsMBean {
+    static final int LATENCY_STRIDE = 64;
+
+    private final String name;
+    private final SensorArchive archive;
+    private final AtomicLong samples = new AtomicLong();
+    private final LongAdder alarms = new LongAdder();
+    //samples left until the next timed one; only the archiving thread touches it
+    private int untilTimed = 1;
+
+    /**
+     *
+     * @param name name of the sensor
+     * @param archive archive the sensor's datapoints are stored in
+     */
+    public SensorMetrics(String name, SensorArchive archive) {
+        this.name = name;
+        this.archive = archive;
+    }
+
+    /**
+     * Counts an archived sample; called by the thread archiving the sensor.
+     *
+     * @return whether the latency of this sample is to be recorded
+     */
+    public boolean countSample() {
+        samples.lazySet(samples.get() + 1);
+        if (--untilTimed > 0) {
+            return false;
+        }
+        untilTimed = LATENCY_STRIDE;
+        return true;
+    }
+
+    /**
+     *
+     * @return whether the next countSample() will return true
+     */
+    public boolean isNextTimed() {
+        return untilTimed == 1;
+    }
+
+    public void countAlarm() {
+        alarms.increment();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    public long getAlarms() {
+        return alarms.sum();
+    }
+
+    /**
+     *
+     * @return number of raw datapoints currently held, after retention
+     */
+    public long getArchiveSize() {
+        return archive.size() - archive.firstIndex();
+    }
+}
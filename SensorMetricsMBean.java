@@ -0,0 +1,13 @@
+/**
+ * JMX view of the ingest counters of one sensor.
+ */
+public interface SensorMetricsMBean {
+
+    String getName();
+
+    long getSamples();
+
+    long getAlarms();
+
+    long getArchiveSize();
+}
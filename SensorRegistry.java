@@ -0,0 +1,278 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Every sensor of the installation, loaded from a config file instead of
+ * being hard-coded in the GUI.
+ *
+ * The file has one sensor per line with comma-separated fields
+ * {@code name, unit, min, max, canNegative, rate[, detectors]}; blank
+ * lines and lines starting with # are ignored. Sensors start in the OFF
+ * state. The optional detectors field lists anomaly detectors separated by
+ * spaces in the notation of AnomalyDetector.parse, e.g.
+ * {@code cusum:0.5:5 ewma:0.1:3}; createRule builds the sensor's alarm
+ * rule with fresh instances of them. The optional source field, after
+ * the detectors field (which may be left empty), connects the sensor to
+ * an external feed in the notation of DataSource.parse, e.g.
+ * {@code tcp:daq1:5000}; such a sensor is read by a FeedReader rather
+ * than simulated.
+ *
+ * A derived channel has an Expression over other sensors in place of the
+ * rate, after an = sign, e.g. {@code ratio, , 0, 10, false, = pressure / temperature};
+ * commas inside parentheses belong to the expression. It is neither
+ * simulated nor read from a feed but computed by the DerivedChannels
+ * that createDerivedChannels builds, and may have detectors but no
+ * source. Derived channels may read each other in any order, but not in
+ * a cycle.
+ */
+public class SensorRegistry {
+    private final List<Sensor> sensors = new ArrayList<Sensor>();
+    private final HashMap<String, Sensor> byName = new HashMap<String, Sensor>();
+    //anomaly detectors of each sensor in config notation
+    private final HashMap<String, String[]> detectors = new HashMap<String, String[]>();
+    //external feed of each sensor in config notation
+    private final HashMap<String, String> sources = new HashMap<String, String>();
+    //expression of each derived channel
+    private final HashMap<String, String> expressions = new HashMap<String, String>();
+    //names of the derived channels, each after the derived channels it reads
+    private final List<String> derivedOrder = new ArrayList<String>();
+
+    /**
+     *
+     * @param config path of the sensor config file
+     * @return registry holding the configured sensors in file order
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static SensorRegistry load(Path config) throws IOException {
+        SensorRegistry registry = new SensorRegistry();
+        HashMap<String, Integer> derivedLines = new HashMap<String, Integer>();
+        try (BufferedReader reader = Files.newBufferedReader(config, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    String[] fields = split(line);
+                    Sensor sensor = parse(fields);
+                    registry.add(sensor);
+                    if (fields[5].trim().startsWith("=")) {
+                        if (fields.length == 8 && !fields[7].isBlank()) {
+                            throw new IllegalArgumentException("a derived channel has no source");
+                        }
+                        String expression = fields[5].trim().substring(1).trim();
+                        //fail on a bad expression at load time rather than at evaluation
+                        Expression.compile(expression);
+                        registry.expressions.put(sensor.getName(), expression);
+                        derivedLines.put(sensor.getName(), lineNumber);
+                    }
+                    if (fields.length >= 7 && !fields[6].isBlank()) {
+                        String[] specs = fields[6].trim().split("\\s+");
+                        for (String spec : specs) {
+                            //fail on a bad detector at load time rather than at registration
+                            AnomalyDetector.parse(spec);
+                        }
+                        registry.detectors.put(sensor.getName(), specs);
+                    }
+                    if (fields.length == 8 && !fields[7].isBlank()) {
+                        //fail on a bad source at load time rather than when connecting
+                        DataSource.parse(fields[7]);
+                        registry.sources.put(sensor.getName(), fields[7].trim());
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(config + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        //inputs can only be resolved once every sensor is known
+        HashMap<String, Boolean> visited = new HashMap<String, Boolean>();
+        for (Sensor sensor : registry.sensors) {
+            if (registry.isDerived(sensor)) {
+                try {
+                    registry.order(sensor.getName(), visited, new ArrayList<String>());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(config + ":" + derivedLines.get(sensor.getName()) + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Appends a derived channel to derivedOrder after the derived channels
+     * it reads, depth first.
+     *
+     * @param name name of a derived channel
+     * @param visited false for channels being ordered, true for ordered ones
+     * @param path channels being ordered, outermost first
+     */
+    private void order(String name, HashMap<String, Boolean> visited, List<String> path) {
+        Boolean done = visited.get(name);
+        if (done != null) {
+            if (!done) {
+                path.add(name);
+                throw new IllegalArgumentException("derived channels in a cycle: " + String.join(" -> ", path.subList(path.indexOf(name), path.size())));
+            }
+            return;
+        }
+        visited.put(name, false);
+        path.add(name);
+        for (String input : Expression.compile(expressions.get(name)).getInputs()) {
+            if (!byName.containsKey(input)) {
+                throw new IllegalArgumentException(name + " reads unknown sensor " + input);
+            }
+            if (expressions.containsKey(input)) {
+                order(input, visited, path);
+            }
+        }
+        path.remove(path.size() - 1);
+        visited.put(name, true);
+        derivedOrder.add(name);
+    }
+
+    /**
+     * Splits a config line at the commas outside parentheses.
+     */
+    private static String[] split(String line) {
+        List<String> fields = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == ',' && depth == 0) {
+                fields.add(line.substring(start, i));
+                start = i + 1;
+            }
+        }
+        fields.add(line.substring(start));
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     *
+     * @param sensor sensor to add; names must be unique
+     */
+    public void add(Sensor sensor) {
+        if (byName.containsKey(sensor.getName())) {
+            throw new IllegalArgumentException("duplicate sensor " + sensor.getName());
+        }
+        sensors.add(sensor);
+        byName.put(sensor.getName(), sensor);
+    }
+
+    /**
+     *
+     * @return all sensors in the order they were configured
+     */
+    public List<Sensor> getSensors() {
+        return Collections.unmodifiableList(sensors);
+    }
+
+    /**
+     *
+     * @param name name of a sensor
+     * @return the sensor, or null if none has that name
+     */
+    public Sensor get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Builds the alarm rule of a sensor: its allowed range plus new
+     * instances of the anomaly detectors configured for it.
+     *
+     * @param sensor a sensor of this registry
+     * @return a rule to register the sensor with
+     */
+    public AlarmRule createRule(Sensor sensor) {
+        AlarmRule rule = new AlarmRule(sensor.getMin(), sensor.getMax());
+        for (String spec : detectors.getOrDefault(sensor.getName(), new String[0])) {
+            rule.addDetector(AnomalyDetector.parse(spec));
+        }
+        return rule;
+    }
+
+    /**
+     * Creates the source of a sensor that is read from an external feed.
+     *
+     * @param sensor a sensor of this registry
+     * @return a new, unopened source, or null if the sensor is simulated
+     */
+    public DataSource createSource(Sensor sensor) {
+        String spec = sources.get(sensor.getName());
+        return spec == null ? null : DataSource.parse(spec);
+    }
+
+    /**
+     *
+     * @param sensor a sensor of this registry
+     * @return whether the sensor is a derived channel, computed rather than simulated or read from a feed
+     */
+    public boolean isDerived(Sensor sensor) {
+        return expressions.containsKey(sensor.getName());
+    }
+
+    /**
+     * Builds the derived channels of the config with fresh expressions.
+     * Every sensor must already be registered with the service that
+     * archives them.
+     *
+     * @return the derived channels, or null if the config has none
+     */
+    public DerivedChannels createDerivedChannels() {
+        if (derivedOrder.isEmpty()) {
+            return null;
+        }
+        DerivedChannels derived = new DerivedChannels();
+        for (String name : derivedOrder) {
+            Expression expression = Expression.compile(expressions.get(name));
+            List<Sensor> inputs = new ArrayList<Sensor>();
+            for (String input : expression.getInputs()) {
+                inputs.add(byName.get(input));
+            }
+            derived.add(byName.get(name), expression, inputs);
+        }
+        return derived;
+    }
+
+    /**
+     *
+     * @return number of sensors
+     */
+    public int size() {
+        return sensors.size();
+    }
+
+    private static Sensor parse(String[] fields) {
+        if (fields.length < 6 || fields.length > 8) {
+            throw new IllegalArgumentException("expected name, unit, min, max, canNegative, rate or = expression[, detectors[, source]]");
+        }
+        String name = fields[0].trim();
+        String unit = fields[1].trim();
+        double min = Double.parseDouble(fields[2].trim());
+        double max = Double.parseDouble(fields[3].trim());
+        boolean canNegative = Boolean.parseBoolean(fields[4].trim());
+        //a derived channel has no rate of its own; it changes whenever its inputs do
+        double rate = fields[5].trim().startsWith("=") ? 0 : Double.parseDouble(fields[5].trim());
+        if (name.isEmpty() || !(min < max)) {
+            throw new IllegalArgumentException("sensor needs a name and min < max");
+        }
+        Sensor sensor = new Sensor(State.OFF, min, max, name, canNegative, rate);
+        sensor.setUnit(unit);
+        return sensor;
+    }
+}
@@ -1,21 +1,86 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.time.format.DateTimeFormatter;
-import java.time.format.FormatStyle;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 
 public class Service {
-    //archive consists of hashmap with 4 entries, one for each sensor
-    HashMap<String, List<Datapoint>> archive = new HashMap<String, List<Datapoint>>();
+    //archive consists of hashmap with one entry for each registered sensor
+    HashMap<String, SensorArchive> archive = new HashMap<String, SensorArchive>();
+
+    //running statistics of every registered sensor, updated with each archived datapoint
+    HashMap<String, StreamingStats> stats = new HashMap<String, StreamingStats>();
+
+    //ingest counters of every registered sensor, indexed by its alarm channel to spare a lookup per datapoint
+    private volatile SensorMetrics[] counters = new SensorMetrics[0];
+
+    private final boolean offHeap;
+
+    //compiled alarm rules of every registered sensor
+    private final AlarmEngine alarms = new AlarmEngine();
+
+    //rolls up and drops old datapoints; null while everything is kept
+    private volatile RetentionCompactor retention;
+
+    //durable log of every archived datapoint; null when running without one
+    private WriteAheadLog log;
+
+    //timestamps datapoints measured without an explicit time
+    private final SampleClock clock;
+
+    //latencies and counters, exposed over JMX and as a snapshot file
+    private final Metrics metrics = new Metrics();
 
     public Service() {
-        archive.put("temperature", new ArrayList<>());
-        archive.put("humidity", new ArrayList<>());
-        archive.put("radiation", new ArrayList<>());
-        archive.put("pressure", new ArrayList<>());
+        this(false);
+    }
+
+    /**
+     * 
+     * @param offHeap whether the archive chunks are kept in direct memory
+     */
+    public Service(boolean offHeap) {
+        this(offHeap, SampleClock.system());
+    }
+
+    /**
+     * 
+     * @param offHeap whether the archive chunks are kept in direct memory
+     * @param clock time source for measure(sensor, dataVal) and retention
+     */
+    public Service(boolean offHeap, SampleClock clock) {
+        this.offHeap = offHeap;
+        this.clock = clock;
+    }
+
+    /**
+     * Compiles the sensor's alarm rule; must be called before its first datapoint.
+     * 
+     * @param sensor sensor whose allowed range is monitored
+     */
+    public void register(Sensor sensor) {
+        register(sensor, new AlarmRule(sensor.getMin(), sensor.getMax()));
+    }
+
+    /**
+     * Same as register(sensor) with a custom alarm rule.
+     * 
+     * @param sensor sensor to monitor
+     * @param rule range, deadband, rate-of-change and debounce settings
+     */
+    public synchronized void register(Sensor sensor, AlarmRule rule) {
+        if (!archive.containsKey(sensor.getName())) {
+            archive.put(sensor.getName(), new SensorArchive(sensor.getName(), offHeap));
+            stats.put(sensor.getName(), new StreamingStats(sensor.getMin(), sensor.getMax()));
+            if (retention != null) {
+                retention.add(archive.get(sensor.getName()));
+            }
+        }
+        sensor.setChannel(alarms.addChannel(rule));
+        SensorMetrics[] grown = Arrays.copyOf(counters, sensor.getChannel() + 1);
+        grown[sensor.getChannel()] = metrics.register(sensor.getName(), archive.get(sensor.getName()));
+        counters = grown;
     }
 
     /**
@@ -24,36 +89,326 @@ public class Service {
      * 
      * @param sensor supplies the respective key for hashmap and range for alarm handling
      * @param dataVal must lie within the sensor's allowed range
-     * @return a String denoting whether dataVal is within the valid range
+     * @return whether dataVal is within the valid range
      */
-    public String measure(Sensor sensor, double dataVal) {
-        //archiving
-        Datapoint datapoint = new Datapoint(dataVal);
-        archive.get(sensor.getName()).add(datapoint);
+    public Alarm measure(Sensor sensor, double dataVal) {
+        return measure(sensor, dataVal, now());
+    }
 
-        //monitoring
-        if (dataVal < sensor.getMin()) {
-            return "too low";
-        } else if (dataVal > sensor.getMax()) {
-            return "too high";
+    /**
+     * Same as measure(sensor, dataVal) for a datapoint taken at a known time.
+     * 
+     * @param sensor supplies the respective key for hashmap and range for alarm handling
+     * @param dataVal must lie within the sensor's allowed range
+     * @param time epoch nanoseconds at which dataVal was measured
+     * @return whether dataVal is within the valid range
+     */
+    public Alarm measure(Sensor sensor, double dataVal, long time) {
+        boolean timed = counters[sensor.getChannel()].isNextTimed();
+        long start = timed ? System.nanoTime() : 0;
+        archive(sensor, dataVal, time);
+        log(sensor, dataVal, time);
+        Alarm alarm = monitor(sensor, dataVal, time);
+        if (timed) {
+            metrics.getMeasure().record(System.nanoTime() - start);
         }
-        return  "good";
+        return alarm;
+    }
+
+    /**
+     * Stores a datapoint in the sensor's archive and updates its statistics.
+     * Datapoints of a sensor must be archived from a single thread.
+     * 
+     * @param sensor supplies the respective key for hashmap
+     * @param dataVal the measured value
+     * @param time epoch nanoseconds at which dataVal was measured
+     */
+    public void archive(Sensor sensor, double dataVal, long time) {
+        archive.get(sensor.getName()).append(time, dataVal);
+        stats.get(sensor.getName()).add(dataVal);
+        if (counters[sensor.getChannel()].countSample()) {
+            metrics.getSampleToArchive().record(now() - time);
+        }
+    }
+
+    /**
+     * Running statistics of a sensor; safe to read from any thread while it is measuring.
+     * 
+     * @param sensorName name of the sensor
+     * @return mean, standard deviation, moving average, recent extremes and quantiles
+     */
+    public StreamingStats getStats(String sensorName) {
+        return stats.get(sensorName);
+    }
+
+    /**
+     * Appends a datapoint to the write-ahead log, if one is attached.
+     * 
+     * @param sensor sensor the datapoint belongs to
+     * @param dataVal the measured value
+     * @param time epoch nanoseconds at which dataVal was measured
+     */
+    public void log(Sensor sensor, double dataVal, long time) {
+        if (log != null) {
+            try {
+                log.append(sensor.getName(), time, dataVal);
+            } catch (IOException e) {
+                //keep measuring without durability rather than losing the live session
+                e.printStackTrace();
+                log = null;
+            }
+        }
+    }
+
+    /**
+     * Checks a datapoint against the sensor's alarm rule. Datapoints of a
+     * sensor must be monitored in order and from a single thread.
+     * 
+     * @param sensor registered sensor whose rule applies
+     * @param dataVal must lie within the sensor's allowed range
+     * @param time epoch nanoseconds at which dataVal was measured
+     * @return whether dataVal is within the valid range
+     */
+    public Alarm monitor(Sensor sensor, double dataVal, long time) {
+        Alarm alarm = alarms.evaluate(sensor.getChannel(), time, dataVal);
+        if (alarm != Alarm.GOOD) {
+            counters[sensor.getChannel()].countAlarm();
+            if (retention != null) {
+                retention.recordAlarm(sensor.getName(), time);
+            }
+        }
+        return alarm;
+    }
+
+    /**
+     * Checks a batch of datapoints, at most one per sensor, against the
+     * alarm rules; the same as monitoring each of them, but only the sensors
+     * that can be in alarm go through the full rule.
+     *
+     * @param sensors sensor of alarm channel ch at index ch
+     * @param times epoch nanoseconds of the datapoint of channel ch at index ch
+     * @param values datapoint of channel ch at index ch
+     * @param present one bit per channel, set where the batch has a datapoint
+     * @param raised receives one bit per channel, set where the datapoint is not GOOD
+     * @return number of channels in raised
+     */
+    public int monitorBatch(Sensor[] sensors, long[] times, double[] values, long[] present, long[] raised) {
+        int count = alarms.evaluateBatch(times, values, present, raised);
+        for (int word = 0; count > 0 && word < raised.length; word++) {
+            for (long bits = raised[word]; bits != 0; bits &= bits - 1) {
+                int ch = (word << 6) + Long.numberOfTrailingZeros(bits);
+                counters[ch].countAlarm();
+                if (retention != null) {
+                    retention.recordAlarm(sensors[ch].getName(), times[ch]);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param sensor registered sensor
+     * @return the sensor's alarm state after its last monitored datapoint
+     */
+    public Alarm getAlarmState(Sensor sensor) {
+        return alarms.getState(sensor.getChannel());
+    }
+
+    /**
+     *
+     * @return latency histograms and counters of this service
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Keeps raw datapoints only for a while and 1 second and 1 minute
+     * rollups of them for longer, so memory stops growing however long the
+     * service runs. Compaction runs in the background from now on.
+     * 
+     * @param rawRetentionNanos how long raw datapoints are kept
+     * @param secondRollups number of 1 second rollups kept per sensor
+     * @param minuteRollups number of 1 minute rollups kept per sensor
+     */
+    public synchronized void enableRetention(long rawRetentionNanos, int secondRollups, int minuteRollups) {
+        startRetention(new RetentionCompactor(rawRetentionNanos, secondRollups, minuteRollups, this::now));
+    }
+
+    /**
+     * Same as enableRetention(rawRetentionNanos, secondRollups, minuteRollups),
+     * but raw datapoints leaving memory are spilled to a file per sensor
+     * first, so saveToFile still writes the whole session along with the
+     * rollups. The spill files start empty.
+     * 
+     * @param rawRetentionNanos how long raw datapoints are kept in memory
+     * @param secondRollups number of 1 second rollups kept per sensor
+     * @param minuteRollups number of 1 minute rollups kept per sensor
+     * @param spillDirectory directory of the spill files, created if missing
+     * @throws IOException if the directory cannot be created
+     */
+    public synchronized void enableRetention(long rawRetentionNanos, int secondRollups, int minuteRollups,
+            Path spillDirectory) throws IOException {
+        Files.createDirectories(spillDirectory);
+        startRetention(new RetentionCompactor(rawRetentionNanos, secondRollups, minuteRollups, this::now, spillDirectory));
+    }
+
+    private void startRetention(RetentionCompactor compactor) {
+        if (retention != null) {
+            throw new IllegalStateException("retention is already enabled");
+        }
+        for (SensorArchive sensorArchive : archive.values()) {
+            compactor.add(sensorArchive);
+        }
+        compactor.start();
+        retention = compactor;
+    }
+
+    /**
+     * 
+     * @param sensorName name of the sensor
+     * @return 1 second rollups of the sensor, or null without retention
+     */
+    public RollupRing getSecondRollups(String sensorName) {
+        return retention == null ? null : retention.getSecondRollups(sensorName);
+    }
+
+    /**
+     * 
+     * @param sensorName name of the sensor
+     * @return 1 minute rollups of the sensor, or null without retention
+     */
+    public RollupRing getMinuteRollups(String sensorName) {
+        return retention == null ? null : retention.getMinuteRollups(sensorName);
+    }
+
+    /**
+     * Summarizes a sensor's archived datapoints in [from, to) into buckets.
+     * 
+     * @param sensorName name of the sensor
+     * @param from epoch nanoseconds where the range starts
+     * @param to epoch nanoseconds where the range ends
+     * @param maxPoints number of buckets
+     * @return min, max, average and count of every bucket
+     */
+    public QueryResult query(String sensorName, long from, long to, int maxPoints) {
+        return archive.get(sensorName).query(from, to, maxPoints);
+    }
+
+    /**
+     * Picks at most maxPoints representative datapoints of a sensor in [from, to) for plotting.
+     * 
+     * @param sensorName name of the sensor
+     * @param from epoch nanoseconds where the range starts
+     * @param to epoch nanoseconds where the range ends
+     * @param maxPoints number of datapoints to return
+     * @return the chosen datapoints in chronological order
+     */
+    public SensorArchive downsample(String sensorName, long from, long to, int maxPoints) {
+        return archive.get(sensorName).downsample(from, to, maxPoints);
+    }
+
+    /**
+     * Rebuilds the archive from the datapoints of earlier sessions and
+     * appends every datapoint measured from now on to the log. Sensors must
+     * be registered first; datapoints of unknown sensors are skipped.
+     * 
+     * @param log write-ahead log to replay and append to
+     * @throws IOException
+     */
+    public void attachLog(WriteAheadLog log) throws IOException {
+        log.replay((channel, timeNanos, value) -> {
+            SensorArchive sensorArchive = archive.get(channel);
+            if (sensorArchive != null) {
+                sensorArchive.append(timeNanos, value);
+            }
+        });
+        this.log = log;
+    }
+
+    /**
+     * Stops compaction and metric snapshots, then flushes and releases the write-ahead log, if any.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (retention != null) {
+            retention.shutdown();
+        }
+        metrics.shutdown();
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * 
+     * @return current time in epoch nanoseconds
+     */
+    long now() {
+        return clock.now();
     }
 
     /**
      * Upon exiting the program, each sensor will produce a file that
-     * contains its respective datapoints in chronological order.
+     * contains its respective datapoints in chronological order (those still
+     * held or spilled, when retention is enabled, and the rollups), along with
+     * a compressed binary copy (.ts) that keeps full timestamps.
      * 
      * @throws IOException
      */
     public void saveToFile() throws IOException {
-        for (String sensorName : archive.keySet()) {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(sensorName + ".txt"));
-            for (Datapoint datapoint : archive.get(sensorName)) {
-                writer.write(datapoint.value + " at " + datapoint.time.format(DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM)));
-                writer.newLine();
+        saveToFile(Paths.get(""));
+    }
+
+    /**
+     * Same as saveToFile() into another directory.
+     * 
+     * @param directory directory the files are written to
+     * @throws IOException
+     */
+    public void saveToFile(Path directory) throws IOException {
+        saveToFile(directory, ArchiveExporter.Format.TEXT);
+    }
+
+    /**
+     * Same as saveToFile(directory) with a choice of layout for the readable
+     * files; all sensors are written at the same time. Once they are
+     * written, the segments of the write-ahead log holding what was
+     * archived before the save are deleted, but only if the files cover
+     * all of it: once retention has dropped raw datapoints without spilling
+     * them, the log is the only copy of them and is kept.
+     * 
+     * @param directory directory the files are written to
+     * @param format original text layout (.txt) or CSV (.csv)
+     * @throws IOException
+     */
+    public void saveToFile(Path directory, ArchiveExporter.Format format) throws IOException {
+        WriteAheadLog log = this.log;
+        //datapoints logged while the files are written go to a segment after the checkpoint and are kept
+        int checkpoint = log != null ? log.checkpoint() : 0;
+        new ArchiveExporter(format, Runtime.getRuntime().availableProcessors()).export(archive.values(), retention, directory);
+        if (log != null && exportedAll()) {
+            log.deleteBefore(checkpoint);
+        }
+    }
+
+    /**
+     * 
+     * @return whether every archive still holds or has spilled all its datapoints, so an export wrote them all
+     */
+    private boolean exportedAll() {
+        RetentionCompactor retention = this.retention;
+        if (retention != null && retention.isSpilling()) {
+            return true;
+        }
+        for (SensorArchive sensorArchive : archive.values()) {
+            //dropping is monotonic, so anything dropped before the export still shows now
+            if (sensorArchive.firstIndex() > 0) {
+                return false;
             }
-            writer.close();
         }
+        return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams the datapoints of one collector shard to an Aggregator.
+ *
+ * The uplink is a pipeline consumer: the consumer thread appends every
+ * datapoint to a local batch and hands it over once per pipeline batch. A
+ * sender thread ships what was handed over every FLUSH_NANOS as one
+ * compact binary batch, big-endian:
+ * {int count, long watermark, count * {int channel, long epoch nanoseconds, double value}},
+ * where channel is the sensor's position in the shared config, so every
+ * shard and the aggregator agree on it. The watermark promises that no
+ * later batch of this shard holds a datapoint older than it; a batch with
+ * the watermark Long.MAX_VALUE ends the stream. The connection starts
+ * with {int MAGIC, int shard, int channels}.
+ *
+ * The watermark follows the uplink consumer, not the clock. At the end of
+ * a pipeline batch the consumer notes the time and how many datapoints
+ * producers have claimed by then; once it has handed that many over,
+ * everything published before that time is on its way, and the watermark
+ * is that time less MAX_LATENESS_NANOS for datapoints published after
+ * they were taken. While the consumer has nothing left to read, the
+ * current time is used instead. So while the datapoints back up in the
+ * ring, the watermark waits for them instead of passing them.
+ *
+ * If the aggregator cannot keep up, the consumer waits for the sender, so
+ * the pipeline applies its own backpressure policy rather than the merged
+ * view silently losing datapoints. A connection that fails is retried
+ * every RETRY_NANOS until the uplink is shut down; meanwhile the sender
+ * drops what is handed over, so ingest is not held up by an aggregator
+ * that is gone, and reports how many datapoints were lost once it is back.
+ */
+public class ShardUplink implements SampleRingBuffer.Handler {
+    static final int MAGIC = 0x50414331;
+    static final int HEADER_BYTES = 12;
+    static final int SAMPLE_BYTES = 20;
+    static final long FLUSH_NANOS = 10_000_000L;
+    //datapoints are published at most this long after they were taken
+    static final long MAX_LATENESS_NANOS = 250_000_000L;
+    static final int BATCH_BYTES = 1 << 16;
+    static final int MAX_PENDING_BYTES = 1 << 22;
+    //how long start() keeps trying to reach the aggregator
+    static final long CONNECT_TIMEOUT_NANOS = 30_000_000_000L;
+    static final long RETRY_NANOS = 1_000_000_000L;
+
+    private final int shard;
+    private final int channels;
+    private final InetSocketAddress aggregator;
+    private final SampleClock clock;
+    //position in the shared config of every local alarm channel
+    private final int[] globalChannel;
+
+    //filled by the uplink consumer thread only
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+    //datapoints read so far and when the current pipeline batch started
+    private long read;
+    private long batchStart;
+    //once checkpointCount datapoints have been handed over, everything published before checkpointTime has been
+    private long checkpointTime;
+    private long checkpointCount;
+    private SampleRingBuffer.Consumer consumer;
+
+    //handed over to the sender thread; guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(MAX_PENDING_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocate(MAX_PENDING_BYTES);
+    //every datapoint published before this clock time has been handed over
+    private long drained;
+    private boolean finished;
+
+    private SocketChannel channel;
+    private Thread sender;
+
+    /**
+     *
+     * @param allSensors every sensor of the shared config, in config order
+     * @param shard number of this shard
+     * @param aggregator address of the aggregator
+     * @param clock clock the watermarks are taken from, as used to timestamp the datapoints
+     */
+    public ShardUplink(List<Sensor> allSensors, int shard, InetSocketAddress aggregator, SampleClock clock) {
+        this.shard = shard;
+        this.channels = allSensors.size();
+        this.aggregator = aggregator;
+        this.clock = clock;
+        int localChannels = 0;
+        for (Sensor sensor : allSensors) {
+            localChannels = Math.max(localChannels, sensor.getChannel() + 1);
+        }
+        this.globalChannel = new int[localChannels];
+        Arrays.fill(globalChannel, -1);
+        for (int i = 0; i < allSensors.size(); i++) {
+            if (allSensors.get(i).getChannel() >= 0) {
+                globalChannel[allSensors.get(i).getChannel()] = i;
+            }
+        }
+    }
+
+    /**
+     * Adds the uplink to the pipeline as its "uplink" consumer; must be
+     * called before start.
+     *
+     * @param pipeline pipeline of the shard
+     */
+    public void attach(SamplePipeline pipeline) {
+        synchronized (this) {
+            drained = clock.now();
+        }
+        checkpointTime = clock.now();
+        consumer = pipeline.addConsumer("uplink", this);
+    }
+
+    public void onSample(Sensor sensor, long timeNanos, double value, boolean endOfBatch) {
+        if (batch.remaining() < SAMPLE_BYTES) {
+            handOver(false);
+        }
+        batch.putInt(globalChannel[sensor.getChannel()]).putLong(timeNanos).putDouble(value);
+        read++;
+        if (endOfBatch) {
+            handOver(true);
+        }
+    }
+
+    /**
+     *
+     * @param endOfBatch whether the batch ends a pipeline batch, so everything the consumer read has been handed over
+     */
+    private void handOver(boolean endOfBatch) {
+        batch.flip();
+        synchronized (this) {
+            while (pending.remaining() < batch.remaining() && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (pending.remaining() >= batch.remaining()) {
+                pending.put(batch);
+            }
+            if (endOfBatch && read >= checkpointCount) {
+                drained = checkpointTime;
+            }
+        }
+        batch.clear();
+        if (endOfBatch) {
+            if (read >= checkpointCount) {
+                checkpointTime = clock.now();
+                //the lag still counts this pipeline batch, so this is every datapoint claimed by checkpointTime
+                checkpointCount = batchStart + consumer.getLag();
+            }
+            batchStart = read;
+        }
+    }
+
+    /**
+     * Connects to the aggregator, retrying while it starts up, and starts
+     * sending; must be called before the first datapoint is published.
+     *
+     * @throws IOException if the aggregator cannot be reached
+     */
+    public void start() throws IOException {
+        if (consumer == null) {
+            throw new IllegalStateException("the uplink is not attached to a pipeline");
+        }
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+        while (true) {
+            try {
+                connect();
+                break;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+            }
+        }
+        sender = new Thread(this::send, "uplink");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Sends what is left and ends the stream. The pipeline must be shut
+     * down first, so every datapoint has reached the uplink.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+        if (sender != null) {
+            LockSupport.unpark(sender);
+            try {
+                sender.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void send() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long retryAt = 0;
+        long lost = 0;
+        boolean last = false;
+        while (!last) {
+            LockSupport.parkNanos(FLUSH_NANOS);
+            ByteBuffer taken;
+            long watermark;
+            synchronized (this) {
+                last = finished;
+                long now = clock.now();
+                //with nothing left to read, everything published before now is in pending; the consumer holds the lock to add to it
+                long handedOver = consumer.getLag() == 0 ? now : drained;
+                watermark = last ? Long.MAX_VALUE : handedOver - MAX_LATENESS_NANOS;
+                taken = pending;
+                pending = spare;
+                notifyAll();
+            }
+            spare = taken;
+            taken.flip();
+            if (channel == null && !last && System.nanoTime() >= retryAt) {
+                try {
+                    connect();
+                    System.err.println("uplink to " + aggregator + " reconnected, " + lost + " datapoints lost");
+                    lost = 0;
+                } catch (IOException e) {
+                    retryAt = System.nanoTime() + RETRY_NANOS;
+                }
+            }
+            if (channel != null) {
+                try {
+                    header.clear();
+                    header.putInt(taken.remaining() / SAMPLE_BYTES).putLong(watermark);
+                    header.flip();
+                    write(header);
+                    write(taken);
+                } catch (IOException e) {
+                    //report once per outage rather than on every retry
+                    System.err.println("uplink to " + aggregator + " lost: " + e.getMessage());
+                    closeChannel();
+                    retryAt = System.nanoTime() + RETRY_NANOS;
+                }
+            }
+            if (channel == null) {
+                lost += taken.remaining() / SAMPLE_BYTES;
+            }
+            taken.clear();
+        }
+        closeChannel();
+    }
+
+    /**
+     * Opens a connection to the aggregator and introduces the shard.
+     *
+     * @throws IOException if the aggregator cannot be reached
+     */
+    private void connect() throws IOException {
+        channel = SocketChannel.open(aggregator);
+        ByteBuffer hello = ByteBuffer.allocate(12).putInt(MAGIC).putInt(shard).putInt(channels);
+        hello.flip();
+        try {
+            write(hello);
+        } catch (IOException e) {
+            closeChannel();
+            throw e;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
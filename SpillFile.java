@@ -0,0 +1,115 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Raw datapoints of one sensor that retention has released from memory,
+ * so an export can still write the whole session.
+ *
+ * The file holds 16 byte records {long epoch nanoseconds, double value} in
+ * archive order and starts empty for every session. The compactor appends
+ * the datapoints of the archive up to the index it is about to trim to;
+ * the archive then only has to be exported from getArchiveIndex() on.
+ */
+public class SpillFile implements Closeable {
+    static final int RECORD_BYTES = 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    //archive index of the next datapoint to spill
+    private volatile long archiveIndex;
+    private volatile long size;
+
+    /**
+     *
+     * @param file file to create or empty
+     * @param firstIndex archive index of the first datapoint to spill
+     * @throws IOException
+     */
+    public SpillFile(Path file, long firstIndex) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.archiveIndex = firstIndex;
+    }
+
+    /**
+     * Appends the datapoints of the archive before index that are not in
+     * the file yet; they must still be held by the archive.
+     *
+     * @param archive archive of the sensor
+     * @param index archive index the datapoints are spilled up to
+     * @throws IOException
+     */
+    public void spill(SensorArchive archive, long index) throws IOException {
+        long i = this.archiveIndex;
+        long written = this.size;
+        this.buffer.clear();
+        while (i < index) {
+            this.buffer.putLong(archive.getTime(i)).putDouble(archive.getValue(i));
+            i++;
+            if (!this.buffer.hasRemaining() || i == index) {
+                this.buffer.flip();
+                long position = written * RECORD_BYTES;
+                written += this.buffer.remaining() / RECORD_BYTES;
+                while (this.buffer.hasRemaining()) {
+                    position += this.channel.write(this.buffer, position);
+                }
+                this.buffer.clear();
+            }
+        }
+        //the records are written before they are counted
+        this.size = written;
+        this.archiveIndex = Math.max(this.archiveIndex, index);
+    }
+
+    /**
+     *
+     * @return archive index of the first datapoint not in the file
+     */
+    public long getArchiveIndex() {
+        return this.archiveIndex;
+    }
+
+    /**
+     *
+     * @return number of datapoints in the file
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Reads consecutive datapoints of the file.
+     *
+     * @param from position of the first datapoint to read
+     * @param times receives the epoch nanoseconds
+     * @param values receives the values
+     * @return number of datapoints read, at most the length of the arrays
+     * @throws IOException
+     */
+    public int read(long from, long[] times, double[] values) throws IOException {
+        int count = (int) Math.max(0, Math.min(times.length, this.size - from));
+        ByteBuffer records = ByteBuffer.allocate(count * RECORD_BYTES);
+        long position = from * RECORD_BYTES;
+        while (records.hasRemaining()) {
+            int read = this.channel.read(records, position + records.position());
+            if (read < 0) {
+                throw new IOException("spill file ends early");
+            }
+        }
+        records.flip();
+        for (int i = 0; i < count; i++) {
+            times[i] = records.getLong();
+            values[i] = records.getDouble();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,347 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * Running statistics of one sensor, updated in O(1) per datapoint without
+ * allocating: Welford mean and variance over all datapoints, an
+ * exponentially weighted moving average, the minimum and maximum of the
+ * last datapoints kept in monotonic deques, and a fixed-bin histogram for
+ * quantiles.
+ *
+ * The histogram spans the sensor's allowed range widened by the same width
+ * on either side, with one extra bin below and above for anything further
+ * out, so quantiles are accurate to a fraction of a bin inside that span.
+ * Histograms with equal bounds can be merged, for example to combine
+ * shards or sessions.
+ *
+ * One thread adds datapoints. Readers never block it: the writer bumps a
+ * sequence number around every update and readers retry until they saw a
+ * stable one, like a seqlock.
+ */
+public class StreamingStats {
+    static final int DEFAULT_WINDOW = 1024;
+    static final double DEFAULT_ALPHA = 0.05;
+    static final int DEFAULT_BINS = 1024;
+
+    //odd while an update is in progress
+    private volatile long sequence;
+
+    //Welford accumulators
+    private long count;
+    private double mean;
+    private double m2;
+
+    private final double alpha;
+    private double ewma;
+
+    //monotonic deques over the last window datapoints, as rings of (index, value)
+    private final int window;
+    private final long[] minIndex;
+    private final double[] minValue;
+    private int minHead;
+    private int minSize;
+    private final long[] maxIndex;
+    private final double[] maxValue;
+    private int maxHead;
+    private int maxSize;
+    //datapoints added here, unlike count not raised by merge
+    private long added;
+
+    //bin 0 and the last bin collect everything outside [low, high)
+    private final double low;
+    private final double high;
+    private final double binWidth;
+    private final long[] bins;
+    private double smallest = Double.POSITIVE_INFINITY;
+    private double largest = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Statistics with the default window, smoothing and histogram resolution.
+     *
+     * @param min lower end of the sensor's allowed range
+     * @param max upper end of the sensor's allowed range
+     */
+    public StreamingStats(double min, double max) {
+        this(min, max, DEFAULT_WINDOW, DEFAULT_ALPHA, DEFAULT_BINS);
+    }
+
+    /**
+     *
+     * @param min lower end of the sensor's allowed range
+     * @param max upper end of the sensor's allowed range
+     * @param window number of recent datapoints the sliding minimum and maximum cover
+     * @param alpha weight of the newest datapoint in the moving average, in (0, 1]
+     * @param bins number of histogram bins across the widened range
+     */
+    public StreamingStats(double min, double max, int window, double alpha, int bins) {
+        if (window < 1 || !(alpha > 0 && alpha <= 1) || bins < 1 || !(max > min)) {
+            throw new IllegalArgumentException("window " + window + ", alpha " + alpha + ", bins " + bins
+                    + ", range " + min + " to " + max);
+        }
+        this.window = window;
+        this.alpha = alpha;
+        this.minIndex = new long[window];
+        this.minValue = new double[window];
+        this.maxIndex = new long[window];
+        this.maxValue = new double[window];
+        double span = max - min;
+        this.low = min - span;
+        this.high = max + span;
+        this.binWidth = (this.high - this.low) / bins;
+        this.bins = new long[bins + 2];
+    }
+
+    /**
+     * Folds in the next datapoint. Must always be called from the same thread.
+     *
+     * @param value the measured value
+     */
+    public void add(double value) {
+        long seq = this.sequence;
+        this.sequence = seq + 1;
+        //keep the updates below from moving above the odd sequence number
+        VarHandle.storeStoreFence();
+
+        long n = this.count;
+        this.count = n + 1;
+        double delta = value - this.mean;
+        this.mean += delta / (n + 1);
+        this.m2 += delta * (value - this.mean);
+        this.ewma = n == 0 ? value : this.ewma + this.alpha * (value - this.ewma);
+        long index = this.added++;
+
+        //drop the entry that left the window, then the ones the new datapoint dominates
+        if (this.minSize > 0 && this.minIndex[this.minHead] <= index - this.window) {
+            this.minHead = slot(this.minHead, 1);
+            this.minSize--;
+        }
+        while (this.minSize > 0 && this.minValue[slot(this.minHead, this.minSize - 1)] >= value) {
+            this.minSize--;
+        }
+        int tail = slot(this.minHead, this.minSize++);
+        this.minIndex[tail] = index;
+        this.minValue[tail] = value;
+        if (this.maxSize > 0 && this.maxIndex[this.maxHead] <= index - this.window) {
+            this.maxHead = slot(this.maxHead, 1);
+            this.maxSize--;
+        }
+        while (this.maxSize > 0 && this.maxValue[slot(this.maxHead, this.maxSize - 1)] <= value) {
+            this.maxSize--;
+        }
+        tail = slot(this.maxHead, this.maxSize++);
+        this.maxIndex[tail] = index;
+        this.maxValue[tail] = value;
+
+        this.bins[bin(value)]++;
+        if (value < this.smallest) {
+            this.smallest = value;
+        }
+        if (value > this.largest) {
+            this.largest = value;
+        }
+
+        this.sequence = seq + 2;
+    }
+
+    /**
+     * Adds the histogram and all-time totals of other into this one; the
+     * moving average and sliding window stay this sensor's own. Must be
+     * called from the thread that adds datapoints.
+     *
+     * @param other statistics built with the same range and number of bins
+     */
+    public void merge(StreamingStats other) {
+        if (other.bins.length != this.bins.length || other.low != this.low || other.high != this.high) {
+            throw new IllegalArgumentException("histograms of different bounds cannot be merged");
+        }
+        long[] otherBins = new long[other.bins.length];
+        double[] otherTotals = new double[4];
+        long otherCount;
+        long seq;
+        do {
+            seq = other.beginRead();
+            otherCount = other.count;
+            otherTotals[0] = other.mean;
+            otherTotals[1] = other.m2;
+            otherTotals[2] = other.smallest;
+            otherTotals[3] = other.largest;
+            System.arraycopy(other.bins, 0, otherBins, 0, otherBins.length);
+        } while (!other.validate(seq));
+        if (otherCount == 0) {
+            return;
+        }
+
+        long seqThis = this.sequence;
+        this.sequence = seqThis + 1;
+        VarHandle.storeStoreFence();
+        //Chan et al. combination of two Welford accumulators
+        long n = this.count + otherCount;
+        double delta = otherTotals[0] - this.mean;
+        this.m2 += otherTotals[1] + delta * delta * this.count * otherCount / n;
+        this.mean += delta * otherCount / n;
+        this.count = n;
+        for (int i = 0; i < this.bins.length; i++) {
+            this.bins[i] += otherBins[i];
+        }
+        this.smallest = Math.min(this.smallest, otherTotals[2]);
+        this.largest = Math.max(this.largest, otherTotals[3]);
+        this.sequence = seqThis + 2;
+    }
+
+    /**
+     *
+     * @return number of datapoints seen
+     */
+    public long getCount() {
+        long seq;
+        long result;
+        do {
+            seq = beginRead();
+            result = this.count;
+        } while (!validate(seq));
+        return result;
+    }
+
+    /**
+     *
+     * @return mean of all datapoints, NaN before the first
+     */
+    public double getMean() {
+        long seq;
+        double result;
+        do {
+            seq = beginRead();
+            result = this.count == 0 ? Double.NaN : this.mean;
+        } while (!validate(seq));
+        return result;
+    }
+
+    /**
+     *
+     * @return sample standard deviation of all datapoints, NaN before the second
+     */
+    public double getStdDev() {
+        long seq;
+        double result;
+        do {
+            seq = beginRead();
+            result = this.count < 2 ? Double.NaN : Math.sqrt(this.m2 / (this.count - 1));
+        } while (!validate(seq));
+        return result;
+    }
+
+    /**
+     *
+     * @return exponentially weighted moving average, NaN before the first datapoint
+     */
+    public double getEwma() {
+        long seq;
+        double result;
+        do {
+            seq = beginRead();
+            result = this.count == 0 ? Double.NaN : this.ewma;
+        } while (!validate(seq));
+        return result;
+    }
+
+    /**
+     *
+     * @return minimum of the last window datapoints, NaN before the first
+     */
+    public double getWindowMin() {
+        long seq;
+        double result;
+        do {
+            seq = beginRead();
+            result = this.minSize == 0 ? Double.NaN : this.minValue[this.minHead];
+        } while (!validate(seq));
+        return result;
+    }
+
+    /**
+     *
+     * @return maximum of the last window datapoints, NaN before the first
+     */
+    public double getWindowMax() {
+        long seq;
+        double result;
+        do {
+            seq = beginRead();
+            result = this.maxSize == 0 ? Double.NaN : this.maxValue[this.maxHead];
+        } while (!validate(seq));
+        return result;
+    }
+
+    /**
+     * Estimates a quantile of all datapoints from the histogram, interpolating
+     * inside the bin it falls in; outside the histogram span the smallest or
+     * largest datapoint is returned.
+     *
+     * @param q quantile between 0 and 1, e.g. 0.99
+     * @return the estimate, NaN before the first datapoint
+     */
+    public double getQuantile(double q) {
+        long seq;
+        double result;
+        do {
+            seq = beginRead();
+            result = quantile(q);
+        } while (!validate(seq));
+        return result;
+    }
+
+    private double quantile(double q) {
+        long n = this.count;
+        if (n == 0) {
+            return Double.NaN;
+        }
+        //rank of the wanted datapoint, counted from 1
+        double rank = Math.max(1, Math.min(n, Math.ceil(q * n)));
+        long seen = 0;
+        for (int i = 0; i < this.bins.length; i++) {
+            long inBin = this.bins[i];
+            if (seen + inBin >= rank) {
+                if (i == 0) {
+                    return this.smallest;
+                }
+                if (i == this.bins.length - 1) {
+                    return this.largest;
+                }
+                double binLow = this.low + (i - 1) * this.binWidth;
+                double estimate = binLow + this.binWidth * (rank - seen - 0.5) / inBin;
+                return Math.max(this.smallest, Math.min(this.largest, estimate));
+            }
+            seen += inBin;
+        }
+        return this.largest;
+    }
+
+    private int bin(double value) {
+        if (!(value >= this.low)) {
+            //NaN lands here as well
+            return 0;
+        }
+        if (value >= this.high) {
+            return this.bins.length - 1;
+        }
+        return Math.min(this.bins.length - 2, 1 + (int) ((value - this.low) / this.binWidth));
+    }
+
+    private int slot(int head, int offset) {
+        int i = head + offset;
+        return i >= this.window ? i - this.window : i;
+    }
+
+    private long beginRead() {
+        long seq;
+        while (((seq = this.sequence) & 1) != 0) {
+            Thread.onSpinWait();
+        }
+        return seq;
+    }
+
+    private boolean validate(long seq) {
+        //the plain reads above must not move below the second sequence read
+        VarHandle.loadLoadFence();
+        return this.sequence == seq;
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to the TCP server of an instrument and reads its stream of
+ * datapoints. The connection is opened without blocking, so an instrument
+ * that is slow to answer holds up no other feed.
+ */
+public class TcpSource implements DataSource {
+    private final InetSocketAddress remote;
+    private final Format format;
+    private SocketChannel channel;
+
+    /**
+     *
+     * @param remote address of the instrument's server
+     * @param format how the datapoints are encoded
+     */
+    public TcpSource(InetSocketAddress remote, Format format) {
+        this.remote = remote;
+        this.format = format;
+    }
+
+    public InetSocketAddress getAddress() {
+        return remote;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public boolean isSelectable() {
+        return true;
+    }
+
+    public SelectableChannel open() throws IOException {
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(remote);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    public int read(ByteBuffer buffer) throws IOException {
+        return channel.read(buffer);
+    }
+
+    public boolean isMessageBased() {
+        return false;
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "tcp " + remote;
+    }
+}
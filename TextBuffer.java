@@ -0,0 +1,108 @@
+/**
+ * Reusable character buffer for text that changes every frame, so values
+ * can be formatted without creating a String each time.
+ */
+public class TextBuffer {
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private char[] chars;
+    private int length;
+
+    public TextBuffer(int capacity) {
+        this.chars = new char[capacity];
+    }
+
+    /**
+     *
+     * @return the characters; only the first length() are valid
+     */
+    public char[] getChars() {
+        return this.chars;
+    }
+
+    /**
+     *
+     * @return number of valid characters
+     */
+    public int length() {
+        return this.length;
+    }
+
+    public void clear() {
+        this.length = 0;
+    }
+
+    /**
+     *
+     * @param other buffer whose text replaces this one's
+     */
+    public void copyFrom(TextBuffer other) {
+        this.length = 0;
+        ensureCapacity(other.length);
+        System.arraycopy(other.chars, 0, this.chars, 0, other.length);
+        this.length = other.length;
+    }
+
+    public void append(char c) {
+        ensureCapacity(this.length + 1);
+        this.chars[this.length++] = c;
+    }
+
+    public void append(String text) {
+        ensureCapacity(this.length + text.length());
+        text.getChars(0, text.length(), this.chars, this.length);
+        this.length += text.length();
+    }
+
+    /**
+     * Appends a value with a fixed number of decimals, like String.format("%.3f")
+     * for the values sensors produce, without allocating.
+     *
+     * @param value value to append
+     * @param decimals number of digits after the decimal point, at most 6
+     */
+    public void appendFixed(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e12) {
+            //rare enough that the allocation does not matter
+            append(Double.toString(value));
+            return;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        appendDigits(scaled / scale, 1);
+        if (decimals > 0) {
+            append('.');
+            appendDigits(scaled % scale, decimals);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.chars, 0, this.length);
+    }
+
+    private void appendDigits(long number, int minDigits) {
+        int digits = 1;
+        for (long rest = number / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        ensureCapacity(this.length + digits);
+        for (int i = this.length + digits - 1; i >= this.length; i--) {
+            this.chars[i] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        this.length += digits;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.chars.length) {
+            char[] bigger = new char[Math.max(capacity, this.chars.length * 2)];
+            System.arraycopy(this.chars, 0, bigger, 0, this.length);
+            this.chars = bigger;
+        }
+    }
+}
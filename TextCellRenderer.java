@@ -0,0 +1,73 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import javax.swing.JComponent;
+import javax.swing.JTable;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Paints table cells straight from TextBuffers (or Strings) so the
+ * dashboard never converts its formatted values into new Strings.
+ */
+public class TextCellRenderer extends JComponent implements TableCellRenderer {
+    private static final Color ALERT_COLOR = new Color(160, 20, 20);
+    private static final int PADDING = 4;
+
+    private Object value;
+    private Color background;
+    private Color foreground;
+
+    public TextCellRenderer() {
+        setOpaque(true);
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+            boolean hasFocus, int row, int column) {
+        this.value = value;
+        this.background = isSelected ? table.getSelectionBackground() : table.getBackground();
+        if (isSelected) {
+            this.foreground = table.getSelectionForeground();
+        } else if (column == DashboardModel.ALERT) {
+            this.foreground = ALERT_COLOR;
+        } else {
+            this.foreground = table.getForeground();
+        }
+        setFont(table.getFont());
+        return this;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(background);
+        g.fillRect(0, 0, getWidth(), getHeight());
+        g.setColor(foreground);
+        g.setFont(getFont());
+        FontMetrics metrics = g.getFontMetrics();
+        int baseline = (getHeight() - metrics.getHeight()) / 2 + metrics.getAscent();
+        if (value instanceof TextBuffer) {
+            TextBuffer text = (TextBuffer) value;
+            g.drawChars(text.getChars(), 0, text.length(), PADDING, baseline);
+        } else if (value != null) {
+            g.drawString(value.toString(), PADDING, baseline);
+        }
+    }
+
+    //the renderer is only stamped, never laid out; skip the bookkeeping JComponent does
+    @Override
+    public void invalidate() {
+    }
+
+    @Override
+    public void validate() {
+    }
+
+    @Override
+    public void revalidate() {
+    }
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+    }
+}
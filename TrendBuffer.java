@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+/**
+ * Bounded history of one sensor for trend charts: a ring of fixed-width
+ * time buckets, each holding the minimum and maximum seen in it.
+ *
+ * Every sample updates a single bucket, so memory and drawing cost depend
+ * only on the number of buckets, never on the sample rate or on how long
+ * the sensor has been running. One thread adds samples; any thread may
+ * copy the buckets out. A reader racing the writer can see the bucket
+ * being recycled half-updated for one frame, which a chart can live with.
+ */
+public class TrendBuffer {
+    private final long bucketNanos;
+    private final double[] min;
+    private final double[] max;
+    //absolute bucket number held by each slot, so stale slots can be told apart
+    private final long[] stamp;
+
+    //newest bucket number, written after the bucket itself
+    private volatile long latest = Long.MIN_VALUE;
+
+    /**
+     *
+     * @param windowNanos length of the history in nanoseconds
+     * @param buckets number of buckets the history is divided into
+     */
+    public TrendBuffer(long windowNanos, int buckets) {
+        this.bucketNanos = Math.max(1, windowNanos / buckets);
+        this.min = new double[buckets];
+        this.max = new double[buckets];
+        this.stamp = new long[buckets];
+        Arrays.fill(this.stamp, Long.MIN_VALUE);
+    }
+
+    /**
+     *
+     * @return number of buckets
+     */
+    public int size() {
+        return this.stamp.length;
+    }
+
+    /**
+     *
+     * @return nanoseconds covered by one bucket
+     */
+    public long getBucketNanos() {
+        return this.bucketNanos;
+    }
+
+    /**
+     *
+     * @param timeNanos epoch nanoseconds at which the value was measured
+     * @param value the measured value
+     */
+    public void add(long timeNanos, double value) {
+        long bucket = Math.floorDiv(timeNanos, this.bucketNanos);
+        int slot = (int) Math.floorMod(bucket, (long) this.stamp.length);
+        if (this.stamp[slot] != bucket) {
+            if (bucket < this.stamp[slot]) {
+                //too old for the window
+                return;
+            }
+            this.min[slot] = value;
+            this.max[slot] = value;
+            this.stamp[slot] = bucket;
+        } else {
+            if (value < this.min[slot]) {
+                this.min[slot] = value;
+            }
+            if (value > this.max[slot]) {
+                this.max[slot] = value;
+            }
+        }
+        if (bucket > this.latest) {
+            this.latest = bucket;
+        }
+    }
+
+    /**
+     * Copies the buckets out, oldest first and ending with the newest one;
+     * buckets without samples are NaN.
+     *
+     * @param minOut receives the minimum of each bucket, at least size() long
+     * @param maxOut receives the maximum of each bucket, at least size() long
+     * @return whether the buffer has any samples at all
+     */
+    public boolean copyTo(double[] minOut, double[] maxOut) {
+        long newest = this.latest;
+        int n = this.stamp.length;
+        if (newest == Long.MIN_VALUE) {
+            Arrays.fill(minOut, 0, n, Double.NaN);
+            Arrays.fill(maxOut, 0, n, Double.NaN);
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            long bucket = newest - (n - 1) + i;
+            int slot = (int) Math.floorMod(bucket, (long) n);
+            if (this.stamp[slot] == bucket) {
+                minOut[i] = this.min[slot];
+                maxOut[i] = this.max[slot];
+            } else {
+                minOut[i] = Double.NaN;
+                maxOut[i] = Double.NaN;
+            }
+        }
+        return true;
+    }
+}
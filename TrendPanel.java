@@ -0,0 +1,144 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import javax.swing.JComponent;
+import javax.swing.JTable;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Scrolling min/max chart of a TrendBuffer, newest bucket on the right,
+ * with the sensor's alarm limits drawn as red lines.
+ *
+ * Each pixel column draws one vertical line from the lowest to the highest
+ * value of the buckets behind it, so painting costs one pass over the
+ * buckets and one line per pixel however many samples were taken. The same
+ * component serves as a full-size chart and, as a cell renderer, as the
+ * sparkline in the dashboard table.
+ */
+public class TrendPanel extends JComponent implements TableCellRenderer {
+    private static final Color LINE_COLOR = new Color(40, 70, 150);
+    private static final Color LIMIT_COLOR = new Color(200, 40, 40);
+    private static final Color AXIS_COLOR = new Color(110, 110, 110);
+
+    //chart labels and margins are only drawn at full size
+    private final boolean labelled;
+    private TrendBuffer buffer;
+    private Sensor sensor;
+    private Color background = Color.WHITE;
+
+    //bucket snapshot reused on every paint
+    private double[] mins = new double[0];
+    private double[] maxs = new double[0];
+
+    /**
+     *
+     * @param labelled whether to draw the sensor name, window length and limit values
+     */
+    public TrendPanel(boolean labelled) {
+        this.labelled = labelled;
+        setOpaque(true);
+    }
+
+    /**
+     * Shows another sensor's trend, or nothing when buffer is null.
+     *
+     * @param sensor sensor whose alarm limits are drawn
+     * @param buffer history of that sensor
+     */
+    public void setTrend(Sensor sensor, TrendBuffer buffer) {
+        this.sensor = sensor;
+        this.buffer = buffer;
+        repaint();
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+            boolean hasFocus, int row, int column) {
+        this.buffer = (TrendBuffer) value;
+        this.sensor = ((DashboardModel) table.getModel()).getSensor(row);
+        this.background = isSelected ? table.getSelectionBackground() : table.getBackground();
+        return this;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(background);
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (buffer == null) {
+            return;
+        }
+        int n = buffer.size();
+        if (mins.length < n) {
+            mins = new double[n];
+            maxs = new double[n];
+        }
+        boolean any = buffer.copyTo(mins, maxs);
+
+        int left = labelled ? 60 : 2;
+        int top = labelled ? 20 : 2;
+        int width = getWidth() - left - 2;
+        int height = getHeight() - top - (labelled ? 6 : 2);
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        //scale to the alarm limits, widened to whatever the data reached
+        double low = sensor.getMin();
+        double high = sensor.getMax();
+        for (int i = 0; i < n; i++) {
+            if (mins[i] < low) {
+                low = mins[i];
+            }
+            if (maxs[i] > high) {
+                high = maxs[i];
+            }
+        }
+        double margin = (high - low) * 0.1 + 1e-9;
+        low -= margin;
+        high += margin;
+        double scale = height / (high - low);
+
+        int yMin = top + (int) ((high - sensor.getMin()) * scale);
+        int yMax = top + (int) ((high - sensor.getMax()) * scale);
+        if (labelled) {
+            g.setFont(getFont());
+            g.setColor(AXIS_COLOR);
+            g.drawLine(left - 1, top, left - 1, top + height);
+            String unit = sensor.getUnit().isEmpty() ? "" : " (" + sensor.getUnit() + ")";
+            g.drawString(sensor.getName() + unit + ", last "
+                    + (n * buffer.getBucketNanos() / 60_000_000_000L) + " min", left, top - 6);
+            g.drawString(Double.toString(sensor.getMax()), 4, yMax + 4);
+            g.drawString(Double.toString(sensor.getMin()), 4, yMin + 4);
+        }
+        if (any) {
+            drawBuckets(g, n, left, top, width, high, scale);
+        }
+        //limits on top, so they stay visible through the data
+        g.setColor(LIMIT_COLOR);
+        g.drawLine(left, yMin, left + width, yMin);
+        g.drawLine(left, yMax, left + width, yMax);
+    }
+
+    private void drawBuckets(Graphics g, int n, int left, int top, int width, double high, double scale) {
+        g.setColor(LINE_COLOR);
+        for (int x = 0; x < width; x++) {
+            //the buckets behind this pixel column; at least one when zoomed in
+            int from = (int) ((long) x * n / width);
+            int to = Math.max(from + 1, (int) ((long) (x + 1) * n / width));
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                //NaN buckets fail both comparisons and are skipped
+                if (mins[i] < lo) {
+                    lo = mins[i];
+                }
+                if (maxs[i] > hi) {
+                    hi = maxs[i];
+                }
+            }
+            if (lo <= hi) {
+                g.drawLine(left + x, top + (int) ((high - hi) * scale), left + x, top + (int) ((high - lo) * scale));
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Receives datagrams sent by an instrument to a local port. Each datagram
+ * holds whole datapoints; a lost datagram loses its datapoints but never
+ * desynchronizes the ones after it.
+ */
+public class UdpSource implements DataSource {
+    private final InetSocketAddress local;
+    private final Format format;
+    private DatagramChannel channel;
+
+    /**
+     *
+     * @param local address and port to receive on
+     * @param format how the datapoints are encoded
+     */
+    public UdpSource(InetSocketAddress local, Format format) {
+        this.local = local;
+        this.format = format;
+    }
+
+    public InetSocketAddress getAddress() {
+        return local;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public boolean isSelectable() {
+        return true;
+    }
+
+    public SelectableChannel open() throws IOException {
+        channel = DatagramChannel.open();
+        try {
+            channel.bind(local);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    public int read(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        //anything of a datagram beyond the buffer is discarded, so it must fit a whole datagram
+        return channel.receive(buffer) == null ? 0 : buffer.position() - start;
+    }
+
+    public boolean isMessageBased() {
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "udp " + local;
+    }
+}
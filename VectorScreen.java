@@ -0,0 +1,33 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * AlarmEngine's range screen on the Vector API: the values, min and max
+ * of as many channels as the CPU's widest vector holds are compared at
+ * once, and the lanes out of range come back as bits of the mask.
+ *
+ * Only loaded when the jdk.incubator.vector module is present, i.e. when
+ * the JVM runs with --add-modules jdk.incubator.vector; otherwise
+ * AlarmEngine keeps its scalar loop.
+ */
+class VectorScreen implements AlarmEngine.RangeScreen {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public long screen(double[] values, double[] min, double[] max, int base, int end) {
+        long bits = 0;
+        int ch = base;
+        for (int upper = base + SPECIES.loopBound(end - base); ch < upper; ch += SPECIES.length()) {
+            DoubleVector value = DoubleVector.fromArray(SPECIES, values, ch);
+            VectorMask<Double> out = value.lt(DoubleVector.fromArray(SPECIES, min, ch))
+                    .or(DoubleVector.fromArray(SPECIES, max, ch).lt(value));
+            bits |= out.toLong() << (ch - base);
+        }
+        //the channels that do not fill a whole vector
+        for (; ch < end; ch++) {
+            double value = values[ch];
+            bits |= (value < min[ch] | value > max[ch] ? 1L : 0L) << (ch - base);
+        }
+        return bits;
+    }
+}
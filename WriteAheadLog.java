@@ -0,0 +1,282 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only binary log of every archived datapoint so a session survives
+ * a crash instead of only reaching disk when the window is closed.
+ *
+ * The log is split into fixed-size memory-mapped segments. Each segment is
+ * self-contained: it declares the channel names it uses before the first
+ * sample of that channel, and a zero type byte marks its end. Appends only
+ * copy into the mapping; a background thread forces dirty segments to disk
+ * every fsync interval so many appends share one fsync (group commit).
+ *
+ * Segments are kept until a checkpoint: once everything appended before
+ * it has been saved elsewhere, deleteBefore removes those segments, so
+ * the log only grows until the next save and a start after a clean
+ * shutdown has nothing to replay.
+ */
+public class WriteAheadLog implements Closeable {
+    static final byte END = 0;
+    static final byte CHANNEL = 1;
+    static final byte SAMPLE = 2;
+    static final int SAMPLE_BYTES = 1 + Integer.BYTES + Long.BYTES + Double.BYTES;
+    static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    /**
+     * Receives the datapoints of the log in the order they were appended.
+     */
+    public interface Handler {
+        void onSample(String channel, long timeNanos, double value);
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long fsyncIntervalMillis;
+    private final ScheduledExecutorService flusher;
+
+    //channel ids are only valid within the current segment
+    private final HashMap<String, Integer> channelIds = new HashMap<String, Integer>();
+    private final List<String> channelNames = new ArrayList<String>();
+
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private boolean dirty;
+
+    /**
+     * Opens the log directory; new datapoints go to a fresh segment after
+     * any segments left behind by earlier sessions.
+     *
+     * @param dir directory holding the segment files
+     * @param segmentBytes size of each memory-mapped segment
+     * @param fsyncIntervalMillis how often dirty data is forced to disk; 0 forces on every append
+     * @throws IOException
+     */
+    public WriteAheadLog(Path dir, int segmentBytes, long fsyncIntervalMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        Files.createDirectories(dir);
+        List<Path> existing = segments();
+        segmentIndex = existing.isEmpty() ? 0 : indexOf(existing.get(existing.size() - 1)) + 1;
+        openSegment();
+
+        if (fsyncIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     *
+     * @param dir directory holding the segment files
+     * @throws IOException
+     */
+    public WriteAheadLog(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, 100);
+    }
+
+    /**
+     * Appends one datapoint to the log.
+     *
+     * @param channel name of the sensor the datapoint belongs to
+     * @param timeNanos epoch nanoseconds of the datapoint
+     * @param value the measured value
+     * @throws IOException if a new segment could not be created
+     */
+    public synchronized void append(String channel, long timeNanos, double value) throws IOException {
+        Integer id = channelIds.get(channel);
+        if (id == null) {
+            id = declare(channel);
+        }
+        if (segment.remaining() < SAMPLE_BYTES + 1) {
+            roll();
+        }
+        int pos = segment.position();
+        segment.putInt(pos + 1, id);
+        segment.putLong(pos + 1 + Integer.BYTES, timeNanos);
+        segment.putDouble(pos + 1 + Integer.BYTES + Long.BYTES, value);
+        //type byte goes last so a torn record reads as the end of the segment
+        segment.put(pos, SAMPLE);
+        segment.position(pos + SAMPLE_BYTES);
+
+        if (fsyncIntervalMillis == 0) {
+            segment.force();
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forces appended datapoints to disk if anything changed since the last flush.
+     */
+    public void flush() {
+        MappedByteBuffer toForce;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            toForce = segment;
+        }
+        toForce.force();
+    }
+
+    /**
+     * Streams every datapoint stored in the log directory, oldest segment first.
+     *
+     * @param handler receives each datapoint
+     * @throws IOException
+     */
+    public void replay(Handler handler) throws IOException {
+        for (Path path : segments()) {
+            if (indexOf(path) >= segmentIndex) {
+                break;
+            }
+            replaySegment(path, handler);
+        }
+    }
+
+    /**
+     * Starts a new segment, so everything appended so far lies in the
+     * segments before it.
+     *
+     * @return index of the new segment, to pass to deleteBefore once the earlier datapoints are saved
+     * @throws IOException if the new segment could not be created
+     */
+    public synchronized int checkpoint() throws IOException {
+        roll();
+        return segmentIndex;
+    }
+
+    /**
+     * Deletes the segments before a checkpoint, including those of earlier
+     * sessions, which replay then no longer streams.
+     *
+     * @param checkpoint index returned by checkpoint
+     * @throws IOException if a segment could not be deleted
+     */
+    public void deleteBefore(int checkpoint) throws IOException {
+        for (Path path : segments()) {
+            if (indexOf(path) >= checkpoint) {
+                break;
+            }
+            Files.delete(path);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        synchronized (this) {
+            segment.force();
+        }
+    }
+
+    private void replaySegment(Path path, Handler handler) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+        List<String> names = new ArrayList<String>();
+        while (buffer.hasRemaining()) {
+            byte type = buffer.get();
+            if (type == SAMPLE && buffer.remaining() >= SAMPLE_BYTES - 1) {
+                int id = buffer.getInt();
+                long timeNanos = buffer.getLong();
+                double value = buffer.getDouble();
+                handler.onSample(names.get(id), timeNanos, value);
+            } else if (type == CHANNEL && buffer.remaining() >= Integer.BYTES + Short.BYTES) {
+                int id = buffer.getInt();
+                byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                while (names.size() <= id) {
+                    names.add(null);
+                }
+                names.set(id, new String(name, StandardCharsets.UTF_8));
+            } else {
+                //end marker or a record cut short by a crash
+                break;
+            }
+        }
+    }
+
+    private int declare(String channel) throws IOException {
+        int id = channelNames.size();
+        channelNames.add(channel);
+        channelIds.put(channel, id);
+        byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+        if (segment.remaining() < 1 + Integer.BYTES + Short.BYTES + name.length + SAMPLE_BYTES + 1) {
+            //the new segment re-declares every channel, including this one
+            roll();
+        } else {
+            writeDeclaration(id, name);
+        }
+        return id;
+    }
+
+    private void writeDeclaration(int id, byte[] name) {
+        int pos = segment.position();
+        segment.putInt(pos + 1, id);
+        segment.putShort(pos + 1 + Integer.BYTES, (short) name.length);
+        segment.put(pos + 1 + Integer.BYTES + Short.BYTES, name);
+        segment.put(pos, CHANNEL);
+        segment.position(pos + 1 + Integer.BYTES + Short.BYTES + name.length);
+    }
+
+    private void roll() throws IOException {
+        segment.force();
+        dirty = false;
+        segmentIndex++;
+        openSegment();
+        for (int id = 0; id < channelNames.size(); id++) {
+            writeDeclaration(id, channelNames.get(id).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path path = dir.resolve(String.format("segment-%08d.wal", segmentIndex));
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.wal")) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static int indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("segment-".length(), name.length() - ".wal".length()));
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Flags datapoints that lie more than threshold standard deviations from
+ * the mean of the previous window datapoints, e.g. spikes and jumps. The
+ * window keeps adapting, so a drift slow enough to be absorbed by it goes
+ * unnoticed; CusumDetector and EwmaDetector cover that.
+ *
+ * The window is a ring of the last values with running sums. To stop
+ * rounding errors from accumulating, the sums are recomputed from the
+ * ring each time it wraps, which is still O(1) per datapoint on average.
+ */
+public class ZScoreDetector implements AnomalyDetector {
+    private final double threshold;
+    private final double[] window;
+    private int position;
+    private int count;
+
+    //sums of the deviations from anchor, which keeps them small and precise
+    private double anchor;
+    private double sum;
+    private double sumOfSquares;
+
+    /**
+     *
+     * @param window number of recent datapoints the mean and deviation are taken over, at least 2
+     * @param threshold number of standard deviations from the mean that is anomalous
+     */
+    public ZScoreDetector(int window, double threshold) {
+        if (window < 2 || !(threshold > 0)) {
+            throw new IllegalArgumentException("z-score needs a window of at least 2 and a positive threshold");
+        }
+        this.window = new double[window];
+        this.threshold = threshold;
+    }
+
+    public boolean update(long timeNanos, double value) {
+        boolean anomalous = false;
+        if (count == window.length) {
+            double mean = sum / count;
+            double variance = (sumOfSquares - sum * mean) / (count - 1);
+            //a constant signal has no spread to measure against
+            anomalous = variance > 0 && Math.abs(value - anchor - mean) > threshold * Math.sqrt(variance);
+            double oldest = window[position] - anchor;
+            sum -= oldest;
+            sumOfSquares -= oldest * oldest;
+        } else {
+            if (count == 0) {
+                anchor = value;
+            }
+            count++;
+        }
+        window[position] = value;
+        double deviation = value - anchor;
+        sum += deviation;
+        sumOfSquares += deviation * deviation;
+        if (++position == window.length) {
+            position = 0;
+            recompute();
+        }
+        return anomalous;
+    }
+
+    private void recompute() {
+        anchor = window[0];
+        sum = 0;
+        sumOfSquares = 0;
+        for (int i = 0; i < count; i++) {
+            double deviation = window[i] - anchor;
+            sum += deviation;
+            sumOfSquares += deviation * deviation;
+        }
+    }
+}